@@ -0,0 +1,191 @@
+package com.agsw.FabricView;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * Bitmaps kept for reuse, shared by the whole library: the render caches of the drawables, the
+ * content cache and the tiles of the views, and the exports.
+ *
+ * Allocating large bitmaps is what causes most garbage collection pauses while drawing. Instead,
+ * bitmaps that are not needed anymore are given back with release(), and obtain() returns one of
+ * the same size and configuration when there is one. The pool keeps at most getMaxBytes(); the
+ * bitmaps given back least recently are recycled first. The bitmaps returned by the library, such
+ * as getCanvasBitmap() or the exports, can be given back too, once you are done with them.
+ * The pool can be used from any thread.
+ */
+public final class BitmapPool {
+    /**
+     * Default maximum memory kept by the pool, in bytes.
+     */
+    public static final long DEFAULT_MAX_BYTES = 16 * 1024 * 1024;
+
+    private static final BitmapPool sInstance = new BitmapPool();
+
+    // The bitmaps of each size and configuration. See getKey().
+    private final HashMap<Long, ArrayDeque<Bitmap>> mBuckets = new HashMap<>();
+    // All the bitmaps, the least recently given back first.
+    private final ArrayDeque<Bitmap> mLru = new ArrayDeque<>();
+    private long mMaxBytes = DEFAULT_MAX_BYTES;
+    private long mBytes = 0;
+    private long mHits = 0;
+    private long mMisses = 0;
+
+    private BitmapPool() {
+    }
+
+    /**
+     * @return The pool of the library.
+     */
+    public static BitmapPool getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Returns a bitmap, cleared to transparent. It is taken from the pool if there is one of the
+     * same size and configuration, and created otherwise.
+     * @param width The width.
+     * @param height The height.
+     * @param config The configuration.
+     * @return A mutable bitmap.
+     * @throws OutOfMemoryError If the bitmap could not be created, even after emptying the pool.
+     */
+    public Bitmap obtain(int width, int height, Bitmap.Config config) {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Invalid size: " + width + "x" + height);
+        }
+        Bitmap bitmap = null;
+        synchronized (this) {
+            ArrayDeque<Bitmap> bucket = mBuckets.get(getKey(width, height, config));
+            if (bucket != null && !bucket.isEmpty()) {
+                bitmap = bucket.pollLast();
+                mLru.removeLastOccurrence(bitmap);
+                mBytes -= bitmap.getByteCount();
+                mHits++;
+            }
+            else {
+                mMisses++;
+            }
+        }
+        if (bitmap != null) {
+            bitmap.eraseColor(Color.TRANSPARENT);
+            return bitmap;
+        }
+        try {
+            return Bitmap.createBitmap(width, height, config);
+        }
+        catch (OutOfMemoryError e) {
+            //The pool is the first memory to give back.
+            clear();
+            return Bitmap.createBitmap(width, height, config);
+        }
+    }
+
+    /**
+     * Gives back a bitmap that is not used anymore. It must not be used afterwards, since it can
+     * be returned by obtain() at any time, or recycled.
+     * @param bitmap The bitmap. Can be null. Immutable or recycled bitmaps are ignored.
+     */
+    public void release(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable()) {
+            return;
+        }
+        int bytes = bitmap.getByteCount();
+        synchronized (this) {
+            if (bytes > mMaxBytes) {
+                bitmap.recycle();
+                return;
+            }
+            Long key = getKey(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+            ArrayDeque<Bitmap> bucket = mBuckets.get(key);
+            if (bucket == null) {
+                bucket = new ArrayDeque<>();
+                mBuckets.put(key, bucket);
+            }
+            bucket.addLast(bitmap);
+            mLru.addLast(bitmap);
+            mBytes += bytes;
+            trimToSize(mMaxBytes);
+        }
+    }
+
+    /**
+     * Setter for the maximum memory kept by the pool. Bitmaps are recycled as needed.
+     * @param maxBytes The maximum, in bytes. Default is DEFAULT_MAX_BYTES. 0 disables the pool.
+     */
+    public synchronized void setMaxBytes(long maxBytes) {
+        mMaxBytes = maxBytes;
+        trimToSize(maxBytes);
+    }
+
+    /**
+     * @return The maximum memory kept by the pool, in bytes.
+     */
+    public synchronized long getMaxBytes() {
+        return mMaxBytes;
+    }
+
+    /**
+     * @return The memory of the bitmaps currently in the pool, in bytes.
+     */
+    public synchronized long getRetainedBytes() {
+        return mBytes;
+    }
+
+    /**
+     * @return The number of calls to obtain() that reused a bitmap.
+     */
+    public synchronized long getHitCount() {
+        return mHits;
+    }
+
+    /**
+     * @return The number of calls to obtain() that created a bitmap.
+     */
+    public synchronized long getMissCount() {
+        return mMisses;
+    }
+
+    /**
+     * @return The fraction of the calls to obtain() that reused a bitmap, from 0 to 1.
+     */
+    public synchronized float getHitRate() {
+        long total = mHits + mMisses;
+        return total == 0 ? 0 : (float) mHits / total;
+    }
+
+    /**
+     * Recycles all the bitmaps of the pool, for example when the system is low on memory.
+     */
+    public synchronized void clear() {
+        trimToSize(0);
+    }
+
+    /**
+     * Recycles the bitmaps given back least recently until the pool holds at most maxBytes.
+     */
+    private void trimToSize(long maxBytes) {
+        Iterator<Bitmap> it = mLru.iterator();
+        while (mBytes > maxBytes && it.hasNext()) {
+            Bitmap bitmap = it.next();
+            it.remove();
+            Long key = getKey(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+            ArrayDeque<Bitmap> bucket = mBuckets.get(key);
+            bucket.removeFirstOccurrence(bitmap);
+            if (bucket.isEmpty()) {
+                mBuckets.remove(key);
+            }
+            mBytes -= bitmap.getByteCount();
+            bitmap.recycle();
+        }
+    }
+
+    private static Long getKey(int width, int height, Bitmap.Config config) {
+        int kind = config == null ? 7 : config.ordinal();
+        return ((long) width << 35) | ((long) height << 3) | kind;
+    }
+}
@@ -7,12 +7,32 @@ import android.graphics.Paint;
 import android.graphics.Rect;
 import android.graphics.RectF;
 
+import com.agsw.FabricView.BitmapPool;
+
 /**
  * Created by antwan on 10/3/2015.
- * This drawable object represents a bitmap image.
+ * This drawable object represents a bitmap image. The image is an ImageAsset: create it from
+ * compressed data to let it be drawn from downsampled levels that are decoded on demand.
  */
 public class CBitmap extends CDrawable {
-    private Bitmap mBitmap;
+    private final ImageAsset mAsset;
+
+    // The matrix of the canvas being drawn on, to find the scale on screen.
+    private final Matrix mCanvasMatrix = new Matrix();
+    private final Rect mLevelBounds = new Rect();
+
+    // Used when drawing with a transform that is not a plain translation.
+    private Paint mFilterPaint;
+    private Paint mFilterPaintSource;
+    private final float[] mMatrixValues = new float[9];
+
+    // Optional copy of the bitmap with the transforms already applied.
+    private boolean mTransformCacheEnabled = false;
+    private Bitmap mTransformedBitmap;
+    private int mTransformedVersion;
+    // The number of pixels of mTransformedBitmap per world unit.
+    private float mTransformedScale;
+    private final RectF mTransformedBounds = new RectF();
 
     /**
      * Constructor. Creates a bitmap object at the specified position.
@@ -33,9 +53,21 @@ public class CBitmap extends CDrawable {
      * @param p The paint to use.
      */
     public CBitmap(Bitmap src, int x, int y, Paint p) {
-        mBitmap = src;
-        setHeight(mBitmap.getHeight());
-        setWidth(mBitmap.getWidth());
+        this(new ImageAsset(src), x, y, p);
+    }
+
+    /**
+     * Constructor. Creates a bitmap object at the specified position. The width and the height are
+     * obtained from the image. If an image with the same content is already in use, it is shared.
+     * @param asset The image.
+     * @param x The horizontal position.
+     * @param y The vertical position.
+     * @param p The paint to use.
+     */
+    public CBitmap(ImageAsset asset, int x, int y, Paint p) {
+        mAsset = ImageAsset.share(asset);
+        setHeight(mAsset.getHeight());
+        setWidth(mAsset.getWidth());
         setXcoords(x);
         setYcoords(y);
         setPaint(p);
@@ -63,7 +95,7 @@ public class CBitmap extends CDrawable {
      * @param p The paint to use.
      */
     public CBitmap(Bitmap src, int x, int y, int height, int width, Paint p) {
-        mBitmap = Bitmap.createScaledBitmap(mBitmap, height, width, true);
+        mAsset = ImageAsset.share(new ImageAsset(Bitmap.createScaledBitmap(src, width, height, true)));
         setHeight(height);
         setWidth(width);
         setXcoords(x);
@@ -72,28 +104,182 @@ public class CBitmap extends CDrawable {
     }
 
     /**
-     * @return The bitmap encapsulated in this class.
+     * @return The bitmap encapsulated in this class, at full resolution. It is decoded if needed.
      */
     public Bitmap getBitmap() {
-        return mBitmap;
+        return mAsset.getBitmap();
+    }
+
+    /**
+     * @return The image of this object.
+     */
+    public ImageAsset getAsset() {
+        return mAsset;
+    }
+
+    /**
+     * Enables or disables keeping a copy of the bitmap with all the transforms applied to it.
+     * This costs memory, but makes drawing a rotated or scaled image as cheap as drawing an
+     * untransformed one. The copy is reused until the transforms change, and rendered for the
+     * zoom level of the canvas so that it stays sharp.
+     * @param enabled true to keep the transformed copy. Default is false.
+     */
+    public void setTransformCacheEnabled(boolean enabled) {
+        mTransformCacheEnabled = enabled;
+        if (!enabled) {
+            releaseTransformedBitmap();
+        }
+    }
+
+    /**
+     * @return true if a copy of the bitmap with all the transforms applied to it is kept.
+     */
+    public boolean isTransformCacheEnabled() {
+        return mTransformCacheEnabled;
     }
 
     @Override
     public void draw(Canvas canvas) {
-        Matrix matrix = new Matrix();
-        for (CTransform t:
-                getTransforms()) {
-            t.applyTransform(matrix);
+        draw(canvas, mTransformCacheEnabled);
+    }
+
+    @Override
+    public void drawUncached(Canvas canvas) {
+        draw(canvas, false);
+    }
+
+    /**
+     * @param useCache true to draw the transformed copy, creating it if needed.
+     */
+    private void draw(Canvas canvas, boolean useCache) {
+        Matrix matrix = getTransformMatrix();
+        // Only a hint: hardware accelerated canvases report no scale, and get the full resolution.
+        canvas.getMatrix(mCanvasMatrix);
+        float canvasScale = getScale(mCanvasMatrix, mMatrixValues);
+
+        float cacheScale = getCacheScale(canvasScale);
+        if (useCache && !matrix.isIdentity() && cacheScale <= MAX_CACHE_SCALE) {
+            Bitmap transformed = getTransformedBitmap(matrix, cacheScale);
+            if (transformed != null) {
+                if (cacheScale == 1f) {
+                    canvas.drawBitmap(transformed, mTransformedBounds.left, mTransformedBounds.top, getPaint());
+                }
+                else {
+                    //Pixel for pixel at the zoom it was rendered for, filtered in between.
+                    canvas.drawBitmap(transformed, null, mTransformedBounds, getFilterPaint());
+                }
+                return;
+            }
+        }
+
+        Bitmap image = mAsset.getBitmap(canvasScale * getScale(matrix, mMatrixValues));
+        if (image == null) {
+            return;
+        }
+        boolean fullSize = image.getWidth() == mAsset.getWidth() && image.getHeight() == mAsset.getHeight();
+        if (matrix.isIdentity() && fullSize) {
+            canvas.drawBitmap(image, getXcoords(), getYcoords(), getPaint());
+            return;
+        }
+
+        canvas.save();
+        canvas.concat(matrix);
+        if (fullSize) {
+            canvas.drawBitmap(image, getXcoords(), getYcoords(), getPaintFor(matrix));
+        }
+        else {
+            //A downsampled level, stretched to the size of the image.
+            mLevelBounds.set(getXcoords(), getYcoords(),
+                    getXcoords() + mAsset.getWidth(), getYcoords() + mAsset.getHeight());
+            canvas.drawBitmap(image, null, mLevelBounds, getFilterPaint());
+        }
+        canvas.restore();
+    }
+
+    /**
+     * Returns the paint to use with a transform. Bitmap filtering is only needed when the image
+     * is not drawn pixel for pixel, that is when the transform scales or rotates it.
+     * @param matrix The transform.
+     * @return The paint to draw the bitmap with. Can be null.
+     */
+    private Paint getPaintFor(Matrix matrix) {
+        matrix.getValues(mMatrixValues);
+        boolean translationOnly = mMatrixValues[Matrix.MSCALE_X] == 1
+                && mMatrixValues[Matrix.MSCALE_Y] == 1
+                && mMatrixValues[Matrix.MSKEW_X] == 0
+                && mMatrixValues[Matrix.MSKEW_Y] == 0;
+        if (translationOnly) {
+            return getPaint();
         }
-        Bitmap canvasBitmap = Bitmap.createBitmap(canvas.getWidth(), canvas.getHeight(), Bitmap.Config.ARGB_8888);
-        Canvas temp = new Canvas(canvasBitmap);
-        temp.save();
-        temp.concat(matrix);
-        temp.drawBitmap(mBitmap, getXcoords(), getYcoords(), getPaint());
-        temp.restore();
-//        Bitmap transformedBitmap = Bitmap.createBitmap(mBitmap, 0, 0, mBitmap.getWidth(), mBitmap.getHeight(), matrix, true);
+        return getFilterPaint();
+    }
 
-        canvas.drawBitmap(canvasBitmap, 0, 0, getPaint());
+    /**
+     * @return The paint of this object, with bitmap filtering.
+     */
+    private Paint getFilterPaint() {
+        if (mFilterPaint == null || mFilterPaintSource != getPaint()) {
+            mFilterPaintSource = getPaint();
+            mFilterPaint = mFilterPaintSource == null ? new Paint() : new Paint(mFilterPaintSource);
+            mFilterPaint.setFilterBitmap(true);
+        }
+        return mFilterPaint;
+    }
+
+    /**
+     * Gives the transformed copy back to the pool.
+     */
+    private void releaseTransformedBitmap() {
+        BitmapPool.getInstance().release(mTransformedBitmap);
+        mTransformedBitmap = null;
+    }
+
+    /**
+     * Returns the bitmap with the transforms applied, creating it if the transforms or the scale
+     * changed. It covers mTransformedBounds.
+     * @param matrix The composed transforms.
+     * @param scale The number of pixels of the bitmap per world unit.
+     * @return The transformed bitmap, or null if it could not be created.
+     */
+    private Bitmap getTransformedBitmap(Matrix matrix, float scale) {
+        if (mTransformedBitmap != null && mTransformedVersion == getVersion() && mTransformedScale == scale) {
+            return mTransformedBitmap;
+        }
+        Bitmap image = mAsset.getBitmap(scale * getScale(matrix, mMatrixValues));
+        if (image == null) {
+            return null;
+        }
+        Matrix full = new Matrix(matrix);
+        full.preTranslate(getXcoords(), getYcoords());
+        // Find where the result must be drawn, on whole pixels.
+        mTransformedBounds.set(0, 0, mAsset.getWidth(), mAsset.getHeight());
+        full.mapRect(mTransformedBounds);
+        mTransformedBounds.set((float) Math.floor(mTransformedBounds.left), (float) Math.floor(mTransformedBounds.top),
+                (float) Math.ceil(mTransformedBounds.right), (float) Math.ceil(mTransformedBounds.bottom));
+        int width = (int) Math.ceil(mTransformedBounds.width() * scale);
+        int height = (int) Math.ceil(mTransformedBounds.height() * scale);
+        releaseTransformedBitmap();
+        if (width <= 0 || height <= 0) {
+            return null;
+        }
+        try {
+            mTransformedBitmap = BitmapPool.getInstance().obtain(width, height, Bitmap.Config.ARGB_8888);
+        }
+        catch (OutOfMemoryError e) {
+            //Fall back to drawing with the matrix.
+            mTransformedBitmap = null;
+            return null;
+        }
+        Canvas temp = new Canvas(mTransformedBitmap);
+        temp.scale(scale, scale);
+        temp.translate(-mTransformedBounds.left, -mTransformedBounds.top);
+        temp.concat(full);
+        // The paint of this object is applied when the copy is drawn.
+        mLevelBounds.set(0, 0, mAsset.getWidth(), mAsset.getHeight());
+        temp.drawBitmap(image, null, mLevelBounds, new Paint(Paint.FILTER_BITMAP_FLAG));
+        mTransformedVersion = getVersion();
+        mTransformedScale = scale;
+        return mTransformedBitmap;
     }
 
     @Override
@@ -109,9 +295,7 @@ public class CBitmap extends CDrawable {
             return false;
         }
         CBitmap other = (CBitmap) obj;
-        if(other.mBitmap == null && this.mBitmap == null) {
-            return true;
-        }
-        return other.mBitmap.sameAs(this.mBitmap);
+        // Identical images are shared, so the hashes and then the identity are usually enough.
+        return other.mAsset.contentEquals(this.mAsset);
     }
 }
@@ -10,6 +10,7 @@ import android.graphics.RectF;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Created by antwan on 10/3/2015.
@@ -21,14 +22,31 @@ import java.util.List;
  * undo() and redo() methods.
  */
 public abstract class CDrawable {
-    private int id;
-    private static int nextId = 0;
+    private final long id;
+    private static final AtomicLong nextId = new AtomicLong();
+
+    /**
+     * The largest scale that the bitmaps kept to draw objects faster are rendered at. Beyond
+     * that, the objects are drawn without them.
+     */
+    protected static final float MAX_CACHE_SCALE = 4f;
 
     private int x, y, height, width;
     private Paint mPaint;
     private List<CTransform> mTransforms = new ArrayList<>();
     private Rect lastBounds = null;
 
+    // Incremented whenever the position, the size or the transforms of this object change.
+    private int mVersion = 0;
+    // Incremented whenever the transforms of this object change.
+    private int mTransformVersion = 0;
+    // Composed transforms, valid for mMatrixVersion.
+    private Matrix mTransformMatrix;
+    private int mMatrixVersion = -1;
+    // lastBounds is valid for mBoundsVersion.
+    private int mBoundsVersion = -1;
+    private final RectF mBoundsF = new RectF();
+
     /**
      * If you call this constructor, you MUST call setXCoord(), setYCoord(), setHeight(), setWidth()
      * and setPaint().
@@ -51,20 +69,21 @@ public abstract class CDrawable {
         this.mPaint = paint;
     }
 
-    private static int generateNextId() {
-        return nextId++;
+    private static long generateNextId() {
+        return nextId.getAndIncrement();
     }
 
     /**
      * @return The incremental ID for this object. Is unique only in the current execution and not
-     * globally.
+     * globally. Drawables can be created from any thread.
      */
-    public int getId() {
+    public long getId() {
         return id;
     }
 
     /**
-     * @return The paint used for drawing this object.
+     * @return The paint used for drawing this object. The paints given by the views and read from
+     * documents are shared with other drawables through the StyleTable, and must not be modified.
      */
     public Paint getPaint() {
         return mPaint;
@@ -84,6 +103,7 @@ public abstract class CDrawable {
      */
     public void setHeight(int height) {
         this.height = height;
+        invalidateGeometry();
     }
 
     /**
@@ -99,6 +119,7 @@ public abstract class CDrawable {
      */
     public void setWidth(int width) {
         this.width = width;
+        invalidateGeometry();
     }
 
     /**
@@ -128,6 +149,7 @@ public abstract class CDrawable {
      */
     public void setXcoords(int x) {
         this.x = x;
+        invalidateGeometry();
     }
 
     /**
@@ -136,6 +158,80 @@ public abstract class CDrawable {
      */
     public void setYcoords(int y) {
         this.y = y;
+        invalidateGeometry();
+    }
+
+    /**
+     * Must be called by subclasses whenever a change affects the position or the size of this
+     * object.
+     */
+    protected void invalidateGeometry() {
+        mVersion++;
+    }
+
+    /**
+     * Must be called whenever one of the transforms of this object is modified. The transforms
+     * of this library do it by themselves.
+     */
+    public void invalidateTransforms() {
+        mTransformVersion++;
+        mVersion++;
+    }
+
+    /**
+     * @return A number that changes whenever the position, the size or the transforms of this
+     * object change. Use it to know when something computed from this object is stale.
+     */
+    public int getVersion() {
+        return mVersion;
+    }
+
+    /**
+     * @return The composition of all the transforms attached to this object. The matrix is cached
+     * until the transforms change; it must not be modified. Only for the thread that modifies this
+     * object: other threads read the transforms from a FabricDocument.Snapshot.
+     */
+    public Matrix getTransformMatrix() {
+        if (mTransformMatrix == null) {
+            mTransformMatrix = new Matrix();
+        }
+        if (mMatrixVersion != mTransformVersion) {
+            mTransformMatrix.reset();
+            for (CTransform t :
+                    mTransforms) {
+                t.applyTransform(mTransformMatrix);
+            }
+            mMatrixVersion = mTransformVersion;
+        }
+        return mTransformMatrix;
+    }
+
+    /**
+     * @param matrix A transform.
+     * @param values Work space, for 9 values.
+     * @return How much the transform enlarges what it is applied to.
+     */
+    protected static float getScale(Matrix matrix, float[] values) {
+        matrix.getValues(values);
+        float scaleX = (float) Math.hypot(values[Matrix.MSCALE_X], values[Matrix.MSKEW_Y]);
+        float scaleY = (float) Math.hypot(values[Matrix.MSKEW_X], values[Matrix.MSCALE_Y]);
+        return Math.max(scaleX, scaleY);
+    }
+
+    /**
+     * Rounds the scale of a canvas up to the scale that a bitmap kept to draw an object faster is
+     * rendered at: a power of two, so that the bitmap is never enlarged on screen, and is not
+     * rendered again at every step of a zoom.
+     * @param canvasScale How much the canvas enlarges what is drawn on it.
+     * @return The scale to render at.
+     */
+    protected static float getCacheScale(float canvasScale) {
+        if (!(canvasScale > 0) || Float.isInfinite(canvasScale)) {
+            return 1f;
+        }
+        //Not a larger power for rounding errors, as in 1.0000001.
+        double exponent = Math.ceil(Math.log(canvasScale) / Math.log(2) - 0.01);
+        return (float) Math.pow(2, exponent);
     }
 
     /**
@@ -144,21 +240,34 @@ public abstract class CDrawable {
      */
     public abstract void draw(Canvas canvas);
 
+    /**
+     * Draws this object without the bitmaps it may keep to be drawn faster. Used for recordings
+     * that are played after the bitmaps could be given back to BitmapPool and reused, such as the
+     * Pictures of ExportRenderer.
+     * @param canvas The canvas to draw on.
+     */
+    public void drawUncached(Canvas canvas) {
+        draw(canvas);
+    }
+
     /**
      * Calculates the bounds of this object. Takes into consideration all the transforms attached
-     * to it.
-     * @return The position of this object on the canvas.
+     * to it. The result is cached until the object or its transforms change. Only for the thread
+     * that modifies this object, as getTransformMatrix().
+     * @return The position of this object on the canvas. Must not be modified.
      */
     public Rect computeBounds() {
-        RectF bounds = new RectF(x, y, x+width, y+height);
-        Matrix m = new Matrix();
-        for (CTransform t :
-                mTransforms) {
-            t.applyTransform(m);
+        if (lastBounds != null && mBoundsVersion == mVersion) {
+            return lastBounds;
+        }
+        RectF bounds = mBoundsF;
+        bounds.set(x, y, x+width, y+height);
+        getTransformMatrix().mapRect(bounds);
+        if (lastBounds == null) {
+            lastBounds = new Rect();
         }
-        m.mapRect(bounds);
-        lastBounds = new Rect();
         bounds.round(lastBounds);
+        mBoundsVersion = mVersion;
         return lastBounds;
     }
 
@@ -186,7 +295,9 @@ public abstract class CDrawable {
      * @param transform The transform to cancel.
      */
     public void removeTransform(CTransform transform) {
-        mTransforms.remove(transform);
+        if (mTransforms.remove(transform)) {
+            invalidateTransforms();
+        }
     }
 
     /**
@@ -195,6 +306,7 @@ public abstract class CDrawable {
      */
     public void addTransform(CTransform transform) {
         mTransforms.add(transform);
+        invalidateTransforms();
     }
 
     @Override
@@ -220,7 +332,8 @@ public abstract class CDrawable {
     }
 
     /**
-     * @return The stack of all transforms attached to this object.
+     * @return The stack of all transforms attached to this object. If you modify it, call
+     * invalidateTransforms() afterwards.
      */
     public List<CTransform> getTransforms() {
         return mTransforms;
@@ -0,0 +1,101 @@
+package com.agsw.FabricView.DrawableObjects;
+
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+
+import java.util.Arrays;
+
+/**
+ * Represents any affine transform, given by a matrix. FabricView replaces the transforms that can't
+ * be undone anymore by one of these, so that they are not replayed one by one on every draw.
+ */
+public class CMatrixTransform extends CTransform {
+    private final Matrix mMatrix = new Matrix();
+    private final float[] mValues = new float[9];
+
+    /**
+     * Constructor.
+     * @param drawable The object this transform affects.
+     * @param matrix The transform. It is copied.
+     */
+    public CMatrixTransform(CDrawable drawable, Matrix matrix) {
+        setDrawable(drawable);
+        setMatrix(matrix);
+    }
+
+    /**
+     * Constructor.
+     * @param drawable The object this transform affects.
+     * @param values The 9 values of the matrix, as given by Matrix.getValues().
+     */
+    public CMatrixTransform(CDrawable drawable, float[] values) {
+        setDrawable(drawable);
+        setValues(values);
+    }
+
+    /**
+     * @param matrix Receives the transform.
+     */
+    public void getMatrix(Matrix matrix) {
+        matrix.set(mMatrix);
+    }
+
+    /**
+     * Setter for the transform.
+     * @param matrix The new transform. It is copied.
+     */
+    public void setMatrix(Matrix matrix) {
+        mMatrix.set(matrix);
+        mMatrix.getValues(mValues);
+        invalidateGeometry();
+    }
+
+    /**
+     * @param values Receives the 9 values of the matrix, as given by Matrix.getValues().
+     */
+    public void getValues(float[] values) {
+        System.arraycopy(mValues, 0, values, 0, 9);
+    }
+
+    /**
+     * Setter for the transform.
+     * @param values The 9 values of the matrix, as given by Matrix.getValues().
+     */
+    public void setValues(float[] values) {
+        if (values.length < 9) {
+            throw new IllegalArgumentException("A matrix has 9 values, not " + values.length);
+        }
+        System.arraycopy(values, 0, mValues, 0, 9);
+        mMatrix.setValues(mValues);
+        invalidateGeometry();
+    }
+
+    @Override
+    public void draw(Canvas canvas) {
+        throw new UnsupportedOperationException("Don't call draw() directly on this class.");
+    }
+
+    @Override
+    public void applyTransform(Matrix m) {
+        m.postConcat(mMatrix);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if(this == obj) {
+            return true;
+        }
+
+        if (!(obj instanceof CMatrixTransform)) {
+            return false;
+        }
+        CMatrixTransform other = (CMatrixTransform) obj;
+        if(other.getDrawable() == null && this.getDrawable() == null) {
+            return true;
+        }
+        if(getDrawable() == null || !getDrawable().equals(other.getDrawable())) {
+            return false;
+        }
+        return Arrays.equals(other.mValues, this.mValues);
+    }
+}
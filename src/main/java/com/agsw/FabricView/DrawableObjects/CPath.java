@@ -2,17 +2,113 @@ package com.agsw.FabricView.DrawableObjects;
 
 import android.graphics.Canvas;
 import android.graphics.Matrix;
-import android.graphics.Paint;
 import android.graphics.Path;
-import android.graphics.RectF;
+import android.graphics.Rect;
+
+import java.util.Arrays;
 
 /**
  * Created by antwan on 10/3/2015.
  * This is a series of continuous lines.
  * Note that the superclass' x, y, width, and height are irrelevant here so they are ignored.
+ *
+ * The lines are stored as a list of points and a list of verbs telling how the points are
+ * connected. The Path used for drawing is built from them when needed.
  */
 public class CPath extends CDrawable {
-    private Path mPath;
+    /**
+     * Verb starting a new line. Uses one point.
+     */
+    public static final byte VERB_MOVE = 0;
+    /**
+     * Verb drawing a straight line from the last point. Uses one point.
+     */
+    public static final byte VERB_LINE = 1;
+    /**
+     * Verb drawing a quadratic bezier line from the last point. Uses two points: the control
+     * point and the end point.
+     */
+    public static final byte VERB_QUAD = 2;
+
+    // The points, as x, y pairs.
+    private float[] mPoints = new float[32];
+    private int mPointCount = 0;
+    private byte[] mVerbs = new byte[16];
+    private int mVerbCount = 0;
+    // Bounds of all the points, including the control points.
+    private float mLeft, mTop, mRight, mBottom;
+
+    private final Path mPath;
+    // Number of verbs and points already added to mPath.
+    private int mPathVerbCount = 0;
+    private int mPathPointCount = 0;
+
+    // mPath with the transforms applied, valid for mTransformedPathVersion.
+    private Path mTransformedPath;
+    private int mTransformedPathVersion;
+
+    // The last result of getGeometry(), reused while the lines are the same.
+    private Geometry mGeometry;
+
+    /**
+     * The lines of a path as they were at some point. It is never modified, so it can be read
+     * from any thread while the path keeps changing: the buffers of a path are only ever
+     * appended to, and replaced by new ones when the lines are replaced.
+     */
+    public static final class Geometry {
+        private final float[] mPoints;
+        private final int mPointCount;
+        private final byte[] mVerbs;
+        private final int mVerbCount;
+        private final Rect mBounds;
+
+        private Geometry(float[] points, int pointCount, byte[] verbs, int verbCount, Rect bounds) {
+            mPoints = points;
+            mPointCount = pointCount;
+            mVerbs = verbs;
+            mVerbCount = verbCount;
+            mBounds = bounds;
+        }
+
+        /**
+         * @return The number of points, including the control points of the curves.
+         */
+        public int getPointCount() {
+            return mPointCount;
+        }
+
+        /**
+         * @return The points, as x, y pairs. Only the first getPointCount() pairs are valid. It
+         * must not be modified.
+         */
+        public float[] getPoints() {
+            return mPoints;
+        }
+
+        /**
+         * @return The number of verbs.
+         */
+        public int getVerbCount() {
+            return mVerbCount;
+        }
+
+        /**
+         * @return The verbs. Only the first getVerbCount() are valid. It must not be modified.
+         */
+        public byte[] getVerbs() {
+            return mVerbs;
+        }
+
+        /**
+         * @param out Receives the position of the lines, without the transforms, as given by
+         *            getXcoords(), getYcoords(), getWidth() and getHeight().
+         * @return out.
+         */
+        public Rect getBounds(Rect out) {
+            out.set(mBounds);
+            return out;
+        }
+    }
 
     /**
      * Default constructor.
@@ -23,14 +119,21 @@ public class CPath extends CDrawable {
 
     @Override
     public void draw(Canvas canvas) {
-        Matrix matrix = new Matrix();
-        for (CTransform t:
-             getTransforms()) {
-            t.applyTransform(matrix);
+        Path path = getPath();
+        Matrix matrix = getTransformMatrix();
+        if (matrix.isIdentity()) {
+            canvas.drawPath(path, getPaint());
+            return;
         }
-        Path copy = new Path(mPath);
-        copy.transform(matrix);
-        canvas.drawPath(copy, getPaint());
+        // The path is transformed instead of the canvas so that the stroke width isn't scaled.
+        if (mTransformedPath == null || mTransformedPathVersion != getVersion()) {
+            if (mTransformedPath == null) {
+                mTransformedPath = new Path();
+            }
+            path.transform(matrix, mTransformedPath);
+            mTransformedPathVersion = getVersion();
+        }
+        canvas.drawPath(mTransformedPath, getPaint());
     }
 
     /**
@@ -39,7 +142,8 @@ public class CPath extends CDrawable {
      * @param y The vertical position of the end of the line.
      */
     public void lineTo(float x, float y) {
-        mPath.lineTo(x, y);
+        addVerb(VERB_LINE);
+        addPoint(x, y);
         calculatePosition();
     }
 
@@ -51,7 +155,9 @@ public class CPath extends CDrawable {
      * @param y2 The y-coordinate of the end point on a quadratic curve
      */
     public void quadTo(float x1, float y1, float x2, float y2) {
-        mPath.quadTo(x1, y1, x2, y2);
+        addVerb(VERB_QUAD);
+        addPoint(x1, y1);
+        addPoint(x2, y2);
         calculatePosition();
     }
 
@@ -61,24 +167,329 @@ public class CPath extends CDrawable {
      * @param y The start position vertically.
      */
     public void moveTo(float x, float y) {
-        mPath.moveTo(x, y);
+        addVerb(VERB_MOVE);
+        addPoint(x, y);
         calculatePosition();
     }
 
     /**
-     * @return The current Path object.
+     * @return The Path object used for drawing, built from the points. It must not be modified:
+     * the changes would not be reflected in the points.
      */
-    public Path getPath() {
+    public synchronized Path getPath() {
+        if (mPathVerbCount > mVerbCount) {
+            //The geometry was replaced.
+            mPath.reset();
+            mPathVerbCount = 0;
+            mPathPointCount = 0;
+        }
+        int point = mPathPointCount * 2;
+        for (int i = mPathVerbCount; i < mVerbCount; i++) {
+            switch (mVerbs[i]) {
+                case VERB_MOVE:
+                    mPath.moveTo(mPoints[point], mPoints[point + 1]);
+                    point += 2;
+                    break;
+                case VERB_LINE:
+                    mPath.lineTo(mPoints[point], mPoints[point + 1]);
+                    point += 2;
+                    break;
+                case VERB_QUAD:
+                    mPath.quadTo(mPoints[point], mPoints[point + 1], mPoints[point + 2], mPoints[point + 3]);
+                    point += 4;
+                    break;
+                default:
+                    break;
+            }
+        }
+        mPathVerbCount = mVerbCount;
+        mPathPointCount = point / 2;
         return mPath;
     }
 
+    /**
+     * @return The number of points, including the control points of the curves.
+     */
+    public int getPointCount() {
+        return mPointCount;
+    }
+
+    /**
+     * @return The points, as x, y pairs. Only the first getPointCount() pairs are valid. The
+     * array is the internal buffer of this object: it must not be modified.
+     */
+    public float[] getPoints() {
+        return mPoints;
+    }
+
+    /**
+     * @return The number of verbs.
+     */
+    public int getVerbCount() {
+        return mVerbCount;
+    }
+
+    /**
+     * @return The verbs: VERB_MOVE, VERB_LINE or VERB_QUAD. Only the first getVerbCount() are valid.
+     * The array is the internal buffer of this object: it must not be modified.
+     */
+    public byte[] getVerbs() {
+        return mVerbs;
+    }
+
+    /**
+     * @return The lines as they are now, which stay readable from any thread whatever happens
+     * to this object afterwards.
+     */
+    public synchronized Geometry getGeometry() {
+        Geometry g = mGeometry;
+        if (g == null || g.mPoints != mPoints || g.mPointCount != mPointCount
+                || g.mVerbs != mVerbs || g.mVerbCount != mVerbCount) {
+            int x = getXcoords(), y = getYcoords();
+            g = new Geometry(mPoints, mPointCount, mVerbs, mVerbCount,
+                    new Rect(x, y, x + getWidth(), y + getHeight()));
+            mGeometry = g;
+        }
+        return g;
+    }
+
+    /**
+     * Replaces all the lines.
+     * @param points The points, as x, y pairs. They are copied.
+     * @param pointCount The number of points.
+     * @param verbs The verbs telling how the points are connected. They are copied.
+     * @param verbCount The number of verbs.
+     */
+    public synchronized void setGeometry(float[] points, int pointCount, byte[] verbs, int verbCount) {
+        if (countPoints(verbs, 0, verbCount) != pointCount) {
+            throw new IllegalArgumentException("The verbs use " + countPoints(verbs, 0, verbCount)
+                    + " points, not " + pointCount);
+        }
+        mPoints = Arrays.copyOf(points, Math.max(pointCount * 2, 2));
+        mPointCount = pointCount;
+        mVerbs = Arrays.copyOf(verbs, Math.max(verbCount, 1));
+        mVerbCount = verbCount;
+        //Forces getPath() to start over.
+        mPathVerbCount = Integer.MAX_VALUE;
+        mLeft = mRight = pointCount > 0 ? points[0] : 0;
+        mTop = mBottom = pointCount > 0 ? points[1] : 0;
+        for (int i = 1; i < pointCount; i++) {
+            includeInBounds(points[i * 2], points[i * 2 + 1]);
+        }
+        calculatePosition();
+    }
+
+    /**
+     * Moves all the points by a transform, as if it was attached to this object. Used to fold
+     * transforms into the lines. The stroke width doesn't change, as with attached transforms.
+     * @param matrix The transform.
+     */
+    public synchronized void transformGeometry(Matrix matrix) {
+        //New buffers, since the previous ones can still be read by getPoints() callers.
+        float[] points = new float[mPoints.length];
+        matrix.mapPoints(points, 0, mPoints, 0, mPointCount);
+        setGeometry(points, mPointCount, mVerbs, mVerbCount);
+    }
+
+    /**
+     * Removes the points that don't change the shape of the lines by more than a tolerance.
+     * Each continuous line is reduced to its most significant points with the Ramer-Douglas-Peucker
+     * algorithm, and redrawn through them with quadratic bezier lines, like FabricView draws
+     * strokes. Lines that have no curves stay straight.
+     * @param tolerance The largest distance allowed between a removed point and the new lines.
+     * @return The number of points removed.
+     */
+    public synchronized int simplify(float tolerance) {
+        if (tolerance <= 0 || mPointCount < 3) {
+            return 0;
+        }
+        float[] outPoints = new float[mPointCount * 2];
+        byte[] outVerbs = new byte[mVerbCount];
+        int outPointCount = 0, outVerbCount = 0;
+        // The points on the lines of the current subpath, without the control points.
+        float[] line = new float[mPointCount * 2];
+        boolean[] keep = new boolean[mPointCount];
+        int[] stack = new int[mPointCount * 2];
+
+        int verb = 0, point = 0;
+        while (verb < mVerbCount) {
+            //Finds the next subpath.
+            int firstVerb = verb, firstPoint = point;
+            int lineCount = 0;
+            boolean curved = false;
+            do {
+                int used = mVerbs[verb] == VERB_QUAD ? 2 : 1;
+                curved |= mVerbs[verb] == VERB_QUAD;
+                line[lineCount * 2] = mPoints[(point + used - 1) * 2];
+                line[lineCount * 2 + 1] = mPoints[(point + used - 1) * 2 + 1];
+                lineCount++;
+                point += used;
+                verb++;
+            } while (verb < mVerbCount && mVerbs[verb] != VERB_MOVE);
+
+            int kept = lineCount < 3 ? lineCount : markSignificantPoints(line, lineCount, tolerance, keep, stack);
+            int size = curved ? 2 * kept - 2 : kept;
+            if (kept == lineCount || size >= point - firstPoint) {
+                //Nothing to gain: copies the subpath as it is.
+                System.arraycopy(mVerbs, firstVerb, outVerbs, outVerbCount, verb - firstVerb);
+                outVerbCount += verb - firstVerb;
+                System.arraycopy(mPoints, firstPoint * 2, outPoints, outPointCount * 2, (point - firstPoint) * 2);
+                outPointCount += point - firstPoint;
+                continue;
+            }
+
+            //Redraws the subpath through the remaining points.
+            int previous = -1;
+            for (int i = 0; i < lineCount; i++) {
+                if (!keep[i]) {
+                    continue;
+                }
+                float x = line[i * 2], y = line[i * 2 + 1];
+                if (previous < 0) {
+                    outVerbs[outVerbCount++] = mVerbs[firstVerb] == VERB_MOVE ? VERB_MOVE : VERB_LINE;
+                    outPoints[outPointCount * 2] = x;
+                    outPoints[outPointCount * 2 + 1] = y;
+                    outPointCount++;
+                }
+                else if (curved && i != lineCount - 1) {
+                    //The point pulls the curve, which ends half way to the next point.
+                    int next = i + 1;
+                    while (!keep[next]) {
+                        next++;
+                    }
+                    outVerbs[outVerbCount++] = VERB_QUAD;
+                    outPoints[outPointCount * 2] = x;
+                    outPoints[outPointCount * 2 + 1] = y;
+                    outPoints[outPointCount * 2 + 2] = (x + line[next * 2]) / 2;
+                    outPoints[outPointCount * 2 + 3] = (y + line[next * 2 + 1]) / 2;
+                    outPointCount += 2;
+                }
+                else {
+                    outVerbs[outVerbCount++] = VERB_LINE;
+                    outPoints[outPointCount * 2] = x;
+                    outPoints[outPointCount * 2 + 1] = y;
+                    outPointCount++;
+                }
+                previous = i;
+            }
+        }
+
+        int removed = mPointCount - outPointCount;
+        if (removed > 0) {
+            setGeometry(outPoints, outPointCount, outVerbs, outVerbCount);
+        }
+        return Math.max(removed, 0);
+    }
+
+    /**
+     * Ramer-Douglas-Peucker algorithm, without recursion.
+     * @param line The points, as x, y pairs.
+     * @param count The number of points.
+     * @param tolerance The largest distance allowed between a removed point and the new lines.
+     * @param keep Receives true for the points to keep.
+     * @param stack Work space, for at least count * 2 values.
+     * @return The number of points to keep.
+     */
+    private static int markSignificantPoints(float[] line, int count, float tolerance, boolean[] keep, int[] stack) {
+        Arrays.fill(keep, 0, count, false);
+        keep[0] = true;
+        keep[count - 1] = true;
+        int kept = 2;
+        int top = 0;
+        stack[top++] = 0;
+        stack[top++] = count - 1;
+        while (top > 0) {
+            int last = stack[--top];
+            int first = stack[--top];
+            float farthest = 0;
+            int index = -1;
+            for (int i = first + 1; i < last; i++) {
+                float d = distanceToSegment(line, i, first, last);
+                if (d > farthest) {
+                    farthest = d;
+                    index = i;
+                }
+            }
+            if (index >= 0 && farthest > tolerance) {
+                keep[index] = true;
+                kept++;
+                stack[top++] = first;
+                stack[top++] = index;
+                stack[top++] = index;
+                stack[top++] = last;
+            }
+        }
+        return kept;
+    }
+
+    private static float distanceToSegment(float[] line, int point, int first, int last) {
+        float px = line[point * 2], py = line[point * 2 + 1];
+        float ax = line[first * 2], ay = line[first * 2 + 1];
+        float dx = line[last * 2] - ax, dy = line[last * 2 + 1] - ay;
+        float lengthSquared = dx * dx + dy * dy;
+        float t = lengthSquared == 0 ? 0 : ((px - ax) * dx + (py - ay) * dy) / lengthSquared;
+        t = Math.max(0, Math.min(1, t));
+        float ex = ax + t * dx - px, ey = ay + t * dy - py;
+        return (float) Math.sqrt(ex * ex + ey * ey);
+    }
+
+    /**
+     * @param verbs Some verbs.
+     * @param from The first verb.
+     * @param to The verb after the last.
+     * @return The number of points used by the verbs.
+     */
+    private static int countPoints(byte[] verbs, int from, int to) {
+        int count = 0;
+        for (int i = from; i < to; i++) {
+            count += verbs[i] == VERB_QUAD ? 2 : 1;
+        }
+        return count;
+    }
+
+    private synchronized void addVerb(byte verb) {
+        if (mVerbCount == mVerbs.length) {
+            mVerbs = Arrays.copyOf(mVerbs, mVerbs.length * 2);
+        }
+        mVerbs[mVerbCount++] = verb;
+    }
+
+    private synchronized void addPoint(float x, float y) {
+        if (mPointCount * 2 + 2 > mPoints.length) {
+            mPoints = Arrays.copyOf(mPoints, mPoints.length * 2);
+        }
+        mPoints[mPointCount * 2] = x;
+        mPoints[mPointCount * 2 + 1] = y;
+        if (mPointCount == 0) {
+            mLeft = mRight = x;
+            mTop = mBottom = y;
+        }
+        else {
+            includeInBounds(x, y);
+        }
+        mPointCount++;
+    }
+
+    private void includeInBounds(float x, float y) {
+        if (x < mLeft) {
+            mLeft = x;
+        }
+        else if (x > mRight) {
+            mRight = x;
+        }
+        if (y < mTop) {
+            mTop = y;
+        }
+        else if (y > mBottom) {
+            mBottom = y;
+        }
+    }
+
     private void calculatePosition() {
-        RectF bounds = new RectF();
-        mPath.computeBounds(bounds, true);
-        setXcoords((int)(bounds.left));
-        setYcoords((int)(bounds.top));
-        setHeight((int)(bounds.bottom-bounds.top));
-        setWidth((int)(bounds.right-bounds.left));
+        setXcoords((int)(mLeft));
+        setYcoords((int)(mTop));
+        setHeight((int)(mBottom-mTop));
+        setWidth((int)(mRight-mLeft));
 
         if(getHeight()==0) {
             setHeight(1);
@@ -86,6 +497,8 @@ public class CPath extends CDrawable {
         if(getWidth()==0) {
             setWidth(1);
         }
+        //The lines changed even if the bounds did not.
+        invalidateGeometry();
     }
 
 
@@ -109,4 +522,3 @@ public class CPath extends CDrawable {
     }
 
 }
-
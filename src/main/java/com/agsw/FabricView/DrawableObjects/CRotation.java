@@ -51,6 +51,7 @@ public class CRotation extends CTransform {
      */
     public void setRotation(int degree) {
         mRotDegree = degree;
+        invalidateGeometry();
     }
 
     @Override
@@ -64,6 +64,7 @@ public class CScale extends CTransform {
         else {
             mFactor = factor;
         }
+        invalidateGeometry();
     }
 
     @Override
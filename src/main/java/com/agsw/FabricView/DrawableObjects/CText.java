@@ -5,15 +5,43 @@ import android.graphics.Canvas;
 import android.graphics.Matrix;
 import android.graphics.Paint;
 import android.graphics.Rect;
+import android.graphics.RectF;
+import android.graphics.Typeface;
+
+import com.agsw.FabricView.BitmapPool;
 
 /**
  * Created by antwan on 10/3/2015.
  * This class represents a piece of text written on the canvas.
  */
 public class CText extends CDrawable {
-    private static final int MARGIN = 20;
+    /**
+     * Space between the bounds of this object and its text.
+     */
+    public static final int MARGIN = 20;
     private String mText;
 
+    // Measured layout. Valid for the text, paint, text size and typeface it was measured with.
+    private boolean mLayoutValid = false;
+    private Paint mLayoutPaint;
+    private float mLayoutTextSize;
+    private Typeface mLayoutTypeface;
+    private final Paint.FontMetrics mFontMetrics = new Paint.FontMetrics();
+    private final Rect mTextBounds = new Rect();
+    private int mBaselineOffset;
+
+    // Optional rendering of the text with the transforms already applied.
+    private boolean mRenderCacheEnabled = false;
+    private Bitmap mRenderCache;
+    private int mRenderCacheVersion;
+    // The number of pixels of mRenderCache per world unit.
+    private float mRenderCacheScale;
+    private final RectF mRenderCacheBounds = new RectF();
+    private Paint mRenderCachePaint;
+    // The matrix of the canvas being drawn on, to find the scale on screen.
+    private final Matrix mCanvasMatrix = new Matrix();
+    private final float[] mMatrixValues = new float[9];
+
     /**
      * Constructor.
      * Make sure that the paint has a set text size by calling paint.setTextSize().
@@ -27,20 +55,52 @@ public class CText extends CDrawable {
         setText(s);
         setYcoords(y);
         setXcoords(x);
-        calculateTextSizes();
     }
 
+    /**
+     * Measures the text, unless the text and the paint didn't change since the last time.
+     */
     private void calculateTextSizes() {
         Paint p = getPaint();
-        Paint.FontMetrics metric = p.getFontMetrics();
-        int textHeight = (int) Math.ceil(metric.descent - metric.ascent);
-        int y = (int)(textHeight - metric.descent);
+        if (mLayoutValid && mLayoutPaint == p
+                && mLayoutTextSize == p.getTextSize() && mLayoutTypeface == p.getTypeface()) {
+            return;
+        }
+        p.getFontMetrics(mFontMetrics);
+        int textHeight = (int) Math.ceil(mFontMetrics.descent - mFontMetrics.ascent);
+        mBaselineOffset = (int)(textHeight - mFontMetrics.descent);
 
-        Rect bounds = new Rect();
-        getPaint().getTextBounds(getText(), 0, getText().length(), bounds);
+        p.getTextBounds(getText(), 0, getText().length(), mTextBounds);
        // setYcoords(getYcoords() + y);
-        setHeight(bounds.height() + (MARGIN*2));
-        setWidth(bounds.width()+ (MARGIN*2));
+        setHeight(mTextBounds.height() + (MARGIN*2));
+        setWidth(mTextBounds.width()+ (MARGIN*2));
+
+        mLayoutPaint = p;
+        mLayoutTextSize = p.getTextSize();
+        mLayoutTypeface = p.getTypeface();
+        mLayoutValid = true;
+        releaseRenderCache();
+    }
+
+    /**
+     * Forces the text to be measured again. Call this after changing the paint of this object
+     * directly, instead of through setPaint(). Changes to the text size and the typeface are
+     * detected automatically.
+     */
+    public void invalidateLayout() {
+        mLayoutValid = false;
+        releaseRenderCache();
+        if (getText() != null && getPaint() != null) {
+            calculateTextSizes();
+        }
+    }
+
+    /**
+     * @return The distance between the top of the text and its baseline.
+     */
+    public int getBaselineOffset() {
+        calculateTextSizes();
+        return mBaselineOffset;
     }
 
     /**
@@ -49,6 +109,7 @@ public class CText extends CDrawable {
      */
     public void setText(String t) {
         mText = t;
+        mLayoutValid = false;
         calculateTextSizes();
     }
 
@@ -62,32 +123,159 @@ public class CText extends CDrawable {
     @Override
     public void setPaint(Paint p) {
         super.setPaint(p);
+        mLayoutValid = false;
         if(getText() != null) {
             calculateTextSizes();
         }
     }
 
+    /**
+     * Enables or disables keeping a rendering of the text with all the transforms applied to it.
+     * This costs memory, but makes drawing the text a single bitmap copy. The rendering is reused
+     * until the text, the paint or the transforms change, and made for the zoom level of the
+     * canvas so that the text stays sharp.
+     * @param enabled true to keep the rendering. Default is false.
+     */
+    public void setRenderCacheEnabled(boolean enabled) {
+        mRenderCacheEnabled = enabled;
+        if (!enabled) {
+            releaseRenderCache();
+        }
+    }
+
+    /**
+     * @return true if a rendering of the text with all the transforms applied to it is kept.
+     */
+    public boolean isRenderCacheEnabled() {
+        return mRenderCacheEnabled;
+    }
+
     @Override
     public void draw(Canvas canvas) {
-        Paint p = getPaint();
-        Paint.FontMetrics metric = p.getFontMetrics();
-        int textHeight = (int) Math.ceil(metric.descent - metric.ascent);
-        int y = (int)(textHeight - metric.descent);
+        draw(canvas, mRenderCacheEnabled);
+    }
 
-        Matrix matrix = new Matrix();
-        for (CTransform t:
-                getTransforms()) {
-            t.applyTransform(matrix);
+    @Override
+    public void drawUncached(Canvas canvas) {
+        draw(canvas, false);
+    }
+
+    /**
+     * @param useCache true to draw the rendering, creating it if needed.
+     */
+    private void draw(Canvas canvas, boolean useCache) {
+        calculateTextSizes();
+
+        Matrix matrix = getTransformMatrix();
+
+        if (useCache) {
+            // Only a hint: hardware accelerated canvases report no scale.
+            canvas.getMatrix(mCanvasMatrix);
+            float cacheScale = getCacheScale(getScale(mCanvasMatrix, mMatrixValues));
+            Bitmap rendering = cacheScale <= MAX_CACHE_SCALE ? getRenderCache(matrix, cacheScale) : null;
+            if (rendering != null) {
+                if (cacheScale == 1f) {
+                    canvas.drawBitmap(rendering, mRenderCacheBounds.left, mRenderCacheBounds.top, null);
+                }
+                else {
+                    //Pixel for pixel at the zoom it was rendered for, filtered in between.
+                    if (mRenderCachePaint == null) {
+                        mRenderCachePaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+                    }
+                    canvas.drawBitmap(rendering, null, mRenderCacheBounds, mRenderCachePaint);
+                }
+                return;
+            }
+        }
+
+        if (matrix.isIdentity()) {
+            drawText(canvas);
+            return;
+        }
+        canvas.save();
+        canvas.concat(matrix);
+        drawText(canvas);
+        canvas.restore();
+    }
+
+    /**
+     * Draws the text without any transform.
+     * @param canvas The canvas to draw on.
+     */
+    private void drawText(Canvas canvas) {
+        canvas.drawText(getText(), (float) (getXcoords() + MARGIN), (float) (getYcoords() + mBaselineOffset + MARGIN), getPaint());
+    }
+
+    /**
+     * Finds where drawText() puts ink, which can go past the bounds of this object: the baseline
+     * is placed by the ascent of the font, which can be taller than the glyphs.
+     * @param out Receives the area, without the transforms.
+     */
+    private void getGlyphBounds(RectF out) {
+        Paint p = getPaint();
+        float x = getXcoords() + MARGIN;
+        if (p.getTextAlign() == Paint.Align.CENTER) {
+            x -= p.measureText(getText()) / 2;
         }
+        else if (p.getTextAlign() == Paint.Align.RIGHT) {
+            x -= p.measureText(getText());
+        }
+        float baseline = getYcoords() + mBaselineOffset + MARGIN;
+        out.set(x + mTextBounds.left, baseline + mTextBounds.top,
+                x + mTextBounds.right, baseline + mTextBounds.bottom);
+        //Antialiasing, and the outline of stroked text.
+        float padding = 2f;
+        if (p.getStyle() != Paint.Style.FILL) {
+            padding += p.getStrokeWidth() / 2;
+        }
+        out.inset(-padding, -padding);
+    }
 
-        Bitmap canvasBitmap = Bitmap.createBitmap(canvas.getWidth(), canvas.getHeight(), Bitmap.Config.ARGB_8888);
-        Canvas temp = new Canvas(canvasBitmap);
-        temp.save();
+    /**
+     * Returns the rendering of the text with the transforms applied, creating it if the text, the
+     * paint, the transforms or the scale changed. It covers mRenderCacheBounds.
+     * @param matrix The composed transforms.
+     * @param scale The number of pixels of the rendering per world unit.
+     * @return The rendering, or null if it could not be created.
+     */
+    private Bitmap getRenderCache(Matrix matrix, float scale) {
+        if (mRenderCache != null && mRenderCacheVersion == getVersion() && mRenderCacheScale == scale) {
+            return mRenderCache;
+        }
+        getGlyphBounds(mRenderCacheBounds);
+        matrix.mapRect(mRenderCacheBounds);
+        mRenderCacheBounds.set((float) Math.floor(mRenderCacheBounds.left), (float) Math.floor(mRenderCacheBounds.top),
+                (float) Math.ceil(mRenderCacheBounds.right), (float) Math.ceil(mRenderCacheBounds.bottom));
+        int width = (int) Math.ceil(mRenderCacheBounds.width() * scale);
+        int height = (int) Math.ceil(mRenderCacheBounds.height() * scale);
+        if (width <= 0 || height <= 0) {
+            return null;
+        }
+        releaseRenderCache();
+        try {
+            mRenderCache = BitmapPool.getInstance().obtain(width, height, Bitmap.Config.ARGB_8888);
+        }
+        catch (OutOfMemoryError e) {
+            //Fall back to drawing the text directly.
+            mRenderCache = null;
+            return null;
+        }
+        Canvas temp = new Canvas(mRenderCache);
+        temp.scale(scale, scale);
+        temp.translate(-mRenderCacheBounds.left, -mRenderCacheBounds.top);
         temp.concat(matrix);
-        temp.drawText(getText(), (float) (getXcoords() + MARGIN), (float) (getYcoords() + y + MARGIN), p);
-        temp.restore();
+        drawText(temp);
+        mRenderCacheVersion = getVersion();
+        mRenderCacheScale = scale;
+        return mRenderCache;
+    }
 
-        canvas.drawBitmap(canvasBitmap, 0, 0, getPaint());
+    /**
+     * Gives the rendering back to the pool.
+     */
+    private void releaseRenderCache() {
+        BitmapPool.getInstance().release(mRenderCache);
+        mRenderCache = null;
     }
 
     @Override
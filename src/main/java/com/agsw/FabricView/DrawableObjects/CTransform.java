@@ -28,6 +28,17 @@ public abstract class CTransform extends CDrawable {
         this.mDrawable = drawable;
     }
 
+    /**
+     * A change to this transform is a change to the transforms of the drawable it affects.
+     */
+    @Override
+    protected void invalidateGeometry() {
+        super.invalidateGeometry();
+        if (mDrawable != null) {
+            mDrawable.invalidateTransforms();
+        }
+    }
+
     /**
      * This method will use the provided matrix to transform the drawable.
      * @param matrix The matrix to use for the transform.
@@ -46,6 +46,7 @@ public class CTranslation extends CTransform {
      */
     public void setDirection(Vector<Integer> direction) {
         mDirection = direction;
+        invalidateGeometry();
     }
 
     @Override
@@ -0,0 +1,397 @@
+package com.agsw.FabricView.DrawableObjects;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+
+/**
+ * The image of a CBitmap, kept in compressed form and decoded at the resolutions it is drawn at.
+ *
+ * An image created from its compressed data (the content of a PNG or JPEG file) only keeps that
+ * data. It is decoded on demand at a level of detail matching the scale it is drawn at: level 0 is
+ * the full resolution, and each level halves the width and the height. The decoded levels of all
+ * the images share a memory budget, and the ones used least recently are dropped when it is
+ * exceeded, to be decoded again when needed. This keeps pages with many photos within the memory
+ * of small devices.
+ *
+ * An image created from a Bitmap has no compressed data, so the bitmap is kept and used at every
+ * scale.
+ *
+ * Identical images are stored once: share() returns the image already in use with the same
+ * content, found by a hash of the content computed once per image. CBitmap does it for every
+ * image it is given. An image stays shared as long as a drawable refers to it, including the
+ * drawables kept by the undo history.
+ */
+public final class ImageAsset {
+    /**
+     * The coarsest level of detail, a sixteenth of the full resolution.
+     */
+    public static final int MAX_LEVEL = 4;
+    /**
+     * Default memory budget of the decoded levels. Never more than an eighth of the memory
+     * available to the application.
+     */
+    public static final long DEFAULT_MEMORY_BUDGET = 64 * 1024 * 1024;
+
+    // Decoded levels of all the images, the least recently used first. Guarded by sLoaded.
+    private static final LinkedHashSet<Level> sLoaded = new LinkedHashSet<>();
+    private static long sLoadedBytes = 0;
+    private static long sMemoryBudget = Math.min(DEFAULT_MEMORY_BUDGET, Runtime.getRuntime().maxMemory() / 8);
+
+    // The images in use, by content hash. Guarded by sShared. The entries of the images that are
+    // not referred to anymore are removed when the garbage collector clears them.
+    private static final HashMap<Long, ArrayList<SharedReference>> sShared = new HashMap<>();
+    private static final ReferenceQueue<ImageAsset> sUnreferenced = new ReferenceQueue<>();
+
+    private final byte[] mEncoded;
+    private final Bitmap mSource;
+    private final int mWidth;
+    private final int mHeight;
+    private final Level[] mLevels;
+    private long mContentHash;
+    private boolean mContentHashValid = false;
+
+    /**
+     * A decoded level of an image.
+     */
+    private static final class Level {
+        volatile Bitmap bitmap;
+        long bytes;
+    }
+
+    /**
+     * An entry of sShared.
+     */
+    private static final class SharedReference extends WeakReference<ImageAsset> {
+        final long hash;
+
+        SharedReference(ImageAsset asset, long hash) {
+            super(asset, sUnreferenced);
+            this.hash = hash;
+        }
+    }
+
+    /**
+     * Constructor for an image in compressed form.
+     * @param encoded The compressed image, in any format supported by BitmapFactory. Not copied,
+     *                must not be modified.
+     * @throws IllegalArgumentException If the data is not an image.
+     */
+    public ImageAsset(byte[] encoded) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(encoded, 0, encoded.length, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            throw new IllegalArgumentException("Not an image.");
+        }
+        mEncoded = encoded;
+        mSource = null;
+        mWidth = options.outWidth;
+        mHeight = options.outHeight;
+        mLevels = new Level[MAX_LEVEL + 1];
+    }
+
+    /**
+     * Constructor for an image that is already decoded. It is kept as it is.
+     * @param bitmap The image.
+     */
+    public ImageAsset(Bitmap bitmap) {
+        if (bitmap == null) {
+            throw new IllegalArgumentException("The bitmap is null.");
+        }
+        mEncoded = null;
+        mSource = bitmap;
+        mWidth = bitmap.getWidth();
+        mHeight = bitmap.getHeight();
+        mLevels = null;
+    }
+
+    /**
+     * @return The width of the image, at full resolution.
+     */
+    public int getWidth() {
+        return mWidth;
+    }
+
+    /**
+     * @return The height of the image, at full resolution.
+     */
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * @return The compressed image, or null if the image was created from a Bitmap. Must not be
+     * modified.
+     */
+    public byte[] getEncoded() {
+        return mEncoded;
+    }
+
+    /**
+     * Returns a hash of the content of this image, computed the first time. Images with different
+     * hashes are different; images with the same hash are almost certainly the same.
+     * @return The hash.
+     */
+    public synchronized long getContentHash() {
+        if (!mContentHashValid) {
+            mContentHash = mEncoded != null ? hashEncoded(mEncoded) : hashPixels(mSource);
+            mContentHashValid = true;
+        }
+        return mContentHash;
+    }
+
+    /**
+     * @param other Another image.
+     * @return true if both images have the same content. Compares the hashes first.
+     */
+    public boolean contentEquals(ImageAsset other) {
+        if (other == this) {
+            return true;
+        }
+        if (other == null || getContentHash() != other.getContentHash()) {
+            return false;
+        }
+        if (mEncoded != null && other.mEncoded != null) {
+            return Arrays.equals(mEncoded, other.mEncoded);
+        }
+        if (mSource != null && other.mSource != null) {
+            return mSource == other.mSource || mSource.sameAs(other.mSource);
+        }
+        return false;
+    }
+
+    /**
+     * Returns the image in use with the same content as this one, or this one if there is none,
+     * so that identical images are stored once.
+     * @param asset The image.
+     * @return The image to use instead.
+     */
+    public static ImageAsset share(ImageAsset asset) {
+        long hash = asset.getContentHash();
+        synchronized (sShared) {
+            purgeShared();
+            ArrayList<SharedReference> candidates = sShared.get(hash);
+            if (candidates == null) {
+                candidates = new ArrayList<>(1);
+                sShared.put(hash, candidates);
+            }
+            for (SharedReference ref : candidates) {
+                ImageAsset candidate = ref.get();
+                if (candidate != null && candidate.contentEquals(asset)) {
+                    return candidate;
+                }
+            }
+            candidates.add(new SharedReference(asset, hash));
+            return asset;
+        }
+    }
+
+    /**
+     * @return The number of distinct images in use.
+     */
+    public static int getSharedCount() {
+        synchronized (sShared) {
+            purgeShared();
+            int count = 0;
+            for (ArrayList<SharedReference> candidates : sShared.values()) {
+                count += candidates.size();
+            }
+            return count;
+        }
+    }
+
+    /**
+     * Removes the entries of the images that are not referred to anymore.
+     */
+    private static void purgeShared() {
+        Reference<? extends ImageAsset> ref;
+        while ((ref = sUnreferenced.poll()) != null) {
+            SharedReference shared = (SharedReference) ref;
+            ArrayList<SharedReference> candidates = sShared.get(shared.hash);
+            if (candidates != null && candidates.remove(shared) && candidates.isEmpty()) {
+                sShared.remove(shared.hash);
+            }
+        }
+    }
+
+    private static long hashEncoded(byte[] encoded) {
+        //Two native checksums make 64 bits.
+        CRC32 crc = new CRC32();
+        crc.update(encoded, 0, encoded.length);
+        Adler32 adler = new Adler32();
+        adler.update(encoded, 0, encoded.length);
+        return (crc.getValue() << 32) ^ adler.getValue() ^ encoded.length;
+    }
+
+    private static long hashPixels(Bitmap bitmap) {
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        int[] row = new int[width];
+        //FNV-1a, one pixel at a time.
+        long hash = 0xcbf29ce484222325L ^ ((long) width << 32 | height);
+        for (int y = 0; y < height; y++) {
+            bitmap.getPixels(row, 0, width, 0, y, width, 1);
+            for (int x = 0; x < width; x++) {
+                hash = (hash ^ row[x]) * 0x100000001b3L;
+            }
+        }
+        return ~hash;
+    }
+
+    /**
+     * @return The memory kept by this image whatever the scale it is drawn at, in bytes.
+     */
+    public long getRetainedBytes() {
+        return mEncoded != null ? mEncoded.length : mSource.getByteCount();
+    }
+
+    /**
+     * @return The image at full resolution. It is decoded if needed, so prefer getBitmap(scale)
+     * to draw.
+     */
+    public Bitmap getBitmap() {
+        return getBitmap(1);
+    }
+
+    /**
+     * Returns the image at the level of detail matching a scale. The result can be smaller than
+     * the image: draw it stretched to getWidth() and getHeight().
+     * @param scale The number of pixels on screen per pixel of the image.
+     * @return The image, or null if it could not be decoded.
+     */
+    public Bitmap getBitmap(float scale) {
+        if (mSource != null) {
+            return mSource;
+        }
+        Level level;
+        synchronized (this) {
+            int index = getLevel(scale);
+            level = mLevels[index];
+            if (level == null) {
+                level = new Level();
+                mLevels[index] = level;
+            }
+            Bitmap bitmap = level.bitmap;
+            if (bitmap == null) {
+                bitmap = decode(index);
+                if (bitmap == null) {
+                    return null;
+                }
+                level.bitmap = bitmap;
+                level.bytes = bitmap.getByteCount();
+                synchronized (sLoaded) {
+                    sLoaded.add(level);
+                    sLoadedBytes += level.bytes;
+                    trim(sMemoryBudget, level);
+                }
+                return bitmap;
+            }
+        }
+        synchronized (sLoaded) {
+            //Most recently used.
+            if (sLoaded.remove(level)) {
+                sLoaded.add(level);
+            }
+        }
+        Bitmap bitmap = level.bitmap;
+        //Dropped by another thread in the meantime.
+        return bitmap != null ? bitmap : getBitmap(scale);
+    }
+
+    /**
+     * @param scale The number of pixels on screen per pixel of the image.
+     * @return The level of detail to draw at this scale, from 0 to MAX_LEVEL.
+     */
+    public int getLevel(float scale) {
+        int level = 0;
+        //The next level must still have at least as many pixels as the screen.
+        while (level < MAX_LEVEL && scale * (2 << level) <= 1
+                && (mWidth >> (level + 1)) > 0 && (mHeight >> (level + 1)) > 0) {
+            level++;
+        }
+        return level;
+    }
+
+    private Bitmap decode(int level) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = 1 << level;
+        try {
+            return BitmapFactory.decodeByteArray(mEncoded, 0, mEncoded.length, options);
+        }
+        catch (OutOfMemoryError e) {
+            //Give all the other images back and try again.
+            trimMemory();
+            return BitmapFactory.decodeByteArray(mEncoded, 0, mEncoded.length, options);
+        }
+    }
+
+    /**
+     * Setter for the memory budget shared by the decoded levels of all the images. Levels are
+     * dropped as needed.
+     * @param bytes The budget. Default is DEFAULT_MEMORY_BUDGET, or an eighth of the memory
+     *              available to the application if it is less.
+     */
+    public static void setMemoryBudget(long bytes) {
+        synchronized (sLoaded) {
+            sMemoryBudget = bytes;
+            trim(bytes, null);
+        }
+    }
+
+    /**
+     * @return The memory budget shared by the decoded levels of all the images.
+     */
+    public static long getMemoryBudget() {
+        synchronized (sLoaded) {
+            return sMemoryBudget;
+        }
+    }
+
+    /**
+     * @return The memory used by the decoded levels of all the images, in bytes.
+     */
+    public static long getLoadedBytes() {
+        synchronized (sLoaded) {
+            return sLoadedBytes;
+        }
+    }
+
+    /**
+     * Drops all the decoded levels, for example when the system is low on memory. They are
+     * decoded again when drawn.
+     */
+    public static void trimMemory() {
+        synchronized (sLoaded) {
+            trim(0, null);
+        }
+    }
+
+    /**
+     * Drops the least recently used levels until the budget is met. The bitmaps are not recycled,
+     * since they can still be in use by a drawing in progress.
+     * @param keep A level that must not be dropped, or null.
+     */
+    private static void trim(long budget, Level keep) {
+        Iterator<Level> it = sLoaded.iterator();
+        while (sLoadedBytes > budget && it.hasNext()) {
+            Level level = it.next();
+            if (level == keep) {
+                continue;
+            }
+            it.remove();
+            sLoadedBytes -= level.bytes;
+            level.bitmap = null;
+        }
+    }
+}
@@ -0,0 +1,284 @@
+package com.agsw.FabricView.DrawableObjects;
+
+import android.graphics.Paint;
+import android.graphics.Typeface;
+import android.os.Build;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Locale;
+
+/**
+ * The paints of the drawables, shared by all the drawables with the same style.
+ *
+ * Strokes drawn with the same color and size have the same paint, instead of one each: a page of
+ * thousands of strokes holds a handful of paints. The paints are found by their attributes: the
+ * flags, the color, the style, the join, the cap, the alignment, the typeface, the stroke width,
+ * the miter, the text size, skew, scale, hinting and locale, and from Android 5.0 the letter
+ * spacing and the font features. Paints with a path effect, a shader, a color filter, a transfer
+ * mode, a mask filter or a rasterizer are not shared. A shadow layer can't be read back from a
+ * Paint, so paints with one must not be given to intern().
+ *
+ * The paints returned are shared, so they must not be modified: give a drawable a new paint with
+ * setPaint() to change its style. The paints given to intern() are copied, so they can still be
+ * modified by their owner. A paint stays in the table as long as a drawable refers to it.
+ */
+public final class StyleTable {
+    // The attributes of a new Paint.
+    private static final Key sDefaults = new Key();
+
+    // The paints in use. Guarded by sStyles. The entries of the paints that are not referred to
+    // anymore are removed when the garbage collector clears them.
+    private static final HashMap<Key, StyleReference> sStyles = new HashMap<>();
+    private static final ReferenceQueue<Paint> sUnreferenced = new ReferenceQueue<>();
+    // Reused to look the paints up. Guarded by sStyles.
+    private static final Key sLookup = new Key();
+
+    static {
+        sDefaults.set(new Paint());
+    }
+
+    /**
+     * The attributes that tell paints apart.
+     */
+    private static final class Key {
+        int flags;
+        int color;
+        Paint.Style style;
+        Paint.Join join;
+        Paint.Cap cap;
+        Paint.Align align;
+        Typeface typeface;
+        float strokeWidth;
+        float strokeMiter;
+        float textSize;
+        float textSkewX;
+        float textScaleX;
+        int hinting;
+        Locale textLocale;
+        float letterSpacing;
+        String fontFeatureSettings;
+
+        void set(Paint p) {
+            flags = p.getFlags();
+            color = p.getColor();
+            style = p.getStyle();
+            join = p.getStrokeJoin();
+            cap = p.getStrokeCap();
+            align = p.getTextAlign();
+            typeface = p.getTypeface();
+            strokeWidth = p.getStrokeWidth();
+            strokeMiter = p.getStrokeMiter();
+            textSize = p.getTextSize();
+            textSkewX = p.getTextSkewX();
+            textScaleX = p.getTextScaleX();
+            hinting = p.getHinting();
+            textLocale = p.getTextLocale();
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+                letterSpacing = p.getLetterSpacing();
+                fontFeatureSettings = p.getFontFeatureSettings();
+            }
+        }
+
+        void set(Key other) {
+            flags = other.flags;
+            color = other.color;
+            style = other.style;
+            join = other.join;
+            cap = other.cap;
+            align = other.align;
+            typeface = other.typeface;
+            strokeWidth = other.strokeWidth;
+            strokeMiter = other.strokeMiter;
+            textSize = other.textSize;
+            textSkewX = other.textSkewX;
+            textScaleX = other.textScaleX;
+            hinting = other.hinting;
+            textLocale = other.textLocale;
+            letterSpacing = other.letterSpacing;
+            fontFeatureSettings = other.fontFeatureSettings;
+        }
+
+        Paint createPaint() {
+            Paint p = new Paint();
+            p.setFlags(flags);
+            p.setColor(color);
+            p.setStyle(style);
+            p.setStrokeJoin(join);
+            p.setStrokeCap(cap);
+            p.setTextAlign(align);
+            p.setTypeface(typeface);
+            p.setStrokeWidth(strokeWidth);
+            p.setStrokeMiter(strokeMiter);
+            p.setTextSize(textSize);
+            p.setTextSkewX(textSkewX);
+            p.setTextScaleX(textScaleX);
+            p.setHinting(hinting);
+            if (textLocale != null) {
+                p.setTextLocale(textLocale);
+            }
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+                p.setLetterSpacing(letterSpacing);
+                p.setFontFeatureSettings(fontFeatureSettings);
+            }
+            return p;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return flags == other.flags && color == other.color && style == other.style
+                    && join == other.join && cap == other.cap && align == other.align
+                    && typeface == other.typeface
+                    && Float.floatToIntBits(strokeWidth) == Float.floatToIntBits(other.strokeWidth)
+                    && Float.floatToIntBits(strokeMiter) == Float.floatToIntBits(other.strokeMiter)
+                    && Float.floatToIntBits(textSize) == Float.floatToIntBits(other.textSize)
+                    && Float.floatToIntBits(textSkewX) == Float.floatToIntBits(other.textSkewX)
+                    && Float.floatToIntBits(textScaleX) == Float.floatToIntBits(other.textScaleX)
+                    && hinting == other.hinting
+                    && (textLocale == null ? other.textLocale == null : textLocale.equals(other.textLocale))
+                    && Float.floatToIntBits(letterSpacing) == Float.floatToIntBits(other.letterSpacing)
+                    && (fontFeatureSettings == null ? other.fontFeatureSettings == null
+                            : fontFeatureSettings.equals(other.fontFeatureSettings));
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = flags;
+            hash = 31 * hash + color;
+            hash = 31 * hash + (style == null ? 0 : style.ordinal());
+            hash = 31 * hash + (join == null ? 0 : join.ordinal());
+            hash = 31 * hash + (cap == null ? 0 : cap.ordinal());
+            hash = 31 * hash + (align == null ? 0 : align.ordinal());
+            hash = 31 * hash + (typeface == null ? 0 : typeface.hashCode());
+            hash = 31 * hash + Float.floatToIntBits(strokeWidth);
+            hash = 31 * hash + Float.floatToIntBits(strokeMiter);
+            hash = 31 * hash + Float.floatToIntBits(textSize);
+            hash = 31 * hash + Float.floatToIntBits(textSkewX);
+            hash = 31 * hash + Float.floatToIntBits(textScaleX);
+            hash = 31 * hash + hinting;
+            hash = 31 * hash + (textLocale == null ? 0 : textLocale.hashCode());
+            hash = 31 * hash + Float.floatToIntBits(letterSpacing);
+            hash = 31 * hash + (fontFeatureSettings == null ? 0 : fontFeatureSettings.hashCode());
+            return hash;
+        }
+    }
+
+    /**
+     * An entry of sStyles.
+     */
+    private static final class StyleReference extends WeakReference<Paint> {
+        final Key key;
+
+        StyleReference(Paint paint, Key key) {
+            super(paint, sUnreferenced);
+            this.key = key;
+        }
+    }
+
+    private StyleTable() {
+    }
+
+    /**
+     * Returns the shared paint with the same attributes as a paint.
+     * @param p The paint. Can be null. Must not have a shadow layer.
+     * @return The shared paint, or p itself if it is null or cannot be shared.
+     */
+    @SuppressWarnings("deprecation")
+    public static Paint intern(Paint p) {
+        if (p == null || p.getPathEffect() != null || p.getShader() != null
+                || p.getColorFilter() != null || p.getXfermode() != null
+                || p.getMaskFilter() != null || p.getRasterizer() != null) {
+            return p;
+        }
+        synchronized (sStyles) {
+            sLookup.set(p);
+            return lookup();
+        }
+    }
+
+    /**
+     * Returns the shared paint for strokes. The other attributes are those of a new Paint.
+     * @param flags The flags to add to those of a new Paint, such as Paint.ANTI_ALIAS_FLAG.
+     * @param color The color.
+     * @param style The style.
+     * @param join The join.
+     * @param strokeWidth The stroke width.
+     * @return The shared paint. Must not be modified.
+     */
+    public static Paint getStroke(int flags, int color, Paint.Style style, Paint.Join join, float strokeWidth) {
+        synchronized (sStyles) {
+            sLookup.set(sDefaults);
+            sLookup.flags = sDefaults.flags | flags;
+            sLookup.color = color;
+            sLookup.style = style;
+            sLookup.join = join;
+            sLookup.strokeWidth = strokeWidth;
+            return lookup();
+        }
+    }
+
+    /**
+     * Returns the shared paint for text. The other attributes are those of a new Paint.
+     * @param flags The flags to add to those of a new Paint, such as Paint.ANTI_ALIAS_FLAG.
+     * @param color The color.
+     * @param textSize The text size.
+     * @param typeface The typeface, or null for the default one.
+     * @return The shared paint. Must not be modified.
+     */
+    public static Paint getText(int flags, int color, float textSize, Typeface typeface) {
+        synchronized (sStyles) {
+            sLookup.set(sDefaults);
+            sLookup.flags = sDefaults.flags | flags;
+            sLookup.color = color;
+            sLookup.textSize = textSize;
+            sLookup.typeface = typeface;
+            return lookup();
+        }
+    }
+
+    /**
+     * @return The number of distinct paints in use.
+     */
+    public static int getStyleCount() {
+        synchronized (sStyles) {
+            purge();
+            return sStyles.size();
+        }
+    }
+
+    /**
+     * Returns the paint with the attributes of sLookup, creating it if needed. Must hold sStyles.
+     */
+    private static Paint lookup() {
+        purge();
+        StyleReference ref = sStyles.get(sLookup);
+        Paint paint = ref == null ? null : ref.get();
+        if (paint == null) {
+            Key key = new Key();
+            key.set(sLookup);
+            paint = key.createPaint();
+            sStyles.put(key, new StyleReference(paint, key));
+        }
+        return paint;
+    }
+
+    /**
+     * Removes the entries of the paints that are not referred to anymore.
+     */
+    private static void purge() {
+        Reference<? extends Paint> ref;
+        while ((ref = sUnreferenced.poll()) != null) {
+            StyleReference style = (StyleReference) ref;
+            //The entry may already have been replaced by a new paint with the same attributes.
+            if (sStyles.get(style.key) == style) {
+                sStyles.remove(style.key);
+            }
+        }
+    }
+}
@@ -0,0 +1,450 @@
+package com.agsw.FabricView;
+
+import com.agsw.FabricView.DrawableObjects.CDrawable;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * The list of drawables of a FabricDocument, from the bottom to the top of the z-order.
+ *
+ * Every drawable gets a sequence number when it is added. Sequence numbers only grow, so they are
+ * a stable z-order, and a removed drawable can be put back exactly where it was. Drawables are
+ * found by ID, so removing one doesn't search the list: its slot is only marked as empty, and the
+ * empty slots are compacted lazily, the next time the list is accessed by position.
+ *
+ * A drawable can be in the list only once. Adding it again moves it. When add(int, CDrawable)
+ * finds no number left between two neighbours, the numbers above are shifted to make room, and
+ * the ShiftListener is told so that the numbers kept elsewhere can be shifted the same way.
+ */
+final class DrawableStore extends AbstractList<CDrawable> {
+    // Distance between the sequence numbers of consecutive additions, so that add(int, CDrawable)
+    // can usually find a number between two neighbours.
+    private static final long SEQ_STEP = 1 << 16;
+    // Empty slots are compacted as soon as they outnumber the drawables, past this count.
+    private static final int MIN_COMPACTION = 64;
+
+    private CDrawable[] mItems = new CDrawable[16];
+    private long[] mSeqs = new long[16];
+    // Used slots, including the empty ones.
+    private int mSlots = 0;
+    private int mSize = 0;
+    private long mNextSeq = 0;
+    private final HashMap<Long, Long> mSeqById = new HashMap<>();
+    private ShiftListener mShiftListener;
+
+    /**
+     * Told when sequence numbers change.
+     */
+    interface ShiftListener {
+        /**
+         * Called after the sequence numbers from a value were increased to make room for an
+         * insertion. The numbers kept elsewhere, such as those of removed drawables that may be
+         * put back, must be changed with shift().
+         * @param from The smallest sequence number that changed.
+         * @param delta What was added to it and to all the greater ones.
+         */
+        void onShifted(long from, long delta);
+    }
+
+    /**
+     * @param listener Told when sequence numbers change. Can be null.
+     */
+    void setShiftListener(ShiftListener listener) {
+        mShiftListener = listener;
+    }
+
+    /**
+     * @param seq A sequence number, or -1.
+     * @param from As given to ShiftListener.onShifted().
+     * @param delta As given to ShiftListener.onShifted().
+     * @return The sequence number after the shift.
+     */
+    static long shift(long seq, long from, long delta) {
+        return seq >= from ? seq + delta : seq;
+    }
+
+    /**
+     * Adds a drawable at the top of the z-order.
+     * @param d The drawable.
+     * @return Its sequence number.
+     */
+    long append(CDrawable d) {
+        removeDrawable(d);
+        long seq = mNextSeq;
+        mNextSeq += SEQ_STEP;
+        ensureCapacity(mSlots + 1);
+        mItems[mSlots] = d;
+        mSeqs[mSlots] = seq;
+        mSlots++;
+        mSize++;
+        mSeqById.put(d.getId(), seq);
+        modCount++;
+        return seq;
+    }
+
+    /**
+     * Puts a drawable back at a sequence number it had before.
+     * @param d The drawable.
+     * @param seq Its sequence number.
+     */
+    void insert(CDrawable d, long seq) {
+        removeDrawable(d);
+        int slot = Arrays.binarySearch(mSeqs, 0, mSlots, seq);
+        if (slot >= 0) {
+            if (mItems[slot] != null) {
+                //A number kept from before a shift that was not applied. Take the place of the other drawable.
+                CDrawable other = mItems[slot];
+                compactIfNeeded();
+                add(findSlot(other), d);
+                return;
+            }
+            //Its slot was not compacted yet.
+            mItems[slot] = d;
+        }
+        else {
+            slot = -(slot + 1);
+            //An empty neighbour can take the number without breaking the order.
+            if (slot > 0 && mItems[slot - 1] == null) {
+                slot--;
+            }
+            else if (slot == mSlots || mItems[slot] != null) {
+                ensureCapacity(mSlots + 1);
+                System.arraycopy(mItems, slot, mItems, slot + 1, mSlots - slot);
+                System.arraycopy(mSeqs, slot, mSeqs, slot + 1, mSlots - slot);
+                mSlots++;
+            }
+            mItems[slot] = d;
+            mSeqs[slot] = seq;
+        }
+        if (seq >= mNextSeq) {
+            mNextSeq = seq + SEQ_STEP;
+        }
+        mSize++;
+        mSeqById.put(d.getId(), seq);
+        modCount++;
+    }
+
+    /**
+     * Removes a drawable.
+     * @param d The drawable.
+     * @return The sequence number it had, or -1 if it was not in the list.
+     */
+    long removeDrawable(CDrawable d) {
+        int slot = findSlot(d);
+        if (slot < 0) {
+            return -1;
+        }
+        long seq = mSeqs[slot];
+        mItems[slot] = null;
+        mSize--;
+        mSeqById.remove(d.getId());
+        modCount++;
+        if (mSlots - mSize > MIN_COMPACTION && mSlots - mSize > mSize) {
+            compact();
+        }
+        return seq;
+    }
+
+    /**
+     * @param d A drawable.
+     * @return Its sequence number, or -1 if it is not in the list.
+     */
+    long getSeq(CDrawable d) {
+        int slot = findSlot(d);
+        return slot < 0 ? -1 : mSeqs[slot];
+    }
+
+    /**
+     * @return The sequence number of the drawable at the top, or -1 if the list is empty.
+     */
+    long getLastSeq() {
+        for (int i = mSlots - 1; i >= 0; i--) {
+            if (mItems[i] != null) {
+                return mSeqs[i];
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return The drawable at the top, or null if the list is empty.
+     */
+    CDrawable getLast() {
+        for (int i = mSlots - 1; i >= 0; i--) {
+            if (mItems[i] != null) {
+                return mItems[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param seq A sequence number.
+     * @return The drawable with the smallest greater sequence number, or null if there is none.
+     */
+    CDrawable getNext(long seq) {
+        int slot = Arrays.binarySearch(mSeqs, 0, mSlots, seq);
+        slot = slot >= 0 ? slot + 1 : -(slot + 1);
+        for (; slot < mSlots; slot++) {
+            if (mItems[slot] != null) {
+                return mItems[slot];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param seq A sequence number.
+     * @return A copy of the drawables with a greater sequence number, in order.
+     */
+    List<CDrawable> getAfter(long seq) {
+        int slot = Arrays.binarySearch(mSeqs, 0, mSlots, seq);
+        slot = slot >= 0 ? slot + 1 : -(slot + 1);
+        ArrayList<CDrawable> result = new ArrayList<>(Math.max(0, mSlots - slot));
+        for (int i = slot; i < mSlots; i++) {
+            if (mItems[i] != null) {
+                result.add(mItems[i]);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @param index A position, as for get().
+     * @return The sequence number of the drawable at this position.
+     */
+    long getSeqAt(int index) {
+        checkIndex(index, mSize);
+        compactIfNeeded();
+        return mSeqs[index];
+    }
+
+    private int findSlot(CDrawable d) {
+        if (d == null) {
+            return -1;
+        }
+        Long seq = mSeqById.get(d.getId());
+        if (seq == null) {
+            return -1;
+        }
+        int slot = Arrays.binarySearch(mSeqs, 0, mSlots, seq);
+        return slot >= 0 && mItems[slot] == d ? slot : -1;
+    }
+
+    private void compactIfNeeded() {
+        if (mSlots != mSize) {
+            compact();
+        }
+    }
+
+    private void compact() {
+        int j = 0;
+        for (int i = 0; i < mSlots; i++) {
+            if (mItems[i] != null) {
+                mItems[j] = mItems[i];
+                mSeqs[j] = mSeqs[i];
+                j++;
+            }
+        }
+        Arrays.fill(mItems, j, mSlots, null);
+        mSlots = j;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > mItems.length) {
+            int length = Math.max(capacity, mItems.length * 2);
+            mItems = Arrays.copyOf(mItems, length);
+            mSeqs = Arrays.copyOf(mSeqs, length);
+        }
+    }
+
+    private static void checkIndex(int index, int size) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+    }
+
+    /**
+     * Makes room below a slot, by adding SEQ_STEP to its sequence number and to all the greater
+     * ones. Only needed when add(int, CDrawable) finds no room between two neighbours. The numbers
+     * below don't change, and the order of all the numbers, including those kept elsewhere once
+     * the listener shifted them, stays the same.
+     * @param slot The first slot to shift.
+     */
+    private void shiftFrom(int slot) {
+        long from = mSeqs[slot];
+        for (int i = slot; i < mSlots; i++) {
+            mSeqs[i] += SEQ_STEP;
+            if (mItems[i] != null) {
+                mSeqById.put(mItems[i].getId(), mSeqs[i]);
+            }
+        }
+        mNextSeq += SEQ_STEP;
+        modCount++;
+        if (mShiftListener != null) {
+            mShiftListener.onShifted(from, SEQ_STEP);
+        }
+    }
+
+    /*********************************************************************************************/
+    /**************************************     List    ******************************************/
+    /*********************************************************************************************/
+
+    @Override
+    public CDrawable get(int index) {
+        checkIndex(index, mSize);
+        compactIfNeeded();
+        return mItems[index];
+    }
+
+    @Override
+    public int size() {
+        return mSize;
+    }
+
+    @Override
+    public boolean add(CDrawable d) {
+        append(d);
+        return true;
+    }
+
+    @Override
+    public void add(int index, CDrawable d) {
+        checkIndex(index, mSize + 1);
+        removeDrawable(d);
+        if (index >= mSize) {
+            append(d);
+            return;
+        }
+        compactIfNeeded();
+        long before = index == 0 ? -1 : mSeqs[index - 1];
+        if (mSeqs[index] - before < 2) {
+            shiftFrom(index);
+        }
+        insert(d, before + (mSeqs[index] - before) / 2);
+    }
+
+    @Override
+    public CDrawable set(int index, CDrawable d) {
+        checkIndex(index, mSize);
+        compactIfNeeded();
+        CDrawable old = mItems[index];
+        if (old == d) {
+            return old;
+        }
+        int existing = findSlot(d);
+        if (existing >= 0) {
+            //It moves here.
+            mItems[existing] = null;
+            mSize--;
+        }
+        mSeqById.remove(old.getId());
+        mItems[index] = d;
+        mSeqById.put(d.getId(), mSeqs[index]);
+        modCount++;
+        return old;
+    }
+
+    @Override
+    public CDrawable remove(int index) {
+        CDrawable d = get(index);
+        removeDrawable(d);
+        return d;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        return o instanceof CDrawable && removeDrawable((CDrawable) o) >= 0;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return o instanceof CDrawable && findSlot((CDrawable) o) >= 0;
+    }
+
+    @Override
+    public int indexOf(Object o) {
+        if (!(o instanceof CDrawable) || findSlot((CDrawable) o) < 0) {
+            return -1;
+        }
+        compactIfNeeded();
+        return findSlot((CDrawable) o);
+    }
+
+    @Override
+    public int lastIndexOf(Object o) {
+        //A drawable is in the list only once.
+        return indexOf(o);
+    }
+
+    @Override
+    public void clear() {
+        Arrays.fill(mItems, 0, mSlots, null);
+        mSlots = 0;
+        mSize = 0;
+        mSeqById.clear();
+        modCount++;
+    }
+
+    /**
+     * Iterates without compacting the empty slots.
+     */
+    @Override
+    public Iterator<CDrawable> iterator() {
+        return new Iterator<CDrawable>() {
+            private int mNext = skipEmpty(0);
+            private int mLast = -1;
+            private int mExpectedModCount = modCount;
+
+            private int skipEmpty(int slot) {
+                while (slot < mSlots && mItems[slot] == null) {
+                    slot++;
+                }
+                return slot;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return mNext < mSlots;
+            }
+
+            @Override
+            public CDrawable next() {
+                if (modCount != mExpectedModCount) {
+                    throw new ConcurrentModificationException();
+                }
+                if (mNext >= mSlots) {
+                    throw new NoSuchElementException();
+                }
+                mLast = mNext;
+                mNext = skipEmpty(mNext + 1);
+                return mItems[mLast];
+            }
+
+            @Override
+            public void remove() {
+                if (mLast < 0) {
+                    throw new IllegalStateException();
+                }
+                if (modCount != mExpectedModCount) {
+                    throw new ConcurrentModificationException();
+                }
+                CDrawable d = mItems[mLast];
+                //Marks the slot as empty without compacting, so that the positions stay valid.
+                mItems[mLast] = null;
+                mSize--;
+                mSeqById.remove(d.getId());
+                modCount++;
+                mExpectedModCount = modCount;
+                mLast = -1;
+            }
+        };
+    }
+}
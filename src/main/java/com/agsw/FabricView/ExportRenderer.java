@@ -0,0 +1,317 @@
+package com.agsw.FabricView;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Picture;
+import android.graphics.Rect;
+import android.os.Handler;
+import android.os.Looper;
+
+import com.agsw.FabricView.DrawableObjects.CDrawable;
+import com.agsw.FabricView.DrawableObjects.CTransform;
+
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Renders drawables into bitmaps of any size, on a background thread, for exports.
+ *
+ * The drawables are recorded into a Picture on the calling thread, which only costs issuing the
+ * drawing commands. The Picture is an immutable snapshot: the drawables can be modified as soon as
+ * render() returns, while the pixels are produced on the background thread. It doesn't refer to
+ * the bitmaps that drawables keep to be drawn faster, since they go back to BitmapPool when the
+ * drawables change. Only the drawables are drawn, never decorations such as the selection
+ * rectangle. Images too large for memory can be written as PNG with renderPng(). See also FabricView.exportBitmap() and FabricView.exportPng().
+ */
+public class ExportRenderer {
+    // The default thread stops after being idle for this long, in milliseconds.
+    private static final long KEEP_ALIVE = 10000;
+    // Size of a band of a PNG export, in bytes.
+    private static final int BAND_SIZE = 4 * 1024 * 1024;
+
+    /**
+     * Receives the result of render(), on the main thread.
+     */
+    public interface Callback {
+        /**
+         * @param bitmap The rendering.
+         */
+        void onRendered(Bitmap bitmap);
+
+        /**
+         * @param error Why the rendering failed, usually an OutOfMemoryError.
+         */
+        void onFailed(Throwable error);
+    }
+
+    /**
+     * Receives the result of renderPng(), on the main thread.
+     */
+    public interface WriteCallback {
+        /**
+         * Called when the whole image was written.
+         */
+        void onWritten();
+
+        /**
+         * @param error Why the image could not be written.
+         */
+        void onFailed(Throwable error);
+    }
+
+    private final ExecutorService mExecutor;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    // Renders the bands of PNG exports. Created when first needed.
+    private ThreadPoolExecutor mBandExecutor;
+
+    /**
+     * Constructor. Renders on a thread of its own, which only lives while there is work.
+     */
+    public ExportRenderer() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, KEEP_ALIVE, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>());
+        executor.allowCoreThreadTimeOut(true);
+        mExecutor = executor;
+    }
+
+    /**
+     * Constructor.
+     * @param executor Runs the renderings. Not shut down by this object.
+     */
+    public ExportRenderer(ExecutorService executor) {
+        mExecutor = executor;
+    }
+
+    /**
+     * Renders drawables into a new bitmap. Must be called from the thread that modifies the
+     * drawables, usually the main thread.
+     * @param drawables The drawables, in drawing order. Transforms are drawn by their drawable.
+     * @param bounds The area to render, in world coordinates.
+     * @param scale The number of pixels of the bitmap per world unit.
+     * @param backgroundColor The color filling the bitmap before the drawables are drawn.
+     * @param callback Receives the bitmap, on the main thread. Can be null.
+     * @return The bitmap, once rendered. It can be given back to BitmapPool once used. Fails with
+     * the same error as the callback.
+     */
+    public Future<Bitmap> render(Iterable<CDrawable> drawables, Rect bounds, final float scale,
+                                 final int backgroundColor, final Callback callback) {
+        if (bounds.isEmpty()) {
+            throw new IllegalArgumentException("The bounds are empty.");
+        }
+        if (!(scale > 0)) {
+            throw new IllegalArgumentException("The scale must be positive: " + scale);
+        }
+        final Picture snapshot = record(drawables, bounds);
+        final int width = (int) Math.ceil(bounds.width() * scale);
+        final int height = (int) Math.ceil(bounds.height() * scale);
+        return mExecutor.submit(new Callable<Bitmap>() {
+            @Override
+            public Bitmap call() throws Exception {
+                final Bitmap result;
+                try {
+                    result = BitmapPool.getInstance().obtain(width, height, Bitmap.Config.ARGB_8888);
+                    Canvas canvas = new Canvas(result);
+                    if (backgroundColor != Color.TRANSPARENT) {
+                        canvas.drawColor(backgroundColor);
+                    }
+                    canvas.scale(scale, scale);
+                    canvas.drawPicture(snapshot);
+                }
+                catch (final Throwable e) {
+                    if (callback != null) {
+                        mMainHandler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                callback.onFailed(e);
+                            }
+                        });
+                    }
+                    if (e instanceof Exception) {
+                        throw (Exception) e;
+                    }
+                    throw (Error) e;
+                }
+                if (callback != null) {
+                    mMainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            callback.onRendered(result);
+                        }
+                    });
+                }
+                return result;
+            }
+        });
+    }
+
+    /**
+     * Renders drawables into a PNG image, without ever holding the whole image in memory. The
+     * image is rendered in horizontal bands, in parallel, and the bands are encoded in order as
+     * they are done, so only a few bands are in memory at a time. This is the way to export at
+     * printing resolutions. Must be called from the thread that modifies the drawables.
+     * @param drawables The drawables, in drawing order. Transforms are drawn by their drawable.
+     * @param bounds The area to render, in world coordinates.
+     * @param scale The number of pixels of the image per world unit.
+     * @param backgroundColor The color filling the image before the drawables are drawn. If it is
+     *                        opaque, the image has no alpha channel.
+     * @param out The stream to write the image to. Not closed. Must not be used until done.
+     * @param callback Told when the image is written, on the main thread. Can be null.
+     * @return Done when the image is written. Fails with the same error as the callback.
+     */
+    public Future<Void> renderPng(Iterable<CDrawable> drawables, Rect bounds, final float scale,
+                                  final int backgroundColor, final OutputStream out,
+                                  final WriteCallback callback) {
+        if (bounds.isEmpty()) {
+            throw new IllegalArgumentException("The bounds are empty.");
+        }
+        if (!(scale > 0)) {
+            throw new IllegalArgumentException("The scale must be positive: " + scale);
+        }
+        final Picture snapshot = record(drawables, bounds);
+        final int width = (int) Math.ceil(bounds.width() * scale);
+        final int height = (int) Math.ceil(bounds.height() * scale);
+        final ExecutorService bandExecutor = getBandExecutor();
+        return mExecutor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                try {
+                    writePng(snapshot, width, height, scale, backgroundColor, out, bandExecutor);
+                }
+                catch (final Throwable e) {
+                    if (callback != null) {
+                        mMainHandler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                callback.onFailed(e);
+                            }
+                        });
+                    }
+                    if (e instanceof Exception) {
+                        throw (Exception) e;
+                    }
+                    throw (Error) e;
+                }
+                if (callback != null) {
+                    mMainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            callback.onWritten();
+                        }
+                    });
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Stops the thread once the renderings already requested are done. Only for the default
+     * constructor.
+     */
+    public void shutdown() {
+        mExecutor.shutdown();
+        synchronized (this) {
+            if (mBandExecutor != null) {
+                mBandExecutor.shutdown();
+            }
+        }
+    }
+
+    /**
+     * @return The pool rendering the bands, with a thread per core that stops when idle.
+     */
+    private synchronized ExecutorService getBandExecutor() {
+        if (mBandExecutor == null) {
+            int threads = Runtime.getRuntime().availableProcessors();
+            mBandExecutor = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<Runnable>());
+            mBandExecutor.allowCoreThreadTimeOut(true);
+        }
+        return mBandExecutor;
+    }
+
+    /**
+     * Renders the bands of a PNG export on a pool, and encodes them in order. Runs on mExecutor.
+     * The bitmaps of the bands are given back to the pool once encoded, for the next bands.
+     */
+    private static void writePng(final Picture snapshot, final int width, int height, final float scale,
+                                 final int backgroundColor, OutputStream out,
+                                 ExecutorService bandExecutor) throws Exception {
+        final int bandHeight = Math.max(1, Math.min(height, BAND_SIZE / 4 / width));
+        int bandCount = (height + bandHeight - 1) / bandHeight;
+        //One band being encoded while each thread renders one.
+        int maxPending = Runtime.getRuntime().availableProcessors() + 1;
+        ArrayDeque<Future<Bitmap>> pending = new ArrayDeque<>();
+        int next = 0;
+        try {
+            PngEncoder encoder = new PngEncoder(out, width, height, Color.alpha(backgroundColor) != 255);
+            for (int band = 0; band < bandCount; band++) {
+                while (next < bandCount && pending.size() < maxPending) {
+                    final int top = next++ * bandHeight;
+                    pending.add(bandExecutor.submit(new Callable<Bitmap>() {
+                        @Override
+                        public Bitmap call() {
+                            Bitmap bitmap = BitmapPool.getInstance().obtain(width, bandHeight, Bitmap.Config.ARGB_8888);
+                            bitmap.eraseColor(backgroundColor);
+                            Canvas canvas = new Canvas(bitmap);
+                            canvas.translate(0, -top);
+                            canvas.scale(scale, scale);
+                            canvas.drawPicture(snapshot);
+                            return bitmap;
+                        }
+                    }));
+                }
+                Bitmap bitmap;
+                try {
+                    bitmap = pending.poll().get();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof Exception) {
+                        throw (Exception) e.getCause();
+                    }
+                    throw (Error) e.getCause();
+                }
+                encoder.writeRows(bitmap, Math.min(bandHeight, height - band * bandHeight));
+                BitmapPool.getInstance().release(bitmap);
+            }
+            encoder.finish();
+        } finally {
+            for (Future<Bitmap> f : pending) {
+                f.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Records drawables into a Picture that can be drawn from any thread.
+     * @param drawables The drawables, in drawing order.
+     * @param bounds The area to record, in world coordinates. It is moved to the origin of the
+     *               Picture.
+     * @return The Picture, the size of the bounds.
+     */
+    static Picture record(Iterable<CDrawable> drawables, Rect bounds) {
+        Picture picture = new Picture();
+        Canvas canvas = picture.beginRecording(bounds.width(), bounds.height());
+        canvas.translate(-bounds.left, -bounds.top);
+        for (CDrawable d : drawables) {
+            if (d instanceof CTransform) {
+                continue; //Drawn by its drawable.
+            }
+            try {
+                //The Picture is played later, when cached bitmaps may have been reused.
+                d.drawUncached(canvas);
+            } catch (Exception ex) {
+                ex.printStackTrace();
+            }
+        }
+        picture.endRecording();
+        return picture;
+    }
+}
@@ -0,0 +1,568 @@
+package com.agsw.FabricView;
+
+import android.graphics.Matrix;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.os.Handler;
+import android.os.Looper;
+
+import com.agsw.FabricView.DrawableObjects.CDrawable;
+import com.agsw.FabricView.DrawableObjects.CPath;
+import com.agsw.FabricView.DrawableObjects.CTransform;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * The drawables of a FabricView, from the bottom to the top of the z-order, separate from the view
+ * so that other threads can read them.
+ *
+ * The document has a single writer: it can only be modified from the thread that created it,
+ * usually the main thread. Other threads read it through getSnapshot(), which returns an
+ * immutable copy of the list, without locking and without copying. Adding a drawable at the top,
+ * or removing the one at the top, publishes a snapshot at once, sharing the storage of the
+ * previous one. Any other change only marks the snapshot as stale: a new one is published once,
+ * after all the changes made while handling the current message of the writer's Looper, so a
+ * batch of changes, such as deleting a selection or undoing a move, copies the list only once.
+ * On the writer thread, getSnapshot() publishes the pending changes first; other threads get the
+ * last snapshot published. A snapshot can be iterated from any thread while the document keeps
+ * changing, for example to save or export in the background.
+ *
+ * The drawables themselves are shared with the snapshots, and are only safe to read from another
+ * thread once they are not edited anymore. Drawables being edited, such as the stroke in
+ * progress, are left out of the snapshots between beginEdit() and endEdit(). The transforms of
+ * the drawables keep changing, and the lines of paths are replaced when transforms are folded
+ * into them, so neither is safe to read from another thread: instead, each snapshot holds the
+ * composed transform of every drawable, made of the transforms that are in the snapshot, and the
+ * lines of every path, as they were when it was taken. Read them with
+ * Snapshot.getTransformMatrix(), Snapshot.getGeometry() and Snapshot.computeBounds(), never with
+ * the methods of the drawables.
+ */
+public final class FabricDocument extends AbstractList<CDrawable> implements RandomAccess {
+    private final DrawableStore mStore = new DrawableStore();
+    private final Thread mWriter;
+
+    // Drawables left out of the snapshots. Usually none or one.
+    private final ArrayList<CDrawable> mEditing = new ArrayList<>(2);
+
+    // Storage of the latest snapshot, of mSharedSize items. Drawables added at the top are
+    // written after them, unless an older snapshot reads that far (mSharedLimit).
+    // The composed transforms and the lines of the drawables of the latest snapshot are stored
+    // with the same indices.
+    private CDrawable[] mShared = new CDrawable[16];
+    private float[][] mSharedMatrices = new float[16][];
+    private CPath.Geometry[] mSharedGeometries = new CPath.Geometry[16];
+    private int mSharedSize = 0;
+    private int mSharedLimit = 0;
+    private volatile Snapshot mSnapshot = new Snapshot(mShared, mSharedMatrices, mSharedGeometries, 0);
+    // Reused to compose the transforms of the drawables being published.
+    private final Matrix mComposed = new Matrix();
+
+    // true when the list changed since the latest snapshot. Only used by the writer.
+    private boolean mStale = false;
+    // Publishes the pending changes once the current message is handled. null if the writer has
+    // no Looper, in which case every change is published at once.
+    private final Handler mHandler;
+    private final Runnable mPublishPending = new Runnable() {
+        @Override
+        public void run() {
+            if (mStale) {
+                publishAll();
+            }
+        }
+    };
+
+    /**
+     * An immutable list of drawables, as they were when it was taken.
+     */
+    public static final class Snapshot extends AbstractList<CDrawable> implements RandomAccess {
+        private final CDrawable[] mItems;
+        // The values of the composed transforms, or null for none. Never modified.
+        private final float[][] mMatrices;
+        // The lines of the paths, or null for other drawables.
+        private final CPath.Geometry[] mGeometries;
+        private final int mSize;
+
+        private Snapshot(CDrawable[] items, float[][] matrices, CPath.Geometry[] geometries, int size) {
+            mItems = items;
+            mMatrices = matrices;
+            mGeometries = geometries;
+            mSize = size;
+        }
+
+        @Override
+        public CDrawable get(int index) {
+            checkIndex(index);
+            return mItems[index];
+        }
+
+        /**
+         * The composition of the transforms of a drawable, as it was when the snapshot was
+         * taken. Unlike CDrawable.getTransformMatrix(), can be called from any thread.
+         * @param index The index of the drawable.
+         * @param out Receives the transform. Identity for transforms.
+         * @return out.
+         */
+        public Matrix getTransformMatrix(int index, Matrix out) {
+            checkIndex(index);
+            float[] values = mMatrices[index];
+            if (values == null) {
+                out.reset();
+            }
+            else {
+                out.setValues(values);
+            }
+            return out;
+        }
+
+        /**
+         * The lines of a path, as they were when the snapshot was taken. Unlike the getters of
+         * CPath, can be called from any thread.
+         * @param index The index of the drawable.
+         * @return The lines, or null if the drawable is not a CPath.
+         */
+        public CPath.Geometry getGeometry(int index) {
+            checkIndex(index);
+            return mGeometries[index];
+        }
+
+        /**
+         * The bounds of a drawable with its transforms, as they were when the snapshot was taken.
+         * Unlike CDrawable.computeBounds(), can be called from any thread.
+         * @param index The index of the drawable.
+         * @param out Receives the bounds.
+         * @return out.
+         */
+        public Rect computeBounds(int index, Rect out) {
+            CDrawable d = get(index);
+            CPath.Geometry geometry = mGeometries[index];
+            if (geometry != null) {
+                geometry.getBounds(out);
+            }
+            else {
+                out.set(d.getXcoords(), d.getYcoords(), d.getXcoords() + d.getWidth(),
+                        d.getYcoords() + d.getHeight());
+            }
+            float[] values = mMatrices[index];
+            if (values != null) {
+                RectF bounds = new RectF(out);
+                Matrix matrix = new Matrix();
+                matrix.setValues(values);
+                matrix.mapRect(bounds);
+                bounds.round(out);
+            }
+            return out;
+        }
+
+        private void checkIndex(int index) {
+            if (index < 0 || index >= mSize) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + mSize);
+            }
+        }
+
+        @Override
+        public int size() {
+            return mSize;
+        }
+    }
+
+    /**
+     * Constructor. The document can only be modified from the calling thread.
+     */
+    public FabricDocument() {
+        mWriter = Thread.currentThread();
+        Looper looper = Looper.myLooper();
+        mHandler = looper == null ? null : new Handler(looper);
+    }
+
+    /**
+     * @return The drawables. On the writer thread, as of the last modification. On other threads,
+     * as of the last batch of modifications. Can be called from any thread.
+     */
+    public Snapshot getSnapshot() {
+        if (Thread.currentThread() == mWriter && mStale) {
+            publishAll();
+        }
+        return mSnapshot;
+    }
+
+    /**
+     * @return The thread that can modify the document.
+     */
+    public Thread getWriterThread() {
+        return mWriter;
+    }
+
+    /**
+     * Leaves a drawable out of the snapshots while it is being edited. It is put back at its
+     * place by endEdit(), or forgotten if it is removed.
+     * @param d The drawable, in the document or about to be added.
+     */
+    public void beginEdit(CDrawable d) {
+        checkWriter();
+        if (d != null && !mEditing.contains(d)) {
+            mEditing.add(d);
+            if (mStore.contains(d)) {
+                publishLater();
+            }
+        }
+    }
+
+    /**
+     * Puts a drawable left out by beginEdit() back in the snapshots.
+     * @param d The drawable.
+     */
+    public void endEdit(CDrawable d) {
+        checkWriter();
+        if (d == null || !mEditing.remove(d) || !mStore.contains(d)) {
+            return;
+        }
+        if (mStore.getLast() == d) {
+            publishAppend(d);
+        }
+        else {
+            publishLater();
+        }
+    }
+
+    /**
+     * @throws IllegalStateException If the calling thread is not the writer.
+     */
+    private void checkWriter() {
+        if (Thread.currentThread() != mWriter) {
+            throw new IllegalStateException("The document can only be modified from the thread that created it.");
+        }
+    }
+
+    /**
+     * Publishes a snapshot with a drawable added at the top of the previous one.
+     */
+    private void publishAppend(CDrawable d) {
+        if (mEditing.contains(d)) {
+            return;
+        }
+        if (mStale || d instanceof CTransform) {
+            //A transform moves its drawable, which is already in the snapshots.
+            publishLater();
+            return;
+        }
+        if (mSharedSize == mShared.length || mSharedSize < mSharedLimit) {
+            //Older snapshots keep the previous storage.
+            mShared = Arrays.copyOf(mShared, Math.max(16, mSharedSize * 2));
+            mSharedMatrices = Arrays.copyOf(mSharedMatrices, mShared.length);
+            mSharedGeometries = Arrays.copyOf(mSharedGeometries, mShared.length);
+            mSharedLimit = mSharedSize;
+        }
+        mShared[mSharedSize] = d;
+        mSharedMatrices[mSharedSize] = freezeTransforms(d);
+        mSharedGeometries[mSharedSize++] = d instanceof CPath ? ((CPath) d).getGeometry() : null;
+        mSharedLimit = mSharedSize;
+        mSnapshot = new Snapshot(mShared, mSharedMatrices, mSharedGeometries, mSharedSize);
+    }
+
+    /**
+     * Marks the snapshot as stale, to publish the whole list once the current batch of changes
+     * is done.
+     */
+    private void publishLater() {
+        if (mHandler == null) {
+            publishAll();
+            return;
+        }
+        if (!mStale) {
+            mStale = true;
+            mHandler.post(mPublishPending);
+        }
+    }
+
+    /**
+     * Publishes a snapshot of the whole list, in new storage.
+     */
+    private void publishAll() {
+        mStale = false;
+        CDrawable[] items = new CDrawable[Math.max(16, mStore.size() + mStore.size() / 2)];
+        float[][] matrices = new float[items.length][];
+        CPath.Geometry[] geometries = new CPath.Geometry[items.length];
+        int size = 0;
+        for (CDrawable d : mStore) {
+            if (mEditing.isEmpty() || !mEditing.contains(d)) {
+                matrices[size] = freezeTransforms(d);
+                //The same object as long as the lines don't change.
+                geometries[size] = d instanceof CPath ? ((CPath) d).getGeometry() : null;
+                items[size++] = d;
+            }
+        }
+        mShared = items;
+        mSharedMatrices = matrices;
+        mSharedGeometries = geometries;
+        mSharedSize = size;
+        mSharedLimit = size;
+        mSnapshot = new Snapshot(items, matrices, geometries, size);
+    }
+
+    /**
+     * Composes the transforms of a drawable that are in the snapshots, for a new snapshot.
+     * @return The values of the matrix, or null if there are none.
+     */
+    private float[] freezeTransforms(CDrawable d) {
+        if (d instanceof CTransform || !d.hasTransforms()) {
+            return null;
+        }
+        List<CTransform> transforms = d.getTransforms();
+        boolean allPublished = true;
+        for (CTransform t : transforms) {
+            if (!isPublished(t)) {
+                allPublished = false;
+                break;
+            }
+        }
+        Matrix matrix = d.getTransformMatrix();
+        if (!allPublished) {
+            //Without the transform being dragged, or not put back in the list yet.
+            matrix = mComposed;
+            matrix.reset();
+            for (CTransform t : transforms) {
+                if (isPublished(t)) {
+                    t.applyTransform(matrix);
+                }
+            }
+        }
+        if (matrix.isIdentity()) {
+            return null;
+        }
+        float[] values = new float[9];
+        matrix.getValues(values);
+        return values;
+    }
+
+    /**
+     * @return true if a drawable is in the list, and not left out of the snapshots.
+     */
+    private boolean isPublished(CDrawable d) {
+        return mStore.contains(d) && (mEditing.isEmpty() || !mEditing.contains(d));
+    }
+
+    /**
+     * Publishes the list after a drawable was added, cheaply if it went to the top.
+     * @param wasInList true if it was in the list before, and so was moved.
+     */
+    private void published(CDrawable d, boolean wasInList) {
+        if (!wasInList && mStore.getLast() == d) {
+            publishAppend(d);
+        }
+        else {
+            publishLater();
+        }
+    }
+
+    /**
+     * Called after a drawable was removed.
+     */
+    private void unpublish(CDrawable d) {
+        if (mEditing.remove(d)) {
+            return; //It was not in the snapshots.
+        }
+        if (!mStale && !(d instanceof CTransform) && mSharedSize > 0 && mShared[mSharedSize - 1] == d) {
+            //Removed from the top, as by undo(): the storage is still shared.
+            mSharedSize--;
+            mSnapshot = new Snapshot(mShared, mSharedMatrices, mSharedGeometries, mSharedSize);
+            return;
+        }
+        publishLater();
+    }
+
+    /**
+     * Publishes the new position of a drawable whose transforms were attached, detached or
+     * folded, or whose lines were replaced, without adding or removing anything from the list.
+     * Changes to the transforms being edited are published by endEdit().
+     * @param d The drawable.
+     */
+    void transformsChanged(CDrawable d) {
+        checkWriter();
+        if (isPublished(d)) {
+            publishLater();
+        }
+    }
+
+    /*********************************************************************************************/
+    /**********************************     Sequence numbers    **********************************/
+    /*********************************************************************************************/
+
+    /**
+     * Adds a drawable at the top of the z-order.
+     * @param d The drawable.
+     * @return Its sequence number.
+     * @see DrawableStore#append(CDrawable)
+     */
+    long append(CDrawable d) {
+        checkWriter();
+        boolean wasInList = mStore.contains(d);
+        long seq = mStore.append(d);
+        modCount++;
+        published(d, wasInList);
+        return seq;
+    }
+
+    /**
+     * Puts a drawable back at a sequence number it had before.
+     * @param d The drawable.
+     * @param seq Its sequence number.
+     */
+    void insert(CDrawable d, long seq) {
+        checkWriter();
+        boolean wasInList = mStore.contains(d);
+        mStore.insert(d, seq);
+        modCount++;
+        published(d, wasInList);
+    }
+
+    /**
+     * Removes a drawable.
+     * @param d The drawable.
+     * @return The sequence number it had, or -1 if it was not in the list.
+     */
+    long removeDrawable(CDrawable d) {
+        checkWriter();
+        long seq = mStore.removeDrawable(d);
+        if (seq >= 0) {
+            modCount++;
+            unpublish(d);
+        }
+        return seq;
+    }
+
+    long getSeq(CDrawable d) {
+        return mStore.getSeq(d);
+    }
+
+    long getLastSeq() {
+        return mStore.getLastSeq();
+    }
+
+    CDrawable getNext(long seq) {
+        return mStore.getNext(seq);
+    }
+
+    List<CDrawable> getAfter(long seq) {
+        return mStore.getAfter(seq);
+    }
+
+    long getSeqAt(int index) {
+        return mStore.getSeqAt(index);
+    }
+
+    /**
+     * @param listener Told when the sequence numbers are shifted by add(int, CDrawable). Can be null.
+     */
+    void setShiftListener(DrawableStore.ShiftListener listener) {
+        mStore.setShiftListener(listener);
+    }
+
+    /*********************************************************************************************/
+    /**************************************     List    ******************************************/
+    /*********************************************************************************************/
+
+    @Override
+    public CDrawable get(int index) {
+        return mStore.get(index);
+    }
+
+    @Override
+    public int size() {
+        return mStore.size();
+    }
+
+    @Override
+    public boolean add(CDrawable d) {
+        append(d);
+        return true;
+    }
+
+    @Override
+    public void add(int index, CDrawable d) {
+        checkWriter();
+        boolean wasInList = mStore.contains(d);
+        mStore.add(index, d);
+        modCount++;
+        published(d, wasInList);
+    }
+
+    @Override
+    public CDrawable set(int index, CDrawable d) {
+        checkWriter();
+        CDrawable old = mStore.set(index, d);
+        if (old != d) {
+            modCount++;
+            mEditing.remove(old);
+            publishLater();
+        }
+        return old;
+    }
+
+    @Override
+    public CDrawable remove(int index) {
+        CDrawable d = get(index);
+        removeDrawable(d);
+        return d;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        return o instanceof CDrawable && removeDrawable((CDrawable) o) >= 0;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return mStore.contains(o);
+    }
+
+    @Override
+    public int indexOf(Object o) {
+        return mStore.indexOf(o);
+    }
+
+    @Override
+    public int lastIndexOf(Object o) {
+        return mStore.lastIndexOf(o);
+    }
+
+    @Override
+    public void clear() {
+        checkWriter();
+        mStore.clear();
+        mEditing.clear();
+        modCount++;
+        publishLater();
+    }
+
+    @Override
+    public Iterator<CDrawable> iterator() {
+        final Iterator<CDrawable> it = mStore.iterator();
+        return new Iterator<CDrawable>() {
+            private CDrawable mLast;
+
+            @Override
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+
+            @Override
+            public CDrawable next() {
+                mLast = it.next();
+                return mLast;
+            }
+
+            @Override
+            public void remove() {
+                checkWriter();
+                it.remove();
+                modCount++;
+                unpublish(mLast);
+            }
+        };
+    }
+}
@@ -0,0 +1,668 @@
+package com.agsw.FabricView;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.util.AttributeSet;
+import android.view.MotionEvent;
+import android.view.SurfaceHolder;
+import android.view.SurfaceView;
+
+import com.agsw.FabricView.DrawableObjects.CDrawable;
+import com.agsw.FabricView.DrawableObjects.CPath;
+import com.agsw.FabricView.DrawableObjects.CTransform;
+import com.agsw.FabricView.DrawableObjects.StyleTable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * A variant of FabricView that draws on a SurfaceView, from its own render thread.
+ *
+ * The UI thread only records the touch samples and hands them to the render thread in batches.
+ * The render thread builds the strokes and draws them into the surface on its own schedule, so
+ * the ink keeps up even when the UI thread is busy with layouts or app code.
+ * It uses the same drawables as FabricView, but only supports drawing: there is no selection,
+ * rotation or viewport.
+ * <H1>Layout</H1>
+ * Create a view in your layout, like this: <pre>
+ &lt;com.agsw.FabricView.FabricSurfaceView
+ android:id="@+id/my_fabric_view"
+ android:layout_width="match_parent"
+ android:layout_height="match_parent"
+ /&gt;</pre>
+ * <H1>Activity code</H1>
+ * The configuration is the same as for FabricView, and can be changed from the UI thread at any
+ * time: <pre>
+FabricSurfaceView myFabricView = (FabricSurfaceView) parent.findViewById(R.id.my_fabric_view);
+myFabricView.setBackgroundMode(FabricView.BACKGROUND_STYLE_NOTEBOOK_PAPER);
+myFabricView.setColor(R.color.purple); //Line color
+myFabricView.setSize(10); //Line width
+myFabricView.setInteractionMode(FabricView.LOCKED_MODE); //Only DRAW_MODE* and LOCKED_MODE are supported.
+myFabricView.cleanPage(); //Erases everything.
+myFabricView.undo(); //Removes the last object.
+List&lt;CDrawable&gt; drawablesList = myFabricView.getDrawablesList(); //Returns a copy of all the drawables of the view.</pre>
+ * The drawables given to addDrawable() are drawn by the render thread, so they must not be
+ * modified afterwards.
+ */
+public class FabricSurfaceView extends SurfaceView implements SurfaceHolder.Callback {
+
+    /**********************************************************************************************/
+    /*************************************     Vars    *******************************************/
+    /*********************************************************************************************/
+    private static final float TOUCH_TOLERANCE = 4;
+    private static final int DAMAGE_PADDING = 2;
+    // Floats per queued touch sample: the action, then the position.
+    private static final int SAMPLE_SIZE = 3;
+
+    // Configuration. Written by the UI thread, read by the render thread.
+    private volatile int mColor = Color.BLACK;
+    private volatile int mBackgroundColor = Color.WHITE;
+    private volatile int mBackgroundMode = FabricView.BACKGROUND_STYLE_BLANK;
+    private volatile Paint.Style mStyle = Paint.Style.STROKE;
+    private volatile float mSize = 5f;
+    private int mInteractionMode = FabricView.DRAW_MODE;
+
+    // Touch samples waiting for the render thread.
+    private final Object mInputLock = new Object();
+    private float[] mPendingSamples = new float[64 * SAMPLE_SIZE];
+    private int mPendingCount = 0;
+    private boolean mInputScheduled = false;
+    // The batch being processed. Swapped with mPendingSamples, so neither is reallocated.
+    private float[] mSamples = new float[64 * SAMPLE_SIZE];
+
+    // Only used by the UI thread. Null while the view is detached, in which case the work is done
+    // on the calling thread.
+    private HandlerThread mRenderThread;
+    private Handler mRenderHandler;
+
+    // Only used by the render thread. The list is also locked when modified, so that the UI
+    // thread can copy it.
+    private final DrawableStore mDrawableList = new DrawableStore();
+    private SurfaceHolder mSurface;
+    private Bitmap mContent;
+    private Canvas mContentCanvas;
+    private CPath mCurrentPath;
+    private float mStrokeWidth;
+    private float mLastTouchX, mLastTouchY;
+    private float mStrokeEndX, mStrokeEndY;
+    private final RectF mDirtyRect = new RectF();
+    private final Rect mDirty = new Rect();
+    private final Paint mCopyPaint = new Paint();
+    private final Paint mLinePaint = new Paint();
+
+    /**
+     *  Constructor, sets defaut values.
+     *
+     * @param context the activity that containts the view
+     * @param attrs   view attributes
+     */
+    public FabricSurfaceView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+
+        setFocusable(true);
+        setFocusableInTouchMode(true);
+        getHolder().addCallback(this);
+
+        //The surface may hold an older frame, which must be replaced and not blended with.
+        mCopyPaint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.SRC));
+        mLinePaint.setColor(Color.argb(50, 0, 0, 0));
+        mLinePaint.setStrokeJoin(Paint.Join.ROUND);
+    }
+
+    /**********************************************************************************************/
+    /*********************************     Render thread    ***************************************/
+    /*********************************************************************************************/
+
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        mRenderThread = new HandlerThread("FabricSurfaceView", Process.THREAD_PRIORITY_DISPLAY);
+        mRenderThread.start();
+        mRenderHandler = new Handler(mRenderThread.getLooper());
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        //Let the render thread finish the work already handed to it, then stop it.
+        mRenderHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                Looper.myLooper().quit();
+            }
+        });
+        try {
+            mRenderThread.join();
+        } catch (InterruptedException e) {
+            //Do nothing
+        }
+        mRenderThread = null;
+        mRenderHandler = null;
+        super.onDetachedFromWindow();
+    }
+
+    /**
+     * Runs some work on the render thread, or right away if the view is detached.
+     * @param r The work.
+     */
+    private void runOnRenderThread(Runnable r) {
+        if (mRenderHandler == null) {
+            r.run();
+        }
+        else {
+            mRenderHandler.post(r);
+        }
+    }
+
+    @Override
+    public void surfaceCreated(SurfaceHolder holder) {
+        //Nothing to draw until the size is known.
+    }
+
+    @Override
+    public void surfaceChanged(final SurfaceHolder holder, int format, final int width, final int height) {
+        runOnRenderThread(new Runnable() {
+            @Override
+            public void run() {
+                mSurface = holder;
+                resizeContent(width, height);
+                renderFrame(null);
+            }
+        });
+    }
+
+    @Override
+    public void surfaceDestroyed(SurfaceHolder holder) {
+        //The surface can't be used after this returns, so wait for the render thread to let go of it.
+        final CountDownLatch released = new CountDownLatch(1);
+        runOnRenderThread(new Runnable() {
+            @Override
+            public void run() {
+                mSurface = null;
+                released.countDown();
+            }
+        });
+        try {
+            released.await();
+        } catch (InterruptedException e) {
+            //Do nothing
+        }
+    }
+
+    /**
+     * Draws the content cache and the stroke in progress into the surface.
+     * @param dirty The part of the surface to draw, or null for all of it.
+     */
+    private void renderFrame(Rect dirty) {
+        if (mSurface == null) {
+            return;
+        }
+        Canvas canvas = dirty == null ? mSurface.lockCanvas() : mSurface.lockCanvas(dirty);
+        if (canvas == null) {
+            //The surface is not ready.
+            return;
+        }
+        try {
+            if (mContent != null) {
+                canvas.drawBitmap(mContent, 0, 0, mCopyPaint);
+            }
+            else {
+                drawContent(canvas);
+            }
+            if (mCurrentPath != null) {
+                mCurrentPath.draw(canvas);
+            }
+        } catch (Exception ex) {
+            ex.printStackTrace();
+        } finally {
+            mSurface.unlockCanvasAndPost(canvas);
+        }
+    }
+
+    /**
+     * Draws the background and all the drawables.
+     * @param canvas The canvas to draw on.
+     */
+    private void drawContent(Canvas canvas) {
+        canvas.drawColor(mBackgroundColor, PorterDuff.Mode.SRC);
+        if (mBackgroundMode != FabricView.BACKGROUND_STYLE_BLANK) {
+            RectF area = new RectF(0, 0, canvas.getWidth(), canvas.getHeight());
+            mLinePaint.setColor(Color.argb(50, 0, 0, 0));
+            mLinePaint.setStyle(mStyle);
+            mLinePaint.setStrokeWidth(mSize - 2f);
+            switch (mBackgroundMode) {
+                case FabricView.BACKGROUND_STYLE_GRAPH_PAPER:
+                    FabricView.drawGraphPaperBackground(canvas, mLinePaint, area);
+                    break;
+                case FabricView.BACKGROUND_STYLE_NOTEBOOK_PAPER:
+                    FabricView.drawNotebookPaperBackground(canvas, mLinePaint, area);
+                default:
+                    break;
+            }
+        }
+        for (CDrawable d : mDrawableList) {
+            try {
+                d.draw(canvas);
+            } catch (Exception ex) {
+                ex.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Reallocates the content cache for a new surface size, and redraws it. Without a cache, the
+     * whole content is drawn on every frame.
+     * @param width The width of the surface.
+     * @param height The height of the surface.
+     */
+    private void resizeContent(int width, int height) {
+        if (mContent == null || mContent.getWidth() != width || mContent.getHeight() != height) {
+            if (mContent != null) {
+                BitmapPool.getInstance().release(mContent);
+                mContent = null;
+                mContentCanvas = null;
+            }
+            if (width > 0 && height > 0) {
+                try {
+                    mContent = BitmapPool.getInstance().obtain(width, height, Bitmap.Config.ARGB_8888);
+                    mContentCanvas = new Canvas(mContent);
+                } catch (OutOfMemoryError e) {
+                    //Do nothing
+                }
+            }
+        }
+        if (mContentCanvas != null) {
+            drawContent(mContentCanvas);
+        }
+    }
+
+    /**
+     * Redraws the content cache and the whole surface.
+     */
+    private final Runnable mRedraw = new Runnable() {
+        @Override
+        public void run() {
+            if (mContentCanvas != null) {
+                drawContent(mContentCanvas);
+            }
+            renderFrame(null);
+        }
+    };
+
+    /**
+     * Adds a drawable to the list and to the content cache.
+     * @param d The drawable.
+     */
+    private void commitDrawable(CDrawable d) {
+        synchronized (mDrawableList) {
+            mDrawableList.add(d);
+        }
+        if (mContentCanvas == null) {
+            return;
+        }
+        if (d instanceof CTransform) {
+            //Changes a drawable that may be anywhere in the z-order.
+            drawContent(mContentCanvas);
+            return;
+        }
+        try {
+            d.draw(mContentCanvas);
+        } catch (Exception ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    /**********************************************************************************************/
+    /***********************************     Touch input    ***************************************/
+    /*********************************************************************************************/
+
+    /**
+     * Records the touch samples of the event, including the historical ones, and hands them to
+     * the render thread.
+     *
+     * @param event the touch event
+     * @return the result of the action
+     */
+    @Override
+    public boolean onTouchEvent(MotionEvent event) {
+        if (mInteractionMode != FabricView.DRAW_MODE) {
+            return false;
+        }
+        int action = event.getActionMasked();
+        switch (action) {
+            case MotionEvent.ACTION_DOWN:
+                getParent().requestDisallowInterceptTouchEvent(true);
+                break;
+            case MotionEvent.ACTION_MOVE:
+                break;
+            case MotionEvent.ACTION_UP:
+            case MotionEvent.ACTION_CANCEL:
+                getParent().requestDisallowInterceptTouchEvent(false);
+                break;
+            default:
+                return false;
+        }
+        boolean schedule;
+        synchronized (mInputLock) {
+            if (action == MotionEvent.ACTION_MOVE) {
+                int historySize = event.getHistorySize();
+                for (int i = 0; i < historySize; i++) {
+                    queueSample(action, event.getHistoricalX(i), event.getHistoricalY(i));
+                }
+            }
+            queueSample(action, event.getX(), event.getY());
+            schedule = !mInputScheduled;
+            mInputScheduled = true;
+        }
+        if (schedule) {
+            runOnRenderThread(mProcessInput);
+        }
+        return true;
+    }
+
+    /**
+     * Must be called with mInputLock held.
+     */
+    private void queueSample(int action, float x, float y) {
+        if (mPendingCount + SAMPLE_SIZE > mPendingSamples.length) {
+            mPendingSamples = Arrays.copyOf(mPendingSamples, mPendingSamples.length * 2);
+        }
+        mPendingSamples[mPendingCount++] = action;
+        mPendingSamples[mPendingCount++] = x;
+        mPendingSamples[mPendingCount++] = y;
+    }
+
+    /**
+     * Takes all the queued samples at once, applies them to the stroke in progress, and draws the
+     * damage in a single frame.
+     */
+    private final Runnable mProcessInput = new Runnable() {
+        @Override
+        public void run() {
+            float[] samples;
+            int count;
+            synchronized (mInputLock) {
+                samples = mPendingSamples;
+                mPendingSamples = mSamples;
+                mSamples = samples;
+                count = mPendingCount;
+                mPendingCount = 0;
+                mInputScheduled = false;
+            }
+            mDirtyRect.set(0, 0, -1, -1);
+            for (int i = 0; i < count; i += SAMPLE_SIZE) {
+                processSample((int) samples[i], samples[i + 1], samples[i + 2]);
+            }
+            if (mDirtyRect.left > mDirtyRect.right) {
+                return;
+            }
+            float padding = mStrokeWidth / 2 + DAMAGE_PADDING;
+            mDirty.set((int) Math.floor(mDirtyRect.left - padding),
+                    (int) Math.floor(mDirtyRect.top - padding),
+                    (int) Math.ceil(mDirtyRect.right + padding),
+                    (int) Math.ceil(mDirtyRect.bottom + padding));
+            renderFrame(mDirty);
+        }
+    };
+
+    private void processSample(int action, float x, float y) {
+        switch (action) {
+            case MotionEvent.ACTION_DOWN:
+                commitStroke();
+                Paint paint = StyleTable.getStroke(Paint.ANTI_ALIAS_FLAG, mColor, mStyle, Paint.Join.ROUND, mSize);
+                mStrokeWidth = mSize;
+                mCurrentPath = new CPath();
+                mCurrentPath.setPaint(paint);
+                mCurrentPath.moveTo(x, y);
+                mLastTouchX = x;
+                mLastTouchY = y;
+                mStrokeEndX = x;
+                mStrokeEndY = y;
+                growDirtyRegion(x, y);
+                break;
+            case MotionEvent.ACTION_MOVE:
+                if (mCurrentPath == null) {
+                    break;
+                }
+                if (Math.abs(x - mLastTouchX) < TOUCH_TOLERANCE && Math.abs(y - mLastTouchY) < TOUCH_TOLERANCE) {
+                    break;
+                }
+                float endX = (x + mLastTouchX) / 2;
+                float endY = (y + mLastTouchY) / 2;
+                // The new segment lies within its start, control and end points.
+                growDirtyRegion(mStrokeEndX, mStrokeEndY);
+                growDirtyRegion(mLastTouchX, mLastTouchY);
+                growDirtyRegion(endX, endY);
+                mCurrentPath.quadTo(mLastTouchX, mLastTouchY, endX, endY);
+                mStrokeEndX = endX;
+                mStrokeEndY = endY;
+                mLastTouchX = x;
+                mLastTouchY = y;
+                break;
+            case MotionEvent.ACTION_UP:
+                if (mCurrentPath == null) {
+                    break;
+                }
+                growDirtyRegion(mStrokeEndX, mStrokeEndY);
+                growDirtyRegion(x, y);
+                mCurrentPath.lineTo(x, y);
+                commitStroke();
+                break;
+            case MotionEvent.ACTION_CANCEL:
+                commitStroke();
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void commitStroke() {
+        if (mCurrentPath == null) {
+            return;
+        }
+        CPath path = mCurrentPath;
+        mCurrentPath = null;
+        commitDrawable(path);
+    }
+
+    private void growDirtyRegion(float x, float y) {
+        if (mDirtyRect.left > mDirtyRect.right) {
+            mDirtyRect.set(x, y, x, y);
+        }
+        else {
+            mDirtyRect.union(x, y);
+        }
+    }
+
+    /**********************************************************************************************/
+    /**************************************     API    ********************************************/
+    /*********************************************************************************************/
+
+    /**
+     * Adds an object on top of the others. It must not be modified afterwards.
+     * @param d The object.
+     */
+    public void addDrawable(final CDrawable d) {
+        runOnRenderThread(new Runnable() {
+            @Override
+            public void run() {
+                commitDrawable(d);
+                renderFrame(null);
+            }
+        });
+    }
+
+    /**
+     * Removes the last object that was drawn or added.
+     */
+    public void undo() {
+        runOnRenderThread(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (mDrawableList) {
+                    CDrawable last = mDrawableList.getLast();
+                    if (last == null) {
+                        return;
+                    }
+                    mDrawableList.removeDrawable(last);
+                }
+                mRedraw.run();
+            }
+        });
+    }
+
+    /**
+     * Erases everything.
+     */
+    public void cleanPage() {
+        runOnRenderThread(new Runnable() {
+            @Override
+            public void run() {
+                mCurrentPath = null;
+                synchronized (mDrawableList) {
+                    mDrawableList.clear();
+                }
+                mRedraw.run();
+            }
+        });
+    }
+
+    /**
+     * @return A copy of the list of drawables, as of the last batch handled by the render thread.
+     */
+    public List<CDrawable> getDrawablesList() {
+        synchronized (mDrawableList) {
+            return new ArrayList<>(mDrawableList);
+        }
+    }
+
+    /**
+     * @return the drawing line color. Default is Color.BLACK.
+     */
+    public int getColor() {
+        return mColor;
+    }
+
+    /**
+     * Setter for the the drawing line color. Applies to the next stroke.
+     * @param mColor The new color.
+     */
+    public void setColor(int mColor) {
+        this.mColor = mColor;
+    }
+
+    /**
+     * @return the background color. Default is Color.WHITE.
+     */
+    public int getBackgroundColor() {
+        return mBackgroundColor;
+    }
+
+    /**
+     * Setter for the background color. It is drawn into the surface, and not as the background of
+     * the view, which would hide the surface.
+     * @param mBackgroundColor The new background color.
+     */
+    @Override
+    public void setBackgroundColor(int mBackgroundColor) {
+        this.mBackgroundColor = mBackgroundColor;
+        runOnRenderThread(mRedraw);
+    }
+
+    /**
+     * @return the background decorations mode. Default is BACKGROUND_STYLE_BLANK.
+     */
+    public int getBackgroundMode() {
+        return mBackgroundMode;
+    }
+
+    /**
+     * Setter for the background decorations mode. Can be FabricView.BACKGROUND_STYLE_BLANK*,
+     * FabricView.BACKGROUND_STYLE_NOTEBOOK_PAPER, or FabricView.BACKGROUND_STYLE_GRAPH_PAPER.
+     * @param mBackgroundMode
+     */
+    public void setBackgroundMode(int mBackgroundMode) {
+        this.mBackgroundMode = mBackgroundMode;
+        runOnRenderThread(mRedraw);
+    }
+
+    /**
+     * @return The drawing style. Can be Paint.Style.FILL, Paint.Style.STROKE, or Paint.Style.FILL_AND_STROKE. Default is Paint.Style.STROKE.
+     */
+    public Paint.Style getStyle() {
+        return mStyle;
+    }
+
+    /**
+     * Setter for the drawing style. Applies to the next stroke.
+     * @param mStyle The new drawing style. Can be Can be FILL, STROKE, or FILL_AND_STROKE.
+     */
+    public void setStyle(Paint.Style mStyle) {
+        this.mStyle = mStyle;
+        if (mBackgroundMode != FabricView.BACKGROUND_STYLE_BLANK) {
+            //The background lines use the drawing style.
+            runOnRenderThread(mRedraw);
+        }
+    }
+
+    /**
+     * @return The width of the line for drawing.
+     */
+    public float getSize() {
+        return mSize;
+    }
+
+    /**
+     * Setter for the line width. The default is 5. Applies to the next stroke.
+     * @param mSize The new width for the line.
+     */
+    public void setSize(float mSize) {
+        this.mSize = mSize;
+        if (mBackgroundMode != FabricView.BACKGROUND_STYLE_BLANK) {
+            //The background lines use the drawing size.
+            runOnRenderThread(mRedraw);
+        }
+    }
+
+    /**
+     * @return The interaction mode. Default is DRAW_MODE.
+     */
+    public int getInteractionMode() {
+        return mInteractionMode;
+    }
+
+    /**
+     * Setter for the interaction mode.
+     * @param interactionMode FabricView.DRAW_MODE or FabricView.LOCKED_MODE.
+     */
+    public void setInteractionMode(int interactionMode) {
+        if (interactionMode != FabricView.DRAW_MODE && interactionMode != FabricView.LOCKED_MODE) {
+            throw new IllegalArgumentException("Only DRAW_MODE and LOCKED_MODE are supported.");
+        }
+        mInteractionMode = interactionMode;
+        if (interactionMode == FabricView.LOCKED_MODE) {
+            //Finish the stroke in progress, if any.
+            boolean schedule;
+            synchronized (mInputLock) {
+                queueSample(MotionEvent.ACTION_CANCEL, 0, 0);
+                schedule = !mInputScheduled;
+                mInputScheduled = true;
+            }
+            if (schedule) {
+                runOnRenderThread(mProcessInput);
+            }
+        }
+    }
+}
@@ -6,9 +6,13 @@ import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.DashPathEffect;
+import android.graphics.Matrix;
 import android.graphics.Paint;
+import android.graphics.PorterDuff;
 import android.graphics.Rect;
 import android.graphics.RectF;
+import android.os.Looper;
+import android.os.MessageQueue;
 import android.os.SystemClock;
 import android.util.AttributeSet;
 import android.util.TypedValue;
@@ -19,17 +23,35 @@ import android.widget.Toast;
 
 import com.agsw.FabricView.DrawableObjects.CBitmap;
 import com.agsw.FabricView.DrawableObjects.CDrawable;
+import com.agsw.FabricView.DrawableObjects.CMatrixTransform;
 import com.agsw.FabricView.DrawableObjects.CPath;
 import com.agsw.FabricView.DrawableObjects.CRotation;
 import com.agsw.FabricView.DrawableObjects.CScale;
 import com.agsw.FabricView.DrawableObjects.CText;
 import com.agsw.FabricView.DrawableObjects.CTransform;
 import com.agsw.FabricView.DrawableObjects.CTranslation;
-
+import com.agsw.FabricView.DrawableObjects.ImageAsset;
+import com.agsw.FabricView.DrawableObjects.StyleTable;
+
+import com.agsw.FabricView.Persistence.BitmapResolver;
+import com.agsw.FabricView.Persistence.DocumentReader;
+import com.agsw.FabricView.Persistence.DocumentWriter;
+import com.agsw.FabricView.Persistence.Journal;
+import com.agsw.FabricView.Persistence.SvgWriter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.ListIterator;
+import java.util.Set;
 import java.util.Vector;
+import java.util.concurrent.Future;
 
 /**
  * Created by antwan on 10/3/2015.
@@ -54,7 +76,11 @@ myFabricView.setInteractionMode(FabricView.DRAW_MODE); //Set its draw mode (DRAW
 myFabricView.setDeleteIcon(deleteIcon); //If you don't like the default delete icon
 myFabricView.setColor(R.color.purple); //Line color
 myFabricView.setSize(10); //Line width
+myFabricView.setStrokeSimplificationTolerance(1f); //Remove the points of finished strokes that are within 1 pixel of the simplified line (0*)
+myFabricView.getSimplifiedPointCount(); //The number of points removed from strokes so far, to tune the tolerance
 myFabricView.setSelectionColor(R.color.lightergray); //Selection box color
+myFabricView.setViewportGesturesEnabled(true); //Pan and zoom with two fingers (false*)
+myFabricView.setTiledRenderingEnabled(true); //Cache the picture in tiles, for large documents (false*). See also setTileCacheSize().
 //To be notified of any deletion:
 myFabricView.setDeletionListener(new FabricView.DeletionListener() {
   public void deleted(CDrawable drawable) {
@@ -66,22 +92,33 @@ myFabricView.setDeletionListener(new FabricView.DeletionListener() {
 myFabricView.cleanPage(); //Erases everything.
 myFabricView.undo(); //Cancels the last operation.
 myFabricView.redo(); //Reinstates the last undone operation.
+boolean undoable = myFabricView.canUndo(); //See also canRedo(), and setHistoryLimits() to bound the memory used by the history.
 myFabricView.selectLastDrawn(); //Mark the last drawn object as selected.
 myFabricView.deSelect(); //Unmark all objects for selection.
 myFabricView.deleteSelection(); //Removes all selected objects and its transforms.
 myFabricView.deleteDrawable(); //Removes a single object and its transforms.
+myFabricView.setZoomLevel(2f); //Zooms around the center of the view. See also zoomTo(), panBy(), scrollViewportTo() and resetViewport().
 
 //Retrieving the picture from the view:
 Bitmap fullResult = myFabricView.getCanvasBitmap(); //Gets a copy of the whole view. This includes decorations such as selection rectangle. So make sure you switch to LOCKED_MODE before calling.
 Bitmap croppedResult = myFabricView.getCroppedCanvasBitmap(); //Same as previous, except with no margin around the picture.
+BitmapPool.getInstance().release(croppedResult); //Gives a bitmap back for reuse once you are done with it. See also BitmapPool.setMaxBytes().
+myFabricView.exportCroppedBitmap(2f, callback); //Renders the drawables at any resolution on a background thread, without decorations. See also exportBitmap().
+myFabricView.exportPng(outputStream, 300f / 160f, callback); //Writes a PNG of any size, rendered in bands on several threads. Use it for printing.
+myFabricView.exportSvg(writer, null); //Writes the drawables as an SVG image, which stays sharp at any size. See also SvgWriter.
 List&lt;CDrabable&gt; drawablesList = myFabricView.getDrawablesList(); //Returns all the drawables of the view. See next sections.
+List&lt;CDrabable&gt; snapshot = myFabricView.getDocument().getSnapshot(); //Returns an immutable copy of the drawables, that any thread can read while the view keeps editing. Read the transforms with its getTransformMatrix().
 CDrawable currentSelection = myFabricView.getSelection();
+myFabricView.compactTransforms(); //Folds the moves, rotations and scalings that can't be undone anymore into their drawables. Also done when idle; see setTransformCompactionEnabled().
 
 //Save point functions
 boolean everythingIsSaved = myFabricView.isSaved(); //true = there were no operations added or undone after the last call to markSaved().
 markSaved(); //Indicates that everything was saved. You can save the bitmap or the drawable objects. (See previous section.)
 revertUnsaved(); //Restore the drawables to the last save point.
-List&lt;CDrabable&gt; unsavedDrawablesList = getUnsavedDrawablesList(); //Returns all the drawables that were not saved yet.</pre>
+List&lt;CDrabable&gt; unsavedDrawablesList = getUnsavedDrawablesList(); //Returns all the drawables that were not saved yet.
+myFabricView.saveDocument(outputStream, null); //Writes all the drawables in a compact binary format. The images are embedded unless a BitmapResolver is given.
+myFabricView.startJournal(new Journal(new File(getFilesDir(), "journal"), null)); //Autosaves every change in the background, and recovers the work of a previous session. See also stopJournal().
+myFabricView.loadDocument(inputStream, null); //Replaces all the drawables with those of a saved document. See also DocumentWriter and DocumentReader, to stream drawables yourself.</pre>
  * <H1>Drawables and Transforms</H1>
  * The list of visible objects inside the view is a stack. There are two kinds: CDrawable and CTransform (subclass of the latter).
  * A CDrawable is an object that can be "drawn" on the canvas. A CTransform represents a modification of a CDrawable.
@@ -91,6 +128,9 @@ List&lt;CDrabable&gt; unsavedDrawablesList = getUnsavedDrawablesList(); //Return
  * The subclasses of CDrawable are CPath (a set of continuous lines), CBitmap, and CText. Another subclass is CTransform, and this one
  * has its one subclasses which are CRotation, CScale, and CTranslation.
  *
+ * The drawables are positioned in world coordinates, which are the same as the view coordinates
+ * until the viewport is zoomed or panned. Use mapViewToWorld() to convert touch positions.
+ *
  * The rotate mode allows both rotation and scaling. The rotate mode must be set by you.
  * It can be triggered by an external mean (e.g. a button) or by a pinch gesture internally.
  * If you want to use a pinch gesture to start the rotate mode, use setRotationListener()
@@ -102,8 +142,39 @@ public class FabricView extends View {
     /*************************************     Vars    *******************************************/
     /*********************************************************************************************/
     // painting objects and properties
-    private ArrayList<CDrawable> mDrawableList = new ArrayList<>();
-    private ArrayList<CDrawable> mUndoList = new ArrayList<>();
+    private final FabricDocument mDrawableList = new FabricDocument();
+    private final UndoHistory mHistory = new UndoHistory();
+    private final UndoHistory.Target mHistoryTarget = new UndoHistory.Target() {
+        @Override
+        public void insert(CDrawable d, long seq) {
+            insertDrawable(d, seq);
+        }
+
+        @Override
+        public void remove(CDrawable d) {
+            removeDrawable(d);
+        }
+
+        @Override
+        public void attach(CTransform t, int index) {
+            attachTransform(t, index);
+        }
+
+        @Override
+        public int detach(CTransform t) {
+            return detachTransform(t);
+        }
+    };
+    // Keeps the sequence numbers held outside of the list in step when add(int, CDrawable) shifts them.
+    private final DrawableStore.ShiftListener mShiftListener = new DrawableStore.ShiftListener() {
+        @Override
+        public void onShifted(long from, long delta) {
+            savePoint = DrawableStore.shift(savePoint, from, delta);
+            mHistory.shiftSeqs(from, delta);
+            //The z-orders of the index are sequence numbers.
+            mSpatialIndexDirty = true;
+        }
+    };
     private CDrawable selected = null;
     private long pressStartTime;
     private float pressedX;
@@ -112,7 +183,36 @@ public class FabricView extends View {
     private CTranslation hoveringTranslation = null;
 
     private int mColor = Color.BLACK;
-    private int savePoint = -1;
+    // Sequence number of the last drawable that was saved, and number of saved drawables removed since.
+    private long savePoint = -1;
+    private int mSavedDrawablesRemoved = 0;
+    // Autosave journal, or null.
+    private Journal mJournal;
+    private boolean mJournalCheckPosted = false;
+    private final Runnable mJournalCheck = new Runnable() {
+        @Override
+        public void run() {
+            mJournalCheckPosted = false;
+            //A new snapshot only holds finished operations.
+            if (mJournal != null && mJournal.needsCompaction() && !isGestureInProgress()) {
+                mJournal.start(getCommittedDrawables());
+            }
+        }
+    };
+    // Folding of the transforms that can't be undone anymore, when idle. See compactTransforms().
+    private boolean mTransformCompactionEnabled = true;
+    private boolean mTransformCompactionScheduled = false;
+    private final MessageQueue.IdleHandler mTransformCompaction = new MessageQueue.IdleHandler() {
+        @Override
+        public boolean queueIdle() {
+            if (isGestureInProgress()) {
+                return true; //Try again the next time the queue is idle.
+            }
+            mTransformCompactionScheduled = false;
+            compactTransforms(TRANSFORM_COMPACTION_THRESHOLD);
+            return false;
+        }
+    };
     private Bitmap deleteIcon;
     private RectF deleteIconPosition = new RectF(-1, -1, -1, -1);
     private DeletionListener deletionListener = null;
@@ -161,6 +261,12 @@ public class FabricView extends View {
     // Vars to decrease dirty area and increase performance
     private float lastTouchX, lastTouchY;
     private final RectF dirtyRect = new RectF();
+    // Last point of the stroke in progress.
+    private float mStrokeEndX, mStrokeEndY;
+    // Scratch rectangles for damage computations.
+    private final Rect mDamageBefore = new Rect();
+    private final Rect mDamageAfter = new Rect();
+    private final Rect mClipBounds = new Rect();
 
     // keep track of path and paint being in use
     CPath currentPath;
@@ -168,8 +274,61 @@ public class FabricView extends View {
     Paint selectionPaint;
 
     private int selectionColor = Color.DKGRAY;
+
+    // Retained raster of all committed drawables. Rebuilt only when the list changes.
+    private Bitmap mContentCache;
+    private Canvas mContentCacheCanvas;
+    private boolean mContentCacheDirty = true;
+    // Region of the content cache that must be repainted before the next blit, in view coordinates.
+    private final Rect mCacheDamage = new Rect();
+
+    // true between ACTION_DOWN and ACTION_UP, while currentPath is not part of the cache yet.
+    private boolean mStrokeInProgress = false;
+    // Largest error allowed when simplifying a finished stroke, in pixels of the view. 0 to keep every point.
+    private float mSimplificationTolerance = 0;
+    // Number of points removed by the simplification of strokes so far.
+    private long mSimplifiedPointCount = 0;
+
+    // Bounds of all committed visible drawables, for hit testing and culling.
+    private final SpatialIndex mSpatialIndex = new SpatialIndex();
+    // true when the spatial index must be rebuilt from mDrawableList.
+    private boolean mSpatialIndexDirty = false;
+    private final ArrayList<CDrawable> mVisibleDrawables = new ArrayList<>();
+    // Created when first needed.
+    private ExportRenderer mExportRenderer;
+    private final Rect mContentArea = new Rect();
+
+    // Raster of the world split in tiles, used instead of the content cache in tiled mode.
+    private TileCache mTileCache = null;
+    private long mTileCacheSize = 0;
+    private final RectF mVisibleWorld = new RectF();
+    private final Paint mTilePaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final TileCache.TileRenderer mTileRenderer = new TileCache.TileRenderer() {
+        @Override
+        public void renderTile(Canvas canvas, RectF worldArea) {
+            drawContent(canvas, worldArea);
+        }
+    };
+
+    // Viewport. The drawables are positioned in world coordinates. A point of the world is shown
+    // at view = (world - offset) * zoom.
+    private float mZoomLevel = 1.0f;
+    private float mHorizontalOffset = 0, mVerticalOffset = 0;
+    private float mMinZoomLevel = DEFAULT_MIN_ZOOM_LEVEL;
+    private float mMaxZoomLevel = DEFAULT_MAX_ZOOM_LEVEL;
+    private final Matrix mViewMatrix = new Matrix();
+    private final Matrix mInverseViewMatrix = new Matrix();
+    private final float[] mTouchPoint = new float[2];
+    private final RectF mMapRect = new RectF();
+    // Two-finger pan and zoom.
+    private boolean mViewportGesturesEnabled = false;
+    private boolean mViewportGestureInProgress = false;
+    private float mGestureStartZoomLevel;
+    private float mGestureWorldFocusX, mGestureWorldFocusY;
     private static final int MAX_CLICK_DURATION = 1000;
     private static final int MAX_CLICK_DISTANCE = 15;
+    // Transforms are folded when idle once this many can be.
+    private static final int TRANSFORM_COMPACTION_THRESHOLD = 32;
 
     /*********************************************************************************************/
     /************************************     FLAGS    *******************************************/
@@ -215,17 +374,33 @@ public class FabricView extends View {
      */
     public static final int NOTEBOOK_LEFT_LINE_PADDING = 120;
     private static final int SELECTION_LINE_WIDTH = 2;
+    // Extra pixels around damaged areas, for anti-aliasing.
+    private static final int DAMAGE_PADDING = 2;
+    /**
+     * Default smallest zoom level reachable with setZoomLevel() and pinch gestures.
+     */
+    public static final float DEFAULT_MIN_ZOOM_LEVEL = 0.1f;
+    /**
+     * Default largest zoom level reachable with setZoomLevel() and pinch gestures.
+     */
+    public static final float DEFAULT_MAX_ZOOM_LEVEL = 10f;
+    // Distance between two lines of the background, in world coordinates.
+    private static final int BACKGROUND_LINE_SPACING = 75;
+    /**
+     * Default memory budget of the tile cache, when tiled rendering is enabled. Never more than an
+     * eighth of the memory available to the application.
+     */
+    public static final long DEFAULT_TILE_CACHE_SIZE = 32 * 1024 * 1024;
+    // Zoom change, during a pinch, after which the tiles are rasterized again at the new zoom level.
+    private static final float MAX_TILE_SCALING = 2f;
 
     /*********************************************************************************************/
     /************************************     TO-DOs    ******************************************/
     /*********************************************************************************************/
-    private float mZoomLevel = 1.0f; //TODO Support Zoom
-    private float mHorizontalOffset = 1, mVerticalOffset = 1; // TODO Support Offset and Viewport
     /**
      * Unused at this time.
      */
     public int mAutoscrollDistance = 100; // TODO Support Autoscroll
-    private Rect cropBounds = null;
 
     /**
      *  Constructor, sets defaut values.
@@ -236,6 +411,7 @@ public class FabricView extends View {
     public FabricView(Context context, AttributeSet attrs) {
         super(context, attrs);
 
+        mDrawableList.setShiftListener(mShiftListener);
         setWillNotDraw(false);
 
         setFocusable(true);
@@ -290,9 +466,15 @@ public class FabricView extends View {
                     mCurrentRotation = new CRotation(selected, selected.getLastBounds().centerX(), selected.getLastBounds().centerY());
                     mCurrentScale = new CScale(selected, selected.getLastBounds().centerX(), selected.getLastBounds().centerY());
                     selected.addTransform(mCurrentRotation);
+                    mDrawableList.beginEdit(mCurrentRotation);
                     mDrawableList.add(mCurrentRotation);
                     selected.addTransform(mCurrentScale);
+                    mDrawableList.beginEdit(mCurrentScale);
                     mDrawableList.add(mCurrentScale);
+                    ArrayList<UndoHistory.Record> records = new ArrayList<>(2);
+                    records.add(createTransformRecord(mCurrentRotation));
+                    records.add(createTransformRecord(mCurrentScale));
+                    mHistory.push(new UndoHistory.BatchRecord(records));
 
                     handleScale(detector);
                 }
@@ -301,10 +483,69 @@ public class FabricView extends View {
                 //Do nothing.
             }
         }
+        if(!consumed && mViewportGesturesEnabled) {
+            startViewportGesture(detector);
+            consumed = true;
+        }
         return consumed;
     }
 
+    /**
+     * Starts a two-finger pan and zoom. Anything the first finger started is cancelled.
+     */
+    private void startViewportGesture(ScaleRotationGestureDetector detector) {
+        if (mStrokeInProgress) {
+            //The stroke is not part of the cached content; it disappears on the next frame.
+            mStrokeInProgress = false;
+            mDrawableList.removeDrawable(currentPath);
+            currentPath = null;
+        }
+        if (hovering != null) {
+            if (hoveringTranslation != null) {
+                getDamageBounds(hovering, mDamageBefore);
+                hovering.removeTransform(hoveringTranslation);
+                mDrawableList.remove(hoveringTranslation);
+                reindexDrawable(hovering);
+                getDamageBounds(hovering, mDamageAfter);
+                mDamageAfter.union(mDamageBefore);
+                invalidateCacheRegion(mDamageAfter);
+            }
+            hovering = null;
+            hoveringTranslation = null;
+        }
+        mViewportGestureInProgress = true;
+        mGestureStartZoomLevel = mZoomLevel;
+        mapViewToWorld(detector.getFocusX(), detector.getFocusY());
+        mGestureWorldFocusX = mTouchPoint[0];
+        mGestureWorldFocusY = mTouchPoint[1];
+        invalidate();
+    }
+
+    /**
+     * Keeps the world point that was under the fingers at the beginning of the gesture under the
+     * fingers, at the new zoom level.
+     */
+    private void updateViewportGesture(ScaleRotationGestureDetector detector) {
+        float zoom = clampZoomLevel(mGestureStartZoomLevel * detector.getScaleFactor());
+        setViewport(mGestureWorldFocusX - detector.getFocusX() / zoom,
+                mGestureWorldFocusY - detector.getFocusY() / zoom, zoom);
+    }
+
     private void handleScaleEnd() {
+        if(mViewportGestureInProgress) {
+            mViewportGestureInProgress = false;
+            //In tiled mode, the tiles were scaled during the gesture. Rasterize them at the final zoom.
+            invalidate();
+            return;
+        }
+        if (mCurrentRotation != null) {
+            //The rotation and the scaling are final.
+            mDrawableList.endEdit(mCurrentRotation);
+            mDrawableList.endEdit(mCurrentScale);
+            journalNewTransform(mCurrentRotation);
+            journalNewTransform(mCurrentScale);
+            scheduleTransformCompaction();
+        }
         if(mScaleRotateListener != null) {
             try {
                 mScaleRotateListener.endRotate();
@@ -374,245 +615,795 @@ public class FabricView extends View {
     @Override
     protected void onSizeChanged(int w, int h, int oldw, int oldh) {
         super.onSizeChanged(w, h, oldw, oldh);
+        if (mContentCache != null) {
+            BitmapPool.getInstance().release(mContentCache);
+            mContentCache = null;
+            mContentCacheCanvas = null;
+        }
+        //The tiles don't depend on the size of the view.
+        mContentCacheDirty = true;
+        invalidate();
     }
 
     /**
      * Called when there is the canvas is being re-drawn.
+     * The committed drawables are blitted from the content cache, or from the tile cache in tiled
+     * mode; only the stroke in progress and the selection decorations are drawn on every frame.
      */
     @Override
     protected void onDraw(Canvas canvas) {
-        // check if background needs to be redrawn
-        drawBackground(canvas, mBackgroundMode);
-        Rect totalBounds = new Rect(canvas.getWidth(), canvas.getHeight(), 0, 0);
+        if (getWidth() <= 0 || getHeight() <= 0) {
+            return;
+        }
+        if (mTileCache == null) {
+            if (mContentCache == null || mContentCacheDirty) {
+                rebuildContentCache(null);
+            }
+            else if (!mCacheDamage.isEmpty()) {
+                rebuildContentCache(mCacheDamage);
+            }
+            mCacheDamage.setEmpty();
+        }
+
+        // The framework clips the canvas to the union of the invalidated regions (software
+        // rendering) so everything outside of it can be skipped.
+        if (!canvas.getClipBounds(mClipBounds)) {
+            return;
+        }
+        if (mTileCache != null) {
+            drawTiles(canvas, mClipBounds);
+        }
+        else {
+            canvas.drawBitmap(mContentCache, 0, 0, null);
+        }
+
+        if (mStrokeInProgress && currentPath != null
+                && Rect.intersects(getDamageBounds(currentPath, mDamageBefore), mClipBounds)) {
+            canvas.save();
+            canvas.concat(mViewMatrix);
+            currentPath.draw(canvas);
+            canvas.restore();
+        }
+
+        if (mInteractionMode == SELECT_MODE && selected != null
+                && Rect.intersects(getDamageBounds(selected, mDamageBefore), mClipBounds)) {
+            drawSelection(canvas, selected);
+        }
+    }
+
+    /**
+     * Redraws the background and the committed drawables into the content cache.
+     * @param region The area to repaint, in view coordinates. null to repaint everything.
+     */
+    private void rebuildContentCache(Rect region) {
+        if (mContentCache == null) {
+            mContentCache = BitmapPool.getInstance().obtain(getWidth(), getHeight(), Bitmap.Config.ARGB_8888);
+            mContentCacheCanvas = new Canvas(mContentCache);
+            region = null;
+        }
+        mContentCacheCanvas.save();
+        if (region != null) {
+            mContentCacheCanvas.clipRect(region);
+            mContentCacheCanvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
+        }
+        else {
+            mContentCache.eraseColor(Color.TRANSPARENT);
+        }
+        Rect area = mapViewToWorld(region != null ? region : new Rect(0, 0, getWidth(), getHeight()), new Rect());
+        mContentCacheCanvas.concat(mViewMatrix);
+        drawContent(mContentCacheCanvas, new RectF(area));
+        mContentCacheCanvas.restore();
+        mContentCacheDirty = false;
+    }
 
-        // go through each item in the list and draw it
-        for (int i = 0; i < mDrawableList.size(); i++) {
+    /**
+     * Draws the background and the committed drawables that intersect a part of the world.
+     * @param canvas The canvas to draw on, transformed so that world coordinates can be used.
+     * @param area The part of the world to draw.
+     */
+    private void drawContent(Canvas canvas, RectF area) {
+        drawBackground(canvas, mBackgroundMode, area);
+
+        // draw only the items that intersect the repainted area, in z-order
+        area.roundOut(mContentArea);
+        mVisibleDrawables.clear();
+        getSpatialIndex().query(mContentArea, mVisibleDrawables);
+        for (int i = 0; i < mVisibleDrawables.size(); i++) {
             try {
+                mVisibleDrawables.get(i).draw(canvas);
+            } catch (Exception ex) {
+                ex.printStackTrace();
+            }
+        }
+        mVisibleDrawables.clear();
+    }
+
+    /**
+     * Draws the tiles covering a part of the view, rasterizing the missing ones. During a pinch,
+     * the tiles keep the zoom level they were rasterized at and are scaled, until the zoom level
+     * changes too much.
+     * @param canvas The canvas of the view.
+     * @param clip The part of the view to draw.
+     */
+    private void drawTiles(Canvas canvas, Rect clip) {
+        float tileZoom = mTileCache.getZoom();
+        float scaling = mZoomLevel / tileZoom;
+        if (!mViewportGestureInProgress || scaling > MAX_TILE_SCALING || scaling < 1 / MAX_TILE_SCALING) {
+            tileZoom = mZoomLevel;
+            scaling = 1;
+            mTileCache.setZoom(tileZoom);
+        }
+        mVisibleWorld.set(clip);
+        mInverseViewMatrix.mapRect(mVisibleWorld);
+        canvas.save();
+        canvas.concat(mViewMatrix);
+        canvas.scale(1 / tileZoom, 1 / tileZoom);
+        mTileCache.draw(canvas, mVisibleWorld, mTileRenderer, scaling == 1 ? null : mTilePaint);
+        canvas.restore();
+    }
+
+    /**
+     * Draws a newly committed drawable on top of the content cache, or of the tiles it covers,
+     * without rebuilding them.
+     * @param d The drawable that was just added at the top of the list.
+     */
+    private void appendToContentCache(CDrawable d) {
+        if (mTileCache != null) {
+            mMapRect.set(getPaintedBounds(d, mDamageAfter));
+            mTileCache.drawOnTiles(d, mMapRect);
+            return;
+        }
+        if (mContentCache == null || mContentCacheDirty) {
+            //The next frame rebuilds everything anyway.
+            return;
+        }
+        //The cache is in view coordinates, as in rebuildContentCache().
+        mContentCacheCanvas.save();
+        mContentCacheCanvas.concat(mViewMatrix);
+        try {
+            d.draw(mContentCacheCanvas);
+        } catch (Exception ex) {
+            ex.printStackTrace();
+            mContentCacheDirty = true;
+        } finally {
+            mContentCacheCanvas.restore();
+        }
+    }
+
+    /**
+     * Makes a drawable that was just added at the top of the list visible: indexes it and draws
+     * it into the content cache.
+     * @param d The new drawable.
+     */
+    private void commitDrawable(CDrawable d) {
+        getSpatialIndex().insert(d, getPaintedBounds(d, new Rect()), mDrawableList.getSeq(d));
+        appendToContentCache(d);
+    }
+
+    /**
+     * @return The spatial index of the committed drawables, rebuilt first if needed.
+     */
+    private SpatialIndex getSpatialIndex() {
+        if (mSpatialIndexDirty) {
+            mSpatialIndex.clear();
+            Rect bounds = new Rect();
+            for (int i = 0; i < mDrawableList.size(); i++) {
                 CDrawable d = mDrawableList.get(i);
-                if (d instanceof CTransform) {
+                if (d instanceof CTransform || (mStrokeInProgress && d == currentPath)) {
                     continue;
                 }
-
-                Rect bounds = d.computeBounds();
-                totalBounds.union(bounds);
-                d.draw(canvas);
-                if (mInteractionMode == SELECT_MODE && d.equals(selected)) {
-                    growRect(bounds, SELECTION_LINE_WIDTH);
-                    canvas.drawRect(new RectF(bounds), selectionPaint);
-                    deleteIconPosition = new RectF();
-                    deleteIconPosition.left = bounds.right - (deleteIcon.getWidth() / 2);
-                    deleteIconPosition.top = bounds.top - (deleteIcon.getHeight() / 2);
-                    deleteIconPosition.right = deleteIconPosition.left + deleteIcon.getWidth();
-                    deleteIconPosition.bottom = deleteIconPosition.top + deleteIcon.getHeight();
-                    canvas.drawBitmap(deleteIcon, deleteIconPosition.left, deleteIconPosition.top, d.getPaint());
-                }
-            } catch (Exception ex) {
-                ex.printStackTrace();
+                mSpatialIndex.insert(d, getPaintedBounds(d, bounds), mDrawableList.getSeqAt(i));
             }
+            mSpatialIndexDirty = false;
         }
-        if(totalBounds.width() <= 0) {
-            //No bounds
-            cropBounds = null;
+        return mSpatialIndex;
+    }
+
+    /**
+     * Updates the spatial index after the bounds of a drawable changed.
+     * @param d The drawable.
+     */
+    private void reindexDrawable(CDrawable d) {
+        if (d == null || mSpatialIndexDirty) {
+            return;
         }
-        else {
-            cropBounds = totalBounds;
+        mSpatialIndex.update(d, getPaintedBounds(d, mDamageAfter));
+    }
+
+    /**
+     * @return The area covered by all the committed drawables, or null if there are none.
+     */
+    private Rect computeContentBounds() {
+        Rect bounds = new Rect();
+        if (!getSpatialIndex().getTotalBounds(bounds)) {
+            return null;
         }
+        return bounds;
     }
 
-    private void growRect(Rect rect, int amount) {
-        rect.left -= amount;
-        rect.top -= amount;
-        rect.bottom += amount;
-        rect.right += amount;
+    /**
+     * Draws the selection rectangle and the delete icon around a drawable.
+     * @param canvas The canvas to draw on.
+     * @param d The selected drawable.
+     */
+    private void drawSelection(Canvas canvas, CDrawable d) {
+        Rect bounds = getSelectionBounds(d, new Rect());
+        canvas.drawRect(new RectF(bounds), selectionPaint);
+        deleteIconPosition = new RectF();
+        computeDeleteIconPosition(bounds, deleteIconPosition);
+        canvas.drawBitmap(deleteIcon, deleteIconPosition.left, deleteIconPosition.top, d.getPaint());
     }
 
+    /**
+     * Positions the delete icon on the top right corner of the selection rectangle.
+     * @param selectionBounds The selection rectangle.
+     * @param out Receives the position of the icon.
+     */
+    private void computeDeleteIconPosition(Rect selectionBounds, RectF out) {
+        out.left = selectionBounds.right - (deleteIcon.getWidth() / 2);
+        out.top = selectionBounds.top - (deleteIcon.getHeight() / 2);
+        out.right = out.left + deleteIcon.getWidth();
+        out.bottom = out.top + deleteIcon.getHeight();
+    }
 
-    /*********************************************************************************************/
-    /*******************************     Handling User Touch    **********************************/
-    /*********************************************************************************************/
+    /**
+     * Computes the selection rectangle around a drawable.
+     * @param d The drawable.
+     * @param out Receives the rectangle, in view coordinates.
+     * @return out, for convenience.
+     */
+    private Rect getSelectionBounds(CDrawable d, Rect out) {
+        mapWorldToView(d.computeBounds(), out);
+        growRect(out, SELECTION_LINE_WIDTH);
+        return out;
+    }
 
     /**
-     * Handles user touch events.
-     *
-     * @param event the user's motion event
-     * @return true, the event is consumed.
+     * Computes the area covered by the pixels of a drawable, including the width of its stroke.
+     * @param d The drawable.
+     * @param out Receives the area, in world coordinates.
+     * @return out, for convenience.
      */
-    @Override
-    public boolean onTouchEvent(MotionEvent event) {
+    private Rect getPaintedBounds(CDrawable d, Rect out) {
+        out.set(d.computeBounds());
+        int padding = DAMAGE_PADDING;
+        if (d.getPaint() != null) {
+            padding += (int) Math.ceil(d.getPaint().getStrokeWidth() / 2);
+        }
+        growRect(out, padding);
+        return out;
+    }
 
-        //ROTATE_MODE is processed inside this:
-        mScaleDetector.onTouchEvent(event);
-        if(mScaleDetector.isInProgress()) {
-            return true;
+    /**
+     * Computes the area that must be redrawn when a drawable changes: its pixels, plus the
+     * selection rectangle and the delete icon if it is selected.
+     * @param d The drawable.
+     * @param out Receives the area, in view coordinates.
+     * @return out, for convenience.
+     */
+    private Rect getDamageBounds(CDrawable d, Rect out) {
+        mapWorldToView(getPaintedBounds(d, out), out);
+        growRect(out, DAMAGE_PADDING);
+        if (mInteractionMode == SELECT_MODE && d == selected && deleteIcon != null) {
+            Rect selection = getSelectionBounds(d, new Rect());
+            RectF icon = new RectF();
+            computeDeleteIconPosition(selection, icon);
+            out.union(selection);
+            out.union((int) Math.floor(icon.left), (int) Math.floor(icon.top),
+                    (int) Math.ceil(icon.right), (int) Math.ceil(icon.bottom));
+            growRect(out, DAMAGE_PADDING);
         }
-        // delegate action to the correct method
-        if (getInteractionMode() == DRAW_MODE)
-            return onTouchDrawMode(event);
-        if (getInteractionMode() == SELECT_MODE)
-            return onTouchSelectMode(event);
-        // if none of the above are selected, delegate to locked mode
-        return onTouchLockedMode(event);
+        return out;
     }
 
     /**
-     * Handles touch event if the mode is set to locked
-     *
-     * @param event the event to handle
-     * @return false, shouldn't do anything with it for now
+     * Marks an area of the content cache, or the tiles under it, as stale and schedules a redraw
+     * of that area only.
+     * @param region The area, in view coordinates. It can extend outside of the view.
      */
-    private boolean onTouchLockedMode(MotionEvent event) {
-        // return false since we don't want to do anything so far
-        return false;
+    private void invalidateCacheRegion(Rect region) {
+        if (region.isEmpty()) {
+            return;
+        }
+        if (mTileCache != null) {
+            mMapRect.set(region);
+            mInverseViewMatrix.mapRect(mMapRect);
+            mTileCache.invalidate(mMapRect);
+        }
+        else {
+            mCacheDamage.union(region);
+        }
+        invalidate(region.left, region.top, region.right, region.bottom);
     }
 
     /**
-     * Takes care of scaling and rotating.
-     * @return true if the scaling gesture is consumed.
+     * Schedules a redraw of the area covered by a drawable and its selection decorations, for
+     * changes that don't affect the content cache.
+     * @param d The drawable.
      */
-    private boolean handleScale(ScaleRotationGestureDetector detector) {
-        if(mInteractionMode != ROTATE_MODE) {
-            return false;
+    private void invalidateDecorations(CDrawable d) {
+        if (d == null) {
+            return;
         }
-        mCurrentScale.setFactor(detector.getScaleFactor(), Math.min(getWidth(), getHeight()));
+        Rect damage = getDamageBounds(d, new Rect());
+        invalidate(damage.left, damage.top, damage.right, damage.bottom);
+    }
 
-        mCurrentRotation.setRotation((int)detector.getRotation());
+    /**
+     * Forces the committed drawables to be redrawn on the next frame. The view does this by
+     * itself for all of its operations; call it only after modifying the objects returned by
+     * getDrawablesList() directly.
+     */
+    public void invalidateCache() {
+        mSpatialIndexDirty = true;
+        invalidateContent();
+    }
 
+    /**
+     * Forces the content cache, or all the tiles, to be redrawn on the next frame.
+     */
+    private void invalidateContent() {
+        if (mTileCache != null) {
+            mTileCache.invalidateAll();
+        }
+        mContentCacheDirty = true;
         invalidate();
-        return true;
     }
 
-    private static final float TOUCH_TOLERANCE = 4;
+    private void growRect(Rect rect, int amount) {
+        rect.left -= amount;
+        rect.top -= amount;
+        rect.bottom += amount;
+        rect.right += amount;
+    }
+
+
+    /*********************************************************************************************/
+    /***********************************     Viewport    *****************************************/
+    /*********************************************************************************************/
 
     /**
-     * Handles the touch input if the mode is set to draw
-     *
-     * @param event the touch event
-     * @return the result of the action
+     * Changes what part of the world is visible.
+     * @param left The world coordinate shown at the left edge of the view.
+     * @param top The world coordinate shown at the top edge of the view.
+     * @param zoom The zoom level.
      */
-    public boolean onTouchDrawMode(MotionEvent event) {
-        // get location of touch
-        float eventX = event.getX();
-        float eventY = event.getY();
-        if (eventX < 0) {
-            eventX = 0;
-        }
-        if (eventY < 0) {
-            eventY = 0;
+    private void setViewport(float left, float top, float zoom) {
+        if (left == mHorizontalOffset && top == mVerticalOffset && zoom == mZoomLevel) {
+            return;
         }
-        if (eventX > getWidth()) {
-            eventX = getWidth();
+        mHorizontalOffset = left;
+        mVerticalOffset = top;
+        mZoomLevel = zoom;
+        mViewMatrix.setTranslate(-left, -top);
+        mViewMatrix.postScale(zoom, zoom);
+        mViewMatrix.invert(mInverseViewMatrix);
+        if (mTileCache != null) {
+            //The tiles are positioned in the world, so panning only blits them elsewhere.
+            invalidate();
         }
-        if (eventY > getHeight()) {
-            eventY = getHeight();
+        else {
+            invalidateContent();
         }
+    }
 
-        // based on the users action, start drawing
-        switch (event.getAction()) {
-            case MotionEvent.ACTION_DOWN:
-                // create new path and paint
-                currentPath = new CPath();
-                currentPaint = new Paint();
-                currentPaint.setAntiAlias(true);
-                currentPaint.setColor(mColor);
-                currentPaint.setStyle(mStyle);
-                currentPaint.setStrokeJoin(Paint.Join.ROUND);
-                currentPaint.setStrokeWidth(mSize);
-                currentPath.setPaint(currentPaint);
-                currentPath.moveTo(eventX, eventY);
-                // capture touched locations
-                lastTouchX = eventX;
-                lastTouchY = eventY;
-                mDrawableList.add(currentPath);
-                mUndoList.clear();
-                getParent().requestDisallowInterceptTouchEvent(true);
-                break;
-            case MotionEvent.ACTION_CANCEL:
-                getParent().requestDisallowInterceptTouchEvent(false);
-                break;
-            case MotionEvent.ACTION_MOVE:
-                float dx = Math.abs(eventX - lastTouchX);
-                float dy = Math.abs(eventY - lastTouchY);
+    private float clampZoomLevel(float zoom) {
+        return Math.max(mMinZoomLevel, Math.min(mMaxZoomLevel, zoom));
+    }
 
-                if (dx >= TOUCH_TOLERANCE || dy >= TOUCH_TOLERANCE) {
+    /**
+     * Maps a point of the view to the world. The result goes in mTouchPoint.
+     */
+    private void mapViewToWorld(float x, float y) {
+        mTouchPoint[0] = x;
+        mTouchPoint[1] = y;
+        mInverseViewMatrix.mapPoints(mTouchPoint);
+    }
 
-                    currentPath.quadTo(lastTouchX, lastTouchY, (eventX + lastTouchX) / 2, (eventY + lastTouchY) / 2);
-                    lastTouchX = eventX;
-                    lastTouchY = eventY;
-                }
-//                int historySize = event.getHistorySize();
-//                for (int i = 0; i < historySize; i++) {
-//                    float historicalX = event.getHistoricalX(i);
-//                    float historicalY = event.getHistoricalY(i);
-//                    currentPath.lineTo(historicalX, historicalY);
-//                }
-
-                // After replaying history, connect the line to the touch point.
-                //  currentPath.lineTo(eventX, eventY);
-
-                dirtyRect.left = Math.min(currentPath.getXcoords(), dirtyRect.left);
-                dirtyRect.right = Math.max(currentPath.getXcoords() + currentPath.getWidth(), dirtyRect.right);
-                dirtyRect.top = Math.min(currentPath.getYcoords(), dirtyRect.top);
-                dirtyRect.bottom = Math.max(currentPath.getYcoords() + currentPath.getHeight(), dirtyRect.bottom);
-
-                // After replaying history, connect the line to the touch point.
-                cleanDirtyRegion(eventX, eventY);
-                break;
-            case MotionEvent.ACTION_UP:
-                currentPath.lineTo(eventX, eventY);
-                getParent().requestDisallowInterceptTouchEvent(false);
-                break;
-            default:
-                return false;
-        }
+    /**
+     * Maps a rectangle of the world to the view.
+     * @param world The rectangle, in world coordinates.
+     * @param out Receives the smallest rectangle containing it, in view coordinates. Can be world.
+     * @return out, for convenience.
+     */
+    private Rect mapWorldToView(Rect world, Rect out) {
+        mMapRect.set(world);
+        mViewMatrix.mapRect(mMapRect);
+        mMapRect.roundOut(out);
+        return out;
+    }
 
-        // Include some padding to ensure nothing is clipped
-        invalidate();
-//                (int) (dirtyRect.left - 20),
-//                (int) (dirtyRect.top - 20),
-//                (int) (dirtyRect.right + 20),
-//                (int) (dirtyRect.bottom + 20));
+    /**
+     * Maps a rectangle of the view to the world.
+     * @param view The rectangle, in view coordinates.
+     * @param out Receives the smallest rectangle containing it, in world coordinates. Can be view.
+     * @return out, for convenience.
+     */
+    private Rect mapViewToWorld(Rect view, Rect out) {
+        mMapRect.set(view);
+        mInverseViewMatrix.mapRect(mMapRect);
+        mMapRect.roundOut(out);
+        return out;
+    }
 
-        // register most recent touch locations
-        lastTouchX = eventX;
-        lastTouchY = eventY;
-        return true;
+    /**
+     * @return The zoom level. 1 means that one unit of the world is one pixel. Default is 1.
+     */
+    public float getZoomLevel() {
+        return mZoomLevel;
     }
 
     /**
-     * Handles the touch input if the mode is set to select
-     *
-     * @param event the touch event
+     * Setter for the zoom level. The center of the view stays in place.
+     * @param zoom The new zoom level. It is kept between the zoom limits.
      */
-    private boolean onTouchSelectMode(MotionEvent event) {
-        ListIterator<CDrawable> li = mDrawableList.listIterator(mDrawableList.size());
-        switch (event.getAction()) {
-            case MotionEvent.ACTION_DOWN:
-                hovering = null;
-                pressStartTime = SystemClock.uptimeMillis();
-                pressedX = event.getX();
-                pressedY = event.getY();
+    public void setZoomLevel(float zoom) {
+        zoomTo(zoom, getWidth() / 2f, getHeight() / 2f);
+    }
 
-                while (li.hasPrevious()) {
-                    CDrawable d = li.previous();
-                    if (d instanceof CTransform) {
-                        continue;
-                    }
-                    Rect rect = d.computeBounds();
-                    if (rect.contains((int)pressedX, (int)pressedY)) {
-                        hovering = d;
-                        break;
-                    }
-                }
-                if(hovering != null) {
-                    getParent().requestDisallowInterceptTouchEvent(true);
-                }
-                return true;
-            case MotionEvent.ACTION_MOVE:
-                if(hovering == null) {
-                    break; //Nothing is being dragged.
+    /**
+     * Changes the zoom level while keeping a point of the view in place.
+     * @param zoom The new zoom level. It is kept between the zoom limits.
+     * @param focusX The horizontal position of the point, in view coordinates.
+     * @param focusY The vertical position of the point, in view coordinates.
+     */
+    public void zoomTo(float zoom, float focusX, float focusY) {
+        zoom = clampZoomLevel(zoom);
+        mapViewToWorld(focusX, focusY);
+        setViewport(mTouchPoint[0] - focusX / zoom, mTouchPoint[1] - focusY / zoom, zoom);
+    }
+
+    /**
+     * Setter for the smallest and largest zoom levels.
+     * @param minZoom The smallest zoom level. Default is DEFAULT_MIN_ZOOM_LEVEL.
+     * @param maxZoom The largest zoom level. Default is DEFAULT_MAX_ZOOM_LEVEL.
+     */
+    public void setZoomLimits(float minZoom, float maxZoom) {
+        if (minZoom <= 0 || maxZoom < minZoom) {
+            throw new IllegalArgumentException("Invalid zoom limits: " + minZoom + ", " + maxZoom);
+        }
+        mMinZoomLevel = minZoom;
+        mMaxZoomLevel = maxZoom;
+        setViewport(mHorizontalOffset, mVerticalOffset, clampZoomLevel(mZoomLevel));
+    }
+
+    /**
+     * @return The world coordinate shown at the left edge of the view. Default is 0.
+     */
+    public float getHorizontalOffset() {
+        return mHorizontalOffset;
+    }
+
+    /**
+     * @return The world coordinate shown at the top edge of the view. Default is 0.
+     */
+    public float getVerticalOffset() {
+        return mVerticalOffset;
+    }
+
+    /**
+     * Scrolls the view so that a world position is at its top left corner.
+     * @param worldX The horizontal world position.
+     * @param worldY The vertical world position.
+     */
+    public void scrollViewportTo(float worldX, float worldY) {
+        setViewport(worldX, worldY, mZoomLevel);
+    }
+
+    /**
+     * Scrolls the view.
+     * @param dx The horizontal distance, in pixels of the view.
+     * @param dy The vertical distance, in pixels of the view.
+     */
+    public void panBy(float dx, float dy) {
+        setViewport(mHorizontalOffset + dx / mZoomLevel, mVerticalOffset + dy / mZoomLevel, mZoomLevel);
+    }
+
+    /**
+     * Shows the world at its origin, without zoom.
+     */
+    public void resetViewport() {
+        setViewport(0, 0, 1);
+    }
+
+    /**
+     * @return The part of the world that is visible in the view, in world coordinates.
+     */
+    public RectF getVisibleWorldRect() {
+        RectF visible = new RectF(0, 0, getWidth(), getHeight());
+        mInverseViewMatrix.mapRect(visible);
+        return visible;
+    }
+
+    /**
+     * @return A copy of the matrix that maps world coordinates to view coordinates.
+     */
+    public Matrix getViewportMatrix() {
+        return new Matrix(mViewMatrix);
+    }
+
+    /**
+     * Maps points of the view, like touch positions, to world coordinates.
+     * @param points The points as x, y pairs. They are replaced with the result.
+     */
+    public void mapViewToWorld(float[] points) {
+        mInverseViewMatrix.mapPoints(points);
+    }
+
+    /**
+     * Enables or disables panning and zooming with two fingers. When a pinch gesture starts on a
+     * selected object and the ScaleRotateListener accepts it, the object is rotated instead.
+     * @param enabled true to enable the gestures. Default is false.
+     */
+    public void setViewportGesturesEnabled(boolean enabled) {
+        mViewportGesturesEnabled = enabled;
+    }
+
+    /**
+     * @return true if panning and zooming with two fingers is enabled.
+     */
+    public boolean isViewportGesturesEnabled() {
+        return mViewportGesturesEnabled;
+    }
+
+    /**
+     * Enables or disables tiled rendering. Instead of one raster of the view, the world is
+     * rasterized in tiles that are cached, up to a memory budget, and reused when they become
+     * visible again. Use it for documents much larger than the view, that are panned and zoomed a lot.
+     * @param enabled true to enable tiled rendering. Default is false.
+     */
+    public void setTiledRenderingEnabled(boolean enabled) {
+        if (enabled == (mTileCache != null)) {
+            return;
+        }
+        if (enabled) {
+            mTileCache = new TileCache(TileCache.DEFAULT_TILE_SIZE, getTileCacheSize());
+            mTileCache.setZoom(mZoomLevel);
+            if (mContentCache != null) {
+                BitmapPool.getInstance().release(mContentCache);
+                mContentCache = null;
+                mContentCacheCanvas = null;
+            }
+        }
+        else {
+            mTileCache.clear();
+            mTileCache = null;
+        }
+        invalidateContent();
+    }
+
+    /**
+     * @return true if tiled rendering is enabled.
+     */
+    public boolean isTiledRenderingEnabled() {
+        return mTileCache != null;
+    }
+
+    /**
+     * @return The memory budget of the tile cache, in bytes.
+     */
+    public long getTileCacheSize() {
+        if (mTileCacheSize <= 0) {
+            return Math.min(DEFAULT_TILE_CACHE_SIZE, Runtime.getRuntime().maxMemory() / 8);
+        }
+        return mTileCacheSize;
+    }
+
+    /**
+     * Setter for the memory budget of the tile cache. The tiles that are visible are always kept,
+     * even if they don't fit in the budget.
+     * @param bytes The budget, in bytes. 0 to use the default budget.
+     */
+    public void setTileCacheSize(long bytes) {
+        if (bytes < 0) {
+            throw new IllegalArgumentException("Invalid tile cache size: " + bytes);
+        }
+        mTileCacheSize = bytes;
+        if (mTileCache != null) {
+            mTileCache.setBudget(getTileCacheSize());
+        }
+    }
+
+
+    /*********************************************************************************************/
+    /*******************************     Handling User Touch    **********************************/
+    /*********************************************************************************************/
+
+    /**
+     * Handles user touch events.
+     *
+     * @param event the user's motion event
+     * @return true, the event is consumed.
+     */
+    @Override
+    public boolean onTouchEvent(MotionEvent event) {
+
+        //ROTATE_MODE is processed inside this:
+        mScaleDetector.onTouchEvent(event);
+        if(mScaleDetector.isInProgress()) {
+            return true;
+        }
+        // delegate action to the correct method
+        if (getInteractionMode() == DRAW_MODE)
+            return onTouchDrawMode(event);
+        if (getInteractionMode() == SELECT_MODE)
+            return onTouchSelectMode(event);
+        // if none of the above are selected, delegate to locked mode
+        return onTouchLockedMode(event);
+    }
+
+    /**
+     * Handles touch event if the mode is set to locked
+     *
+     * @param event the event to handle
+     * @return false, shouldn't do anything with it for now
+     */
+    private boolean onTouchLockedMode(MotionEvent event) {
+        // return false since we don't want to do anything so far
+        return false;
+    }
+
+    /**
+     * Takes care of scaling and rotating.
+     * @return true if the scaling gesture is consumed.
+     */
+    private boolean handleScale(ScaleRotationGestureDetector detector) {
+        if(mViewportGestureInProgress) {
+            updateViewportGesture(detector);
+            return true;
+        }
+        if(mInteractionMode != ROTATE_MODE || mCurrentScale == null) {
+            return false;
+        }
+        getDamageBounds(selected, mDamageBefore);
+        mCurrentScale.setFactor(detector.getScaleFactor(), Math.min(getWidth(), getHeight()) / mZoomLevel);
+
+        mCurrentRotation.setRotation((int)detector.getRotation());
+        reindexDrawable(selected);
+
+        getDamageBounds(selected, mDamageAfter);
+        mDamageAfter.union(mDamageBefore);
+        invalidateCacheRegion(mDamageAfter);
+        return true;
+    }
+
+    private static final float TOUCH_TOLERANCE = 4;
+
+    /**
+     * Handles the touch input if the mode is set to draw
+     *
+     * @param event the touch event
+     * @return the result of the action
+     */
+    public boolean onTouchDrawMode(MotionEvent event) {
+        // get location of touch, in world coordinates
+        mapViewToWorld(event.getX(), event.getY());
+        float eventX = mTouchPoint[0];
+        float eventY = mTouchPoint[1];
+        if (event.getAction() != MotionEvent.ACTION_DOWN && !mStrokeInProgress) {
+            //The stroke was cancelled, e.g. by a pinch gesture.
+            return true;
+        }
+
+        // based on the users action, start drawing
+        switch (event.getAction()) {
+            case MotionEvent.ACTION_DOWN:
+                // create new path and paint
+                currentPath = new CPath();
+                currentPaint = StyleTable.getStroke(Paint.ANTI_ALIAS_FLAG, mColor, mStyle, Paint.Join.ROUND, mSize);
+                currentPath.setPaint(currentPaint);
+                currentPath.moveTo(eventX, eventY);
+                mDrawableList.beginEdit(currentPath);
+                resetDirtyRegion(eventX, eventY);
+                mStrokeEndX = eventX;
+                mStrokeEndY = eventY;
+                // capture touched locations
+                lastTouchX = eventX;
+                lastTouchY = eventY;
+                mDrawableList.add(currentPath);
+                mStrokeInProgress = true;
+                getParent().requestDisallowInterceptTouchEvent(true);
+                break;
+            case MotionEvent.ACTION_CANCEL:
+                commitStroke();
+                getParent().requestDisallowInterceptTouchEvent(false);
+                break;
+            case MotionEvent.ACTION_MOVE:
+                // The samples batched by the system since the last event come first, then the
+                // current one. They are all added before a single invalidation.
+                clearDirtyRegion();
+                int historySize = event.getHistorySize();
+                for (int i = 0; i < historySize; i++) {
+                    mapViewToWorld(event.getHistoricalX(i), event.getHistoricalY(i));
+                    addStrokeSample(mTouchPoint[0], mTouchPoint[1]);
+                }
+                addStrokeSample(eventX, eventY);
+                break;
+            case MotionEvent.ACTION_UP:
+                resetDirtyRegion(mStrokeEndX, mStrokeEndY);
+                growDirtyRegion(eventX, eventY);
+                currentPath.lineTo(eventX, eventY);
+                commitStroke();
+                getParent().requestDisallowInterceptTouchEvent(false);
+                break;
+            default:
+                return false;
+        }
+
+        invalidateDirtyRegion();
+        return true;
+    }
+
+    /**
+     * Extends the stroke in progress towards a touch sample, if it is far enough from the last
+     * one. Grows the dirty region but doesn't invalidate.
+     * @param x The horizontal position of the sample, in world coordinates.
+     * @param y The vertical position of the sample, in world coordinates.
+     */
+    private void addStrokeSample(float x, float y) {
+        float dx = Math.abs(x - lastTouchX);
+        float dy = Math.abs(y - lastTouchY);
+        if (dx < TOUCH_TOLERANCE && dy < TOUCH_TOLERANCE) {
+            return;
+        }
+        float endX = (x + lastTouchX) / 2;
+        float endY = (y + lastTouchY) / 2;
+        // The new segment lies within its start, control and end points.
+        growDirtyRegion(mStrokeEndX, mStrokeEndY);
+        growDirtyRegion(lastTouchX, lastTouchY);
+        growDirtyRegion(endX, endY);
+        currentPath.quadTo(lastTouchX, lastTouchY, endX, endY);
+        mStrokeEndX = endX;
+        mStrokeEndY = endY;
+        // register most recent touch locations
+        lastTouchX = x;
+        lastTouchY = y;
+    }
+
+    /**
+     * Moves the stroke in progress into the content cache.
+     */
+    private void commitStroke() {
+        if (!mStrokeInProgress) {
+            return;
+        }
+        mStrokeInProgress = false;
+        if (currentPath != null) {
+            if (mSimplificationTolerance > 0) {
+                //The stroke on screen is replaced by the simplified one.
+                Rect damage = getDamageBounds(currentPath, new Rect());
+                mSimplifiedPointCount += currentPath.simplify(mSimplificationTolerance / mZoomLevel);
+                invalidate(damage.left, damage.top, damage.right, damage.bottom);
+            }
+            mDrawableList.endEdit(currentPath);
+            commitDrawable(currentPath);
+            recordAdd(currentPath);
+        }
+    }
+
+    /**
+     * Handles the touch input if the mode is set to select
+     *
+     * @param event the touch event
+     */
+    private boolean onTouchSelectMode(MotionEvent event) {
+        switch (event.getAction()) {
+            case MotionEvent.ACTION_DOWN:
+                pressStartTime = SystemClock.uptimeMillis();
+                pressedX = event.getX();
+                pressedY = event.getY();
+
+                mapViewToWorld(pressedX, pressedY);
+                hovering = getSpatialIndex().hitTest((int)mTouchPoint[0], (int)mTouchPoint[1]);
+                if(hovering != null) {
+                    getParent().requestDisallowInterceptTouchEvent(true);
+                }
+                return true;
+            case MotionEvent.ACTION_MOVE:
+                if(hovering == null) {
+                    break; //Nothing is being dragged.
                 }
                 updateHoveringPosition(event);
-                invalidate();
                 return true;
             case MotionEvent.ACTION_UP:
                 if(hovering != null) {
@@ -626,26 +1417,47 @@ public class FabricView extends View {
                         deleteSelection();
                         return true;
                     }
+                    invalidateDecorations(selected);
                     selected = hovering;
-                    if(hovering != null) {
+                    if(hovering != null && hoveringTranslation != null) {
+                        getDamageBounds(hovering, mDamageBefore);
                         hovering.removeTransform(hoveringTranslation);
                         mDrawableList.remove(hoveringTranslation);
+                        reindexDrawable(hovering);
+                        getDamageBounds(hovering, mDamageAfter);
+                        mDamageAfter.union(mDamageBefore);
+                        invalidateCacheRegion(mDamageAfter);
+                        hoveringTranslation = null;
                     }
+                    invalidateDecorations(selected);
                 } else if (distance > MAX_CLICK_DISTANCE) {
                     //It was a drag. Move the object there.
                     if (hovering != null) {
                         updateHoveringPosition(event);
                     }
                 }
-                invalidate();
+                if (hoveringTranslation != null) {
+                    //The drag is over; it can now be undone.
+                    mHistory.push(createTransformRecord(hoveringTranslation));
+                    mDrawableList.endEdit(hoveringTranslation);
+                    journalNewTransform(hoveringTranslation);
+                    scheduleTransformCompaction();
+                }
                 hovering = null;
                 hoveringTranslation = null;
                 return true;
             case MotionEvent.ACTION_CANCEL:
                 if(hovering != null) {
                     getParent().requestDisallowInterceptTouchEvent(false);
-                    hovering.removeTransform(hoveringTranslation);
-                    mDrawableList.remove(hoveringTranslation);
+                    if(hoveringTranslation != null) {
+                        getDamageBounds(hovering, mDamageBefore);
+                        hovering.removeTransform(hoveringTranslation);
+                        mDrawableList.remove(hoveringTranslation);
+                        reindexDrawable(hovering);
+                        getDamageBounds(hovering, mDamageAfter);
+                        mDamageAfter.union(mDamageBefore);
+                        invalidateCacheRegion(mDamageAfter);
+                    }
                     hovering = null;
                     hoveringTranslation = null;
                 }
@@ -662,23 +1474,28 @@ public class FabricView extends View {
             return; //Movement too small
         }
 
+        getDamageBounds(hovering, mDamageBefore);
         if(hoveringTranslation == null) {
             hoveringTranslation = new CTranslation(hovering);
             Vector<Integer> v = new Vector<>(2);
-            v.add((int) (event.getX() - pressedX));
-            v.add((int) (event.getY() - pressedY));
+            v.add((int) ((event.getX() - pressedX) / mZoomLevel));
+            v.add((int) ((event.getY() - pressedY) / mZoomLevel));
             hoveringTranslation.setDirection(v);
             hovering.addTransform(hoveringTranslation);
+            mDrawableList.beginEdit(hoveringTranslation);
             mDrawableList.add(hoveringTranslation);
-            mUndoList.clear();
         }
         else {
             //Last transform was a translation. Replace translation with new coordinates.
             Vector<Integer> v = new Vector<>(2);
-            v.add((int) (event.getX() - pressedX));
-            v.add((int) (event.getY() - pressedY));
+            v.add((int) ((event.getX() - pressedX) / mZoomLevel));
+            v.add((int) ((event.getY() - pressedY) / mZoomLevel));
             hoveringTranslation.setDirection(v);
         }
+        reindexDrawable(hovering);
+        getDamageBounds(hovering, mDamageAfter);
+        mDamageAfter.union(mDamageBefore);
+        invalidateCacheRegion(mDamageAfter);
     }
 
 
@@ -692,21 +1509,28 @@ public class FabricView extends View {
      * @param backgroundMode one of BACKGROUND_STYLE_GRAPH_PAPER, BACKGROUND_STYLE_NOTEBOOK_PAPER, BACKGROUND_STYLE_BLANK
      */
     public void drawBackground(Canvas canvas, int backgroundMode) {
+        drawBackground(canvas, backgroundMode, new RectF(0, 0, canvas.getWidth(), canvas.getHeight()));
+    }
+
+    /**
+     * Draw the background on a part of the canvas
+     *
+     * @param canvas         the canvas to draw on
+     * @param backgroundMode one of BACKGROUND_STYLE_GRAPH_PAPER, BACKGROUND_STYLE_NOTEBOOK_PAPER, BACKGROUND_STYLE_BLANK
+     * @param area           the part of the canvas to cover, in the coordinates of the canvas
+     */
+    private void drawBackground(Canvas canvas, int backgroundMode, RectF area) {
         if(mBackgroundColor != Color.TRANSPARENT) {
             canvas.drawColor(mBackgroundColor);
         }
         if (backgroundMode != BACKGROUND_STYLE_BLANK) {
-            Paint linePaint = new Paint();
-            linePaint.setColor(Color.argb(50, 0, 0, 0));
-            linePaint.setStyle(mStyle);
-            linePaint.setStrokeJoin(Paint.Join.ROUND);
-            linePaint.setStrokeWidth(mSize - 2f);
+            Paint linePaint = StyleTable.getStroke(0, Color.argb(50, 0, 0, 0), mStyle, Paint.Join.ROUND, mSize - 2f);
             switch (backgroundMode) {
                 case BACKGROUND_STYLE_GRAPH_PAPER:
-                    drawGraphPaperBackground(canvas, linePaint);
+                    drawGraphPaperBackground(canvas, linePaint, area);
                     break;
                 case BACKGROUND_STYLE_NOTEBOOK_PAPER:
-                    drawNotebookPaperBackground(canvas, linePaint);
+                    drawNotebookPaperBackground(canvas, linePaint, area);
                 default:
                     break;
             }
@@ -719,28 +1543,16 @@ public class FabricView extends View {
      *
      * @param canvas the canvas to draw on
      * @param paint  the paint to use
+     * @param area   the part of the canvas to cover
      */
-    private void drawGraphPaperBackground(Canvas canvas, Paint paint) {
-        int i = 0;
-        boolean doneH = false, doneV = false;
-
-        // while we still need to draw either H or V
-        while (!(doneH && doneV)) {
-
-            // check if there is more H lines to draw
-            if (i < canvas.getHeight())
-                canvas.drawLine(0, i, canvas.getWidth(), i, paint);
-            else
-                doneH = true;
-
-            // check if there is more V lines to draw
-            if (i < canvas.getWidth())
-                canvas.drawLine(i, 0, i, canvas.getHeight(), paint);
-            else
-                doneV = true;
-
-            // declare as done
-            i += 75;
+    static void drawGraphPaperBackground(Canvas canvas, Paint paint, RectF area) {
+        // horizontal lines
+        for (float i = firstLineAt(area.top); i <= area.bottom; i += BACKGROUND_LINE_SPACING) {
+            canvas.drawLine(area.left, i, area.right, i, paint);
+        }
+        // vertical lines
+        for (float i = firstLineAt(area.left); i <= area.right; i += BACKGROUND_LINE_SPACING) {
+            canvas.drawLine(i, area.top, i, area.bottom, paint);
         }
     }
 
@@ -749,25 +1561,27 @@ public class FabricView extends View {
      *
      * @param canvas the canvas to draw on
      * @param paint  the paint to use
+     * @param area   the part of the canvas to cover
      */
-    private void drawNotebookPaperBackground(Canvas canvas, Paint paint) {
-        int i = 0;
-        boolean doneV = false;
+    static void drawNotebookPaperBackground(Canvas canvas, Paint paint, RectF area) {
         // draw horizental lines
-        while (!(doneV)) {
-            if (i < canvas.getHeight())
-                canvas.drawLine(0, i, canvas.getWidth(), i, paint);
-            else
-                doneV = true;
-            i += 75;
-        }
-        // change line color
-        paint.setColor(NOTEBOOK_LEFT_LINE_COLOR);
+        for (float i = firstLineAt(area.top); i <= area.bottom; i += BACKGROUND_LINE_SPACING) {
+            canvas.drawLine(area.left, i, area.right, i, paint);
+        }
+        // same line in the margin color. The paint can be shared, so it is not modified.
+        Paint marginPaint = StyleTable.getStroke(paint.getFlags(), NOTEBOOK_LEFT_LINE_COLOR,
+                paint.getStyle(), paint.getStrokeJoin(), paint.getStrokeWidth());
         // draw side line
-        canvas.drawLine(NOTEBOOK_LEFT_LINE_PADDING, 0,
-                NOTEBOOK_LEFT_LINE_PADDING, canvas.getHeight(), paint);
-
+        canvas.drawLine(NOTEBOOK_LEFT_LINE_PADDING, area.top,
+                NOTEBOOK_LEFT_LINE_PADDING, area.bottom, marginPaint);
+    }
 
+    /**
+     * @param start The beginning of an area.
+     * @return The position of the first background line at or after the beginning of the area.
+     */
+    private static float firstLineAt(float start) {
+        return (float) Math.ceil(start / BACKGROUND_LINE_SPACING) * BACKGROUND_LINE_SPACING;
     }
 
     /**
@@ -781,12 +1595,12 @@ public class FabricView extends View {
     public void drawText(String text, int x, int y, Paint p) {
         if(p==null) {
             int px = (int) TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_SP, 20, getContext().getResources().getDisplayMetrics());
-            p = new Paint();
-            p.setTextSize(px);
-            p.setColor(Color.BLACK);
+            p = StyleTable.getText(0, Color.BLACK, px, null);
         }
-        mDrawableList.add(new CText(text, x, y, p));
-        mUndoList.clear();
+        CText t = new CText(text, x, y, p);
+        mDrawableList.add(t);
+        commitDrawable(t);
+        recordAdd(t);
         invalidate();
     }
 
@@ -801,52 +1615,384 @@ public class FabricView extends View {
     }
 
     /**
-     * Retrieve the region needing to be redrawn
+     * Starts a new region needing to be redrawn, at a single point.
+     *
+     * @param x The x location of the point
+     * @param y The y location of the point
+     */
+    private void resetDirtyRegion(float x, float y) {
+        dirtyRect.set(x, y, x, y);
+    }
+
+    /**
+     * Empties the region needing to be redrawn.
+     */
+    private void clearDirtyRegion() {
+        dirtyRect.set(0, 0, -1, -1);
+    }
+
+    /**
+     * Grows the region needing to be redrawn so that it contains a point.
      *
-     * @param eventX The current x location of the touch
-     * @param eventY the current y location of the touch
+     * @param x The x location of the point
+     * @param y The y location of the point
+     */
+    private void growDirtyRegion(float x, float y) {
+        if (dirtyRect.left > dirtyRect.right) {
+            resetDirtyRegion(x, y);
+            return;
+        }
+        dirtyRect.union(x, y);
+    }
+
+    /**
+     * Schedules a redraw of the region needing to be redrawn, grown by the stroke width so
+     * that nothing is clipped.
      */
-    private void cleanDirtyRegion(float eventX, float eventY) {
-        // figure out the sides of the dirty region
-        dirtyRect.left = Math.min(lastTouchX, eventX);
-        dirtyRect.right = Math.max(lastTouchX, eventX);
-        dirtyRect.top = Math.min(lastTouchY, eventY);
-        dirtyRect.bottom = Math.max(lastTouchY, eventY);
+    private void invalidateDirtyRegion() {
+        if (dirtyRect.left > dirtyRect.right) {
+            return;
+        }
+        mViewMatrix.mapRect(mMapRect, dirtyRect);
+        float padding = mSize * mZoomLevel / 2 + DAMAGE_PADDING;
+        invalidate((int) Math.floor(mMapRect.left - padding),
+                (int) Math.floor(mMapRect.top - padding),
+                (int) Math.ceil(mMapRect.right + padding),
+                (int) Math.ceil(mMapRect.bottom + padding));
     }
 
     /**
      * Cancels the last operation. Works on both CDrawable and CTransform.
      */
     public void undo() {
-        if (mDrawableList.size() > 0) {
-            CDrawable toUndo = mDrawableList.get(mDrawableList.size() - 1);
-            mUndoList.add(toUndo);
-            mDrawableList.remove(mDrawableList.size() - 1);
-            if(toUndo instanceof CTransform) {
-                CTransform t = (CTransform)toUndo;
-                t.getDrawable().removeTransform(t);
+        mHistory.undo(mHistoryTarget);
+    }
+
+    /**
+     * Re-instates the last undone operation.
+     */
+    public void redo() {
+        mHistory.redo(mHistoryTarget);
+    }
+
+    /**
+     * @return true if there is an operation to cancel with undo().
+     */
+    public boolean canUndo() {
+        return mHistory.canUndo();
+    }
+
+    /**
+     * @return true if there is an operation to re-instate with redo().
+     */
+    public boolean canRedo() {
+        return mHistory.canRedo();
+    }
+
+    /**
+     * Setter for the limits of the undo history. When an operation goes over one of them, the
+     * oldest operations can't be undone anymore. Deleted objects and undone operations count
+     * towards the memory limit, since the history is what keeps them alive.
+     * @param maxDepth The number of operations that can be undone. The default is 100.
+     * @param maxBytes The memory retained by the history, in bytes. The default is 16 MB.
+     */
+    public void setHistoryLimits(int maxDepth, long maxBytes) {
+        if (maxDepth < 0 || maxBytes < 0) {
+            throw new IllegalArgumentException("Invalid history limits: " + maxDepth + ", " + maxBytes);
+        }
+        mHistory.setLimits(maxDepth, maxBytes);
+    }
+
+    /**
+     * Folds the transforms that can't be undone anymore into their drawable. The lines of a CPath
+     * are moved by them, and the transforms of the other drawables are replaced by a single
+     * CMatrixTransform. The drawables look the same, but are drawn without replaying each
+     * transform, and the list holds fewer objects. The transforms that undo() or redo() can still
+     * put back or remove are kept, along with the ones above them in the stack of their drawable.
+     * This is done by itself when idle after moving, rotating or scaling; see
+     * setTransformCompactionEnabled(). Does nothing during a gesture.
+     * @return The number of transforms removed from the list.
+     */
+    public int compactTransforms() {
+        return compactTransforms(1);
+    }
+
+    /**
+     * Enables or disables folding the transforms when idle after moving, rotating or scaling.
+     * Disable it if your application keeps references to the transforms or to the points of the
+     * paths.
+     * @param enabled true to fold them. Default is true.
+     */
+    public void setTransformCompactionEnabled(boolean enabled) {
+        mTransformCompactionEnabled = enabled;
+    }
+
+    /**
+     * @return true if the transforms are folded when idle. See compactTransforms().
+     */
+    public boolean isTransformCompactionEnabled() {
+        return mTransformCompactionEnabled;
+    }
+
+    /**
+     * Folds the transforms once the main thread is idle.
+     */
+    private void scheduleTransformCompaction() {
+        if (mTransformCompactionEnabled && !mTransformCompactionScheduled) {
+            mTransformCompactionScheduled = true;
+            Looper.myQueue().addIdleHandler(mTransformCompaction);
+        }
+    }
+
+    /**
+     * @return true while a stroke, a move, a rotation or a scaling is not finished.
+     */
+    private boolean isGestureInProgress() {
+        return mStrokeInProgress || hoveringTranslation != null || mCurrentRotation != null;
+    }
+
+    /**
+     * @param minimum Does nothing unless at least this many transforms can be folded.
+     * @return The number of transforms removed from the list.
+     */
+    private int compactTransforms(int minimum) {
+        if (isGestureInProgress()) {
+            return 0;
+        }
+        Set<CDrawable> kept = Collections.newSetFromMap(new IdentityHashMap<CDrawable, Boolean>());
+        mHistory.collectDrawables(kept);
+        //The history puts detached transforms back at their position in the stack, which must not move.
+        Set<CDrawable> pinned = Collections.newSetFromMap(new IdentityHashMap<CDrawable, Boolean>());
+        for (CDrawable d : kept) {
+            if (d instanceof CTransform) {
+                CDrawable target = ((CTransform) d).getDrawable();
+                if (target != null && !target.getTransforms().contains(d)) {
+                    pinned.add(target);
+                }
+            }
+        }
+        ArrayList<CDrawable> candidates = new ArrayList<>();
+        int total = 0;
+        for (CDrawable d : mDrawableList.getSnapshot()) {
+            if (d instanceof CTransform || !d.hasTransforms() || pinned.contains(d)) {
+                continue;
+            }
+            int count = countFoldableTransforms(d, kept);
+            if (count > 0) {
+                candidates.add(d);
+                total += count;
+            }
+        }
+        if (total < minimum) {
+            return 0;
+        }
+        int removed = 0;
+        for (CDrawable d : candidates) {
+            removed += foldTransforms(d, countFoldableTransforms(d, kept));
+        }
+        if (mJournal != null) {
+            //Moved lines can't be logged. The journal starts over from the compacted list.
+            mJournal.start(getCommittedDrawables());
+        }
+        return removed;
+    }
+
+    /**
+     * @return The number of transforms at the bottom of the stack of a drawable that can be folded.
+     */
+    private int countFoldableTransforms(CDrawable d, Set<CDrawable> kept) {
+        List<CTransform> transforms = d.getTransforms();
+        int count = 0;
+        while (count < transforms.size()) {
+            CTransform t = transforms.get(count);
+            if (kept.contains(t) || mDrawableList.getSeq(t) < 0) {
+                break;
             }
+            count++;
+        }
+        //A single transform is already as compact as it gets, unless it goes into the lines.
+        return count == 1 && !(d instanceof CPath) ? 0 : count;
+    }
 
-            invalidate();
+    /**
+     * Replaces the transforms at the bottom of the stack of a drawable by their composition.
+     * @param count The number of transforms to fold.
+     * @return The number of transforms removed from the list.
+     */
+    private int foldTransforms(CDrawable d, int count) {
+        List<CTransform> transforms = d.getTransforms();
+        Matrix matrix = new Matrix();
+        long firstSeq = Long.MAX_VALUE;
+        for (int i = 0; i < count; i++) {
+            CTransform t = transforms.get(i);
+            t.applyTransform(matrix);
+            long seq = mDrawableList.removeDrawable(t);
+            firstSeq = Math.min(firstSeq, seq);
+            if (seq <= savePoint) {
+                mSavedDrawablesRemoved++;
+            }
         }
+        transforms.subList(0, count).clear();
+        if (d instanceof CPath) {
+            ((CPath) d).transformGeometry(matrix);
+            d.invalidateTransforms();
+            mDrawableList.transformsChanged(d);
+            reindexDrawable(d);
+            return count;
+        }
+        CMatrixTransform folded = new CMatrixTransform(d, matrix);
+        transforms.add(0, folded);
+        d.invalidateTransforms();
+        //Below the transforms that are left, as in documents where they are attached in order.
+        mDrawableList.insert(folded, firstSeq);
+        return count - 1;
     }
 
     /**
-     * Re-instates the last undone operation.
+     * Adds an operation to the history, for a drawable just added at the top of the list.
+     * @param d The new drawable.
      */
-    public void redo() {
-        if (mUndoList.size() > 0) {
-            CDrawable toRedo = mUndoList.get(mUndoList.size() - 1);
-            mDrawableList.add(toRedo);
-            mDrawableList.addAll(toRedo.getTransforms());
-            mUndoList.remove(toRedo);
-            if(toRedo instanceof CTransform) {
-                CTransform t = (CTransform)toRedo;
-                t.getDrawable().addTransform(t);
+    private void recordAdd(CDrawable d) {
+        mHistory.push(new UndoHistory.AddRecord(d, mDrawableList.getSeq(d)));
+        journalInsert(d);
+    }
+
+    /**
+     * @param t A transform just added at the top of the stack of its drawable, and to the list.
+     * @return The operation, for the history.
+     */
+    private UndoHistory.Record createTransformRecord(CTransform t) {
+        return new UndoHistory.TransformRecord(t, mDrawableList.getSeq(t),
+                t.getDrawable().getTransforms().size() - 1, false);
+    }
+
+    /**
+     * Creates the operation deleting a drawable and its transforms, without applying it.
+     * @param drawable The drawable, or a transform to delete on its own.
+     * @return The operation, or null if the drawable is not in the list.
+     */
+    private UndoHistory.Record createDeleteRecord(CDrawable drawable) {
+        long seq = mDrawableList.getSeq(drawable);
+        if (seq < 0) {
+            return null;
+        }
+        if (drawable instanceof CTransform) {
+            return new UndoHistory.TransformRecord((CTransform) drawable, seq, -1, true);
+        }
+        List<CTransform> transforms = drawable.getTransforms();
+        CDrawable[] items = new CDrawable[1 + transforms.size()];
+        long[] seqs = new long[items.length];
+        int count = 0;
+        items[count] = drawable;
+        seqs[count++] = seq;
+        for (CTransform t : transforms) {
+            long transformSeq = mDrawableList.getSeq(t);
+            if (transformSeq >= 0) {
+                items[count] = t;
+                seqs[count++] = transformSeq;
             }
+        }
+        if (count < items.length) {
+            items = Arrays.copyOf(items, count);
+            seqs = Arrays.copyOf(seqs, count);
+        }
+        return new UndoHistory.DeleteRecord(items, seqs);
+    }
 
-            invalidate();
+    /**
+     * Puts a drawable back in the list, for the history.
+     */
+    private void insertDrawable(CDrawable d, long seq) {
+        mDrawableList.insert(d, seq);
+        journalInsert(d);
+        if (seq <= savePoint) {
+            mSavedDrawablesRemoved--;
+        }
+        if (d instanceof CTransform) {
+            return;
+        }
+        if (!mSpatialIndexDirty) {
+            mSpatialIndex.insert(d, getPaintedBounds(d, mDamageAfter), seq);
         }
+        invalidateCacheRegion(getDamageBounds(d, mDamageAfter));
+    }
+
+    /**
+     * Removes a drawable from the list, for the history.
+     */
+    private void removeDrawable(CDrawable d) {
+        long seq = mDrawableList.removeDrawable(d);
+        if (seq < 0) {
+            return;
+        }
+        if (mJournal != null) {
+            mJournal.logRemove(d);
+            scheduleJournalCheck();
+        }
+        if (seq <= savePoint) {
+            mSavedDrawablesRemoved++;
+        }
+        if (d instanceof CTransform) {
+            return;
+        }
+        invalidateCacheRegion(getDamageBounds(d, mDamageBefore));
+        if (!mSpatialIndexDirty) {
+            mSpatialIndex.remove(d);
+        }
+        if (d == selected) {
+            selected = null;
+        }
+        if (d == hovering) {
+            mDrawableList.endEdit(hoveringTranslation);
+            hovering = null;
+            hoveringTranslation = null;
+        }
+    }
+
+    /**
+     * Adds a transform back to its drawable, for the history.
+     */
+    private void attachTransform(CTransform t, int index) {
+        CDrawable d = t.getDrawable();
+        getDamageBounds(d, mDamageBefore);
+        List<CTransform> transforms = d.getTransforms();
+        index = index < 0 ? transforms.size() : Math.min(index, transforms.size());
+        transforms.add(index, t);
+        d.invalidateTransforms();
+        mDrawableList.transformsChanged(d);
+        if (mJournal != null) {
+            mJournal.logAttach(t, index);
+            scheduleJournalCheck();
+        }
+        reindexDrawable(d);
+        getDamageBounds(d, mDamageAfter);
+        mDamageAfter.union(mDamageBefore);
+        invalidateCacheRegion(mDamageAfter);
+    }
+
+    /**
+     * Removes a transform from its drawable, for the history.
+     * @return Where the transform was in the stack of transforms of the drawable.
+     */
+    private int detachTransform(CTransform t) {
+        CDrawable d = t.getDrawable();
+        getDamageBounds(d, mDamageBefore);
+        List<CTransform> transforms = d.getTransforms();
+        int index = transforms.lastIndexOf(t);
+        if (index >= 0) {
+            transforms.remove(index);
+            d.invalidateTransforms();
+            mDrawableList.transformsChanged(d);
+            if (mJournal != null) {
+                mJournal.logDetach(t);
+                scheduleJournalCheck();
+            }
+        }
+        reindexDrawable(d);
+        getDamageBounds(d, mDamageAfter);
+        mDamageAfter.union(mDamageBefore);
+        invalidateCacheRegion(mDamageAfter);
+        return index;
     }
 
     /**
@@ -857,10 +2003,94 @@ public class FabricView extends View {
         // remove everything from the list
         mDrawableList.clear();
         currentPath = null;
-        mUndoList.clear();
+        mHistory.clear();
         savePoint = -1;
+        mSavedDrawablesRemoved = 0;
+        mStrokeInProgress = false;
+        mSpatialIndex.clear();
+        mSpatialIndexDirty = false;
+        if (mJournal != null) {
+            mJournal.logClear();
+            scheduleJournalCheck();
+        }
         // request to redraw the canvas
-        invalidate();
+        invalidateContent();
+    }
+
+    /**
+     * Logs a drawable just put in the list in the journal, with its place in the list.
+     */
+    private void journalInsert(CDrawable d) {
+        if (mJournal == null) {
+            return;
+        }
+        //The place is given by the next drawable that the journal knows.
+        CDrawable above = mDrawableList.getNext(mDrawableList.getSeq(d));
+        while (above != null && !mJournal.isLogged(above)) {
+            above = mDrawableList.getNext(mDrawableList.getSeq(above));
+        }
+        mJournal.logInsert(d, above);
+        scheduleJournalCheck();
+    }
+
+    /**
+     * Logs a transform at the end of the gesture that created it, when its values are final.
+     */
+    private void journalNewTransform(CTransform t) {
+        if (mJournal == null || t == null || !mDrawableList.contains(t)) {
+            return; //Undone already.
+        }
+        journalInsert(t);
+        mJournal.logAttach(t, t.getDrawable().getTransforms().lastIndexOf(t));
+    }
+
+    /**
+     * Checks whether the journal needs a new snapshot, once the current event is handled.
+     */
+    private void scheduleJournalCheck() {
+        if (!mJournalCheckPosted) {
+            mJournalCheckPosted = true;
+            post(mJournalCheck);
+        }
+    }
+
+    /**
+     * @return The list of drawables, without the ones of the gesture in progress.
+     */
+    private List<CDrawable> getCommittedDrawables() {
+        return mDrawableList.getSnapshot();
+    }
+
+    /**
+     * Starts logging every change to the drawables in an autosave journal. If the journal holds
+     * the work of a previous session, for example after a crash, it replaces the current
+     * drawables first. The history is cleared in that case.
+     * @param journal The journal. See stopJournal().
+     * @throws IOException If the previous session could not be read.
+     */
+    public void startJournal(Journal journal) throws IOException {
+        stopJournal();
+        List<CDrawable> recovered = journal.recover();
+        if (!recovered.isEmpty()) {
+            cleanPage();
+            for (CDrawable d : recovered) {
+                mDrawableList.add(d);
+            }
+            mSpatialIndexDirty = true;
+            invalidateContent();
+        }
+        mJournal = journal;
+        mJournal.start(getCommittedDrawables());
+    }
+
+    /**
+     * Stops logging the changes, and closes the journal. Blocks until everything is written.
+     */
+    public void stopJournal() {
+        if (mJournal != null) {
+            mJournal.close();
+            mJournal = null;
+        }
     }
 
     /**
@@ -873,11 +2103,30 @@ public class FabricView extends View {
      * @param pic    the image itself
      */
     public void drawImage(int x, int y, int width, int height, Bitmap pic) {
-        CBitmap bitmap = new CBitmap(pic, x, y);
+        addImage(new CBitmap(pic, x, y), width, height);
+    }
+
+    /**
+     * Draws an image on the canvas, from its compressed form. Only the compressed data is kept:
+     * the image is decoded at the resolution it is shown at, within the budget of ImageAsset. Use
+     * this for photos.
+     *
+     * @param x       location of the image
+     * @param y       location of the image
+     * @param width   the width of the image
+     * @param height  the height of the image
+     * @param encoded the content of a PNG or JPEG file
+     */
+    public void drawImage(int x, int y, int width, int height, byte[] encoded) {
+        addImage(new CBitmap(new ImageAsset(encoded), x, y, null), width, height);
+    }
+
+    private void addImage(CBitmap bitmap, int width, int height) {
         bitmap.setWidth(width);
         bitmap.setHeight(height);
         mDrawableList.add(bitmap);
-        mUndoList.clear();
+        commitDrawable(bitmap);
+        recordAdd(bitmap);
         invalidate();
     }
 
@@ -888,15 +2137,15 @@ public class FabricView extends View {
 
 
     /**
-     * Gets what has been drawn on the canvas so far as a bitmap
+     * Gets what has been drawn on the canvas so far as a bitmap. The bitmap can be given back to
+     * BitmapPool once you are done with it.
      *
      * @return Bitmap of the canvas.
      */
     public Bitmap getCanvasBitmap() {
-        // build drawing cache of the canvas, use it to create a new bitmap, then destroy it.
-        buildDrawingCache();
-        Bitmap mCanvasBitmap = Bitmap.createBitmap(getDrawingCache());
-        destroyDrawingCache();
+        // draw the view straight into a pooled bitmap, instead of going through the drawing cache.
+        Bitmap mCanvasBitmap = BitmapPool.getInstance().obtain(getWidth(), getHeight(), Bitmap.Config.ARGB_8888);
+        draw(new Canvas(mCanvasBitmap));
 
         // return the created bitmap.
         return mCanvasBitmap;
@@ -908,11 +2157,12 @@ public class FabricView extends View {
      * @return Bitmap of the canvas, cropped.
      */
     public Bitmap getCroppedCanvasBitmap() {
+        Rect cropBounds = computeContentBounds();
         if(cropBounds == null) {
             //No pixels at all
             return null;
         }
-        Bitmap mCanvasBitmap = getCanvasBitmap();
+        mapWorldToView(cropBounds, cropBounds);
 
         Rect size = new Rect(cropBounds);
         if(size.left < 0) {
@@ -921,17 +2171,89 @@ public class FabricView extends View {
         if(size.top < 0) {
             size.top = 0;
         }
-        if(size.right > mCanvasBitmap.getWidth()) {
-            size.right = mCanvasBitmap.getWidth();
+        if(size.right > getWidth()) {
+            size.right = getWidth();
         }
-        if(size.bottom > mCanvasBitmap.getHeight()) {
-            size.bottom = mCanvasBitmap.getHeight();
+        if(size.bottom > getHeight()) {
+            size.bottom = getHeight();
+        }
+        if(size.isEmpty()) {
+            //Nothing visible
+            return null;
         }
 
-        Bitmap cropped = Bitmap.createBitmap(mCanvasBitmap, size.left, size.top, size.width(), size.height());
+        // only the cropped area is drawn, so the whole view is never copied.
+        Bitmap cropped = BitmapPool.getInstance().obtain(size.width(), size.height(), Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(cropped);
+        canvas.translate(-size.left, -size.top);
+        draw(canvas);
         return cropped;
     }
 
+    /**
+     * Renders a part of the drawables into a bitmap of any size, on a background thread. The
+     * drawables are captured when this is called, so they can keep changing while the bitmap is
+     * rendered. The stroke in progress and the decorations are not included, nor the background
+     * pattern.
+     * @param area The part to render, in world coordinates.
+     * @param scale The number of pixels of the bitmap per world unit. 1 is the size at zoom level 1.
+     * @param callback Receives the bitmap on the UI thread. Can be null.
+     * @return The bitmap, once rendered.
+     */
+    public Future<Bitmap> exportBitmap(Rect area, float scale, ExportRenderer.Callback callback) {
+        ArrayList<CDrawable> drawables = new ArrayList<>();
+        getSpatialIndex().query(area, drawables);
+        if (mStrokeInProgress) {
+            drawables.remove(currentPath);
+        }
+        return getExportRenderer().render(drawables, area, scale, mBackgroundColor, callback);
+    }
+
+    /**
+     * Same as exportBitmap(), for the area covered by the drawables. Unlike getCroppedCanvasBitmap(),
+     * it does not depend on the size of the view nor on the current zoom level.
+     * @param scale The number of pixels of the bitmap per world unit.
+     * @param callback Receives the bitmap on the UI thread. Can be null.
+     * @return The bitmap, once rendered, or null if there is nothing to render.
+     */
+    public Future<Bitmap> exportCroppedBitmap(float scale, ExportRenderer.Callback callback) {
+        Rect bounds = computeContentBounds();
+        if (bounds == null || bounds.isEmpty()) {
+            return null;
+        }
+        return exportBitmap(bounds, scale, callback);
+    }
+
+    /**
+     * Renders the area covered by the drawables into a PNG image, on background threads. The
+     * image is rendered and encoded in bands, so it can be much larger than what fits in memory,
+     * for example to print at 300 DPI. The drawables are captured when this is called. The stroke in
+     * progress and the decorations are not included, nor the background pattern.
+     * @param out The stream to write to. Not closed. Must not be used until done.
+     * @param scale The number of pixels of the image per world unit.
+     * @param callback Told on the UI thread when the image is written. Can be null.
+     * @return Done when the image is written, or null if there is nothing to render.
+     */
+    public Future<Void> exportPng(OutputStream out, float scale, ExportRenderer.WriteCallback callback) {
+        Rect bounds = computeContentBounds();
+        if (bounds == null || bounds.isEmpty()) {
+            return null;
+        }
+        ArrayList<CDrawable> drawables = new ArrayList<>();
+        getSpatialIndex().query(bounds, drawables);
+        if (mStrokeInProgress) {
+            drawables.remove(currentPath);
+        }
+        return getExportRenderer().renderPng(drawables, bounds, scale, mBackgroundColor, out, callback);
+    }
+
+    private ExportRenderer getExportRenderer() {
+        if (mExportRenderer == null) {
+            mExportRenderer = new ExportRenderer();
+        }
+        return mExportRenderer;
+    }
+
     /**
      * @return the drawing line color. Default is Color.BLACK.
      */
@@ -960,6 +2282,7 @@ public class FabricView extends View {
      */
     public void setBackgroundColor(int mBackgroundColor) {
         this.mBackgroundColor = mBackgroundColor;
+        invalidateContent();
     }
 
     /**
@@ -975,7 +2298,7 @@ public class FabricView extends View {
      */
     public void setBackgroundMode(int mBackgroundMode) {
         this.mBackgroundMode = mBackgroundMode;
-        invalidate();
+        invalidateContent();
     }
 
     /**
@@ -991,6 +2314,10 @@ public class FabricView extends View {
      */
     public void setStyle(Paint.Style mStyle) {
         this.mStyle = mStyle;
+        if (mBackgroundMode != BACKGROUND_STYLE_BLANK) {
+            //The background lines use the drawing style.
+            invalidateContent();
+        }
     }
 
     /**
@@ -1006,6 +2333,46 @@ public class FabricView extends View {
      */
     public void setSize(float mSize) {
         this.mSize = mSize;
+        if (mBackgroundMode != BACKGROUND_STYLE_BLANK) {
+            //The background lines use the drawing size.
+            invalidateContent();
+        }
+    }
+
+    /**
+     * @return The largest error allowed when simplifying a finished stroke. The default is 0.
+     */
+    public float getStrokeSimplificationTolerance() {
+        return mSimplificationTolerance;
+    }
+
+    /**
+     * Setter for the simplification of strokes. When a stroke is finished, the points that
+     * don't change its shape by more than the tolerance are removed (see CPath.simplify()). This
+     * saves memory and drawing time on handwriting-heavy pages. See getSimplifiedPointCount() for
+     * how many points it removes.
+     * @param tolerance The largest error allowed, in pixels of the view. 0 to keep every point.
+     */
+    public void setStrokeSimplificationTolerance(float tolerance) {
+        if (tolerance < 0) {
+            throw new IllegalArgumentException("Invalid tolerance: " + tolerance);
+        }
+        mSimplificationTolerance = tolerance;
+    }
+
+    /**
+     * @return The number of points removed from finished strokes by their simplification, since
+     * this view was created or resetSimplifiedPointCount() was called.
+     */
+    public long getSimplifiedPointCount() {
+        return mSimplifiedPointCount;
+    }
+
+    /**
+     * Sets the number of points removed by the simplification of strokes back to 0.
+     */
+    public void resetSimplifiedPointCount() {
+        mSimplifiedPointCount = 0;
     }
 
     /**
@@ -1032,35 +2399,102 @@ public class FabricView extends View {
     }
 
     /**
-     * @return the list of all CDrawables in order of insertion.
+     * @return the list of all CDrawables in order of insertion. If you modify it, call
+     * invalidateCache() afterwards. It can only be used from the main thread; other threads must
+     * use getDocument().getSnapshot().
      */
     public List<CDrawable> getDrawablesList() {
         return mDrawableList;
     }
 
+    /**
+     * @return The document holding the CDrawables. Its snapshots can be read from any thread.
+     */
+    public FabricDocument getDocument() {
+        return mDrawableList;
+    }
+
     /**
      * Indicates that all CDrawables in the list have been saved.
      */
     public void markSaved() {
-        savePoint = mDrawableList.size()-1;
+        savePoint = mDrawableList.getLastSeq();
+        mSavedDrawablesRemoved = 0;
     }
 
     /**
      * @return true if there were no new operations done after the last call to markSaved().
      */
     public boolean isSaved() {
-        return savePoint < mDrawableList.size();
+        return mSavedDrawablesRemoved == 0 && mDrawableList.getLastSeq() <= savePoint;
     }
 
     /**
-     * @return The list of all CDrawables that have been added after the last call to markSaved().
+     * @return A copy of the list of all CDrawables that have been added after the last call to markSaved().
      */
     public List<CDrawable> getUnsavedDrawablesList() {
-        if (savePoint >= mDrawableList.size()) {
-            //Some things were deleted.
-            return new ArrayList<>();
+        return mDrawableList.getAfter(savePoint);
+    }
+
+    /**
+     * Writes all the CDrawables to a stream, in the binary format of DocumentWriter. The stream is
+     * not closed.
+     * @param out The stream to write to.
+     * @param resolver Stores the images outside of the document. If null, they are embedded.
+     * @throws IOException If the document could not be written.
+     */
+    public void saveDocument(OutputStream out, BitmapResolver resolver) throws IOException {
+        DocumentWriter writer = new DocumentWriter(out, resolver);
+        //Without the gesture in progress.
+        writer.writeAll(mDrawableList.getSnapshot());
+        writer.finish();
+    }
+
+    /**
+     * Writes all the CDrawables as an SVG image, with the background color. The image shows the
+     * area covered by the drawables, or the view if there are none. The background pattern is
+     * not included. The writer is not closed.
+     * @param out The writer to write to. Should be buffered.
+     * @param resolver Stores the images outside of the SVG, to link them. If null, they are embedded.
+     * @throws IOException If the image could not be written.
+     */
+    public void exportSvg(Writer out, BitmapResolver resolver) throws IOException {
+        Rect bounds = computeContentBounds();
+        if (bounds == null) {
+            bounds = new Rect(0, 0, getWidth(), getHeight());
+            mapViewToWorld(bounds, bounds);
+        }
+        SvgWriter writer = new SvgWriter(out, bounds, resolver);
+        writer.writeBackground(mBackgroundColor);
+        writer.writeAll(mDrawableList.getSnapshot());
+        writer.finish();
+    }
+
+    /**
+     * Replaces all the CDrawables with the ones of a document written by saveDocument() or by a
+     * DocumentWriter. The drawables are added as they are read, and the history is cleared. On
+     * success, the document is marked as saved. The stream is not closed.
+     * @param in The stream to read from.
+     * @param resolver Loads the images stored outside of the document. Can be null.
+     * @throws IOException If the document could not be read. The drawables read before the error
+     * are kept.
+     */
+    public void loadDocument(InputStream in, BitmapResolver resolver) throws IOException {
+        DocumentReader reader = new DocumentReader(in, resolver);
+        cleanPage();
+        try {
+            CDrawable d;
+            while ((d = reader.read()) != null) {
+                mDrawableList.add(d);
+            }
+        } finally {
+            mSpatialIndexDirty = true;
+            invalidateContent();
+        }
+        markSaved();
+        if (mJournal != null) {
+            mJournal.start(getCommittedDrawables());
         }
-        return mDrawableList.subList(savePoint+1, mDrawableList.size());
     }
 
     /**
@@ -1068,10 +2502,21 @@ public class FabricView extends View {
      * Does not trigger DeletionConfirmationListener.
      */
     public void revertUnsaved() {
-        List<CDrawable> unsaved = new ArrayList<>(getUnsavedDrawablesList());
+        List<CDrawable> unsaved = getUnsavedDrawablesList();
+        ArrayList<UndoHistory.Record> records = new ArrayList<>();
         for (CDrawable d :
                 unsaved) {
-            deletionConfirmed(d);
+            UndoHistory.Record record = createDeleteRecord(d);
+            if (record == null) {
+                continue; //Already deleted with its drawable.
+            }
+            record.apply(mHistoryTarget);
+            records.add(record);
+            notifyDeleted(d);
+        }
+        if (!records.isEmpty()) {
+            //The whole revert is undone at once.
+            mHistory.push(new UndoHistory.BatchRecord(records));
         }
     }
 
@@ -1089,10 +2534,11 @@ public class FabricView extends View {
             if (d instanceof CTransform) {
                 continue;
             }
+            invalidateDecorations(selected);
             selected = d;
+            invalidateDecorations(selected);
             break;
         }
-        invalidate();
     }
 
     /**
@@ -1106,8 +2552,8 @@ public class FabricView extends View {
      * Cancels all selection. No object will be selected.
      */
     public void deSelect() {
+        invalidateDecorations(selected);
         selected = null;
-        invalidate();
     }
 
     /**
@@ -1150,17 +2596,16 @@ public class FabricView extends View {
         if (drawable == null) {
             return;
         }
-        ArrayList<CDrawable> toDelete = new ArrayList<>();
-        toDelete.add(drawable);
-        toDelete.addAll(drawable.getTransforms());
-        for (CDrawable d :
-                toDelete) {
-            if(mDrawableList.indexOf(d) <= savePoint) {
-                savePoint--;
-            }
-            mDrawableList.remove(d);
+        UndoHistory.Record record = createDeleteRecord(drawable);
+        if (record == null) {
+            return;
         }
-        mUndoList.add(drawable);
+        record.apply(mHistoryTarget);
+        mHistory.push(record);
+        notifyDeleted(drawable);
+    }
+
+    private void notifyDeleted(CDrawable drawable) {
         if (deletionListener != null) {
             try {
                 deletionListener.deleted(drawable);
@@ -1169,7 +2614,6 @@ public class FabricView extends View {
                 //Do nothing
             }
         }
-        invalidate();
     }
 
     /**
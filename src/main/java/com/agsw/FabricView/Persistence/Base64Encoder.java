@@ -0,0 +1,99 @@
+package com.agsw.FabricView.Persistence;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+
+/**
+ * Encodes the bytes written to it in base64, straight to a Writer, so that large images can be
+ * embedded in a text document without holding their encoding in memory.
+ */
+final class Base64Encoder extends OutputStream {
+    private static final char[] ALPHABET =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+    private final Writer mOut;
+    private final char[] mChars = new char[1024];
+    private int mCharCount = 0;
+    // Bytes waiting for a full group of three.
+    private int mPending = 0;
+    private int mPendingCount = 0;
+
+    /**
+     * @param out The writer to write the encoding to. Not closed.
+     */
+    Base64Encoder(Writer out) {
+        mOut = out;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        mPending = (mPending << 8) | (b & 0xFF);
+        if (++mPendingCount == 3) {
+            putGroup(mPending, 4);
+            mPending = 0;
+            mPendingCount = 0;
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        int end = off + len;
+        //Complete the pending group first, then encode whole groups directly.
+        while (mPendingCount != 0 && off < end) {
+            write(b[off++]);
+        }
+        while (end - off >= 3) {
+            putGroup(((b[off] & 0xFF) << 16) | ((b[off + 1] & 0xFF) << 8) | (b[off + 2] & 0xFF), 4);
+            off += 3;
+        }
+        while (off < end) {
+            write(b[off++]);
+        }
+    }
+
+    /**
+     * Writes the last bytes with their padding. Must be called once, after the last byte.
+     */
+    void finish() throws IOException {
+        if (mPendingCount == 1) {
+            putGroup(mPending << 16, 2);
+            putChar('=');
+            putChar('=');
+        }
+        else if (mPendingCount == 2) {
+            putGroup(mPending << 8, 3);
+            putChar('=');
+        }
+        mPending = 0;
+        mPendingCount = 0;
+        flush();
+    }
+
+    @Override
+    public void flush() throws IOException {
+        mOut.write(mChars, 0, mCharCount);
+        mCharCount = 0;
+    }
+
+    /**
+     * Writes the first chars of the encoding of a group of three bytes.
+     */
+    private void putGroup(int group, int chars) throws IOException {
+        putChar(ALPHABET[(group >> 18) & 0x3F]);
+        putChar(ALPHABET[(group >> 12) & 0x3F]);
+        if (chars > 2) {
+            putChar(ALPHABET[(group >> 6) & 0x3F]);
+        }
+        if (chars > 3) {
+            putChar(ALPHABET[group & 0x3F]);
+        }
+    }
+
+    private void putChar(char c) throws IOException {
+        if (mCharCount == mChars.length) {
+            flush();
+        }
+        mChars[mCharCount++] = c;
+    }
+}
@@ -0,0 +1,27 @@
+package com.agsw.FabricView.Persistence;
+
+import android.graphics.Bitmap;
+
+import java.io.IOException;
+
+/**
+ * Stores the images of a document outside of it. Without a resolver, the images are embedded in
+ * the document as PNG.
+ */
+public interface BitmapResolver {
+    /**
+     * Called by DocumentWriter for every image.
+     * @param bitmap The image.
+     * @return A reference to the image, such as a file name or a URI, or null to embed it.
+     * @throws IOException If the image could not be stored.
+     */
+    String toReference(Bitmap bitmap) throws IOException;
+
+    /**
+     * Called by DocumentReader for every image that was written as a reference.
+     * @param reference The reference returned by toReference().
+     * @return The image.
+     * @throws IOException If the image could not be loaded.
+     */
+    Bitmap fromReference(String reference) throws IOException;
+}
@@ -0,0 +1,443 @@
+package com.agsw.FabricView.Persistence;
+
+import android.graphics.Bitmap;
+import android.graphics.Paint;
+import android.graphics.Typeface;
+
+import com.agsw.FabricView.DrawableObjects.CBitmap;
+import com.agsw.FabricView.DrawableObjects.CDrawable;
+import com.agsw.FabricView.DrawableObjects.CMatrixTransform;
+import com.agsw.FabricView.DrawableObjects.CPath;
+import com.agsw.FabricView.DrawableObjects.CRotation;
+import com.agsw.FabricView.DrawableObjects.CScale;
+import com.agsw.FabricView.DrawableObjects.CText;
+import com.agsw.FabricView.DrawableObjects.CTranslation;
+import com.agsw.FabricView.DrawableObjects.ImageAsset;
+import com.agsw.FabricView.DrawableObjects.StyleTable;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Vector;
+
+/**
+ * Reads the drawables of a document written by DocumentWriter, one at a time.
+ *
+ * The input is read in large blocks, and each drawable is decoded straight from them, so a
+ * document is loaded without any intermediate representation. Transforms are attached to their
+ * drawable as they are read. How to use: <pre>
+DocumentReader reader = new DocumentReader(inputStream);
+CDrawable d;
+while ((d = reader.read()) != null) {
+    doSomethingWith(d);
+}
+reader.close();</pre>
+ * See also FabricView.loadDocument().
+ */
+public class DocumentReader implements Closeable {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final InputStream mIn;
+    private final FileChannel mChannel;
+    private final BitmapResolver mResolver;
+    private final int mVersion;
+    private boolean mAttachTransforms = true;
+    private final ArrayList<Paint> mPaints = new ArrayList<>();
+    private final ArrayList<CDrawable> mDrawables = new ArrayList<>();
+    // The bytes between the position and the limit are read but not decoded yet.
+    private ByteBuffer mInput = ByteBuffer.allocate(BUFFER_SIZE);
+    private boolean mEnded = false;
+
+    /**
+     * Constructor. The document must not refer to images stored outside of it.
+     * @param in The stream to read from.
+     * @throws IOException If the stream is not a document, or could not be read.
+     */
+    public DocumentReader(InputStream in) throws IOException {
+        this(in, null, null);
+    }
+
+    /**
+     * Constructor.
+     * @param in The stream to read from.
+     * @param resolver Loads the images stored outside of the document. Can be null.
+     * @throws IOException If the stream is not a document, or could not be read.
+     */
+    public DocumentReader(InputStream in, BitmapResolver resolver) throws IOException {
+        this(in, null, resolver);
+    }
+
+    /**
+     * Constructor. The document is read from the current position of the channel.
+     * @param channel The file to read from.
+     * @param resolver Loads the images stored outside of the document. Can be null.
+     * @throws IOException If the file is not a document, or could not be read.
+     */
+    public DocumentReader(FileChannel channel, BitmapResolver resolver) throws IOException {
+        this(null, channel, resolver);
+    }
+
+    private DocumentReader(InputStream in, FileChannel channel, BitmapResolver resolver) throws IOException {
+        mIn = in;
+        mChannel = channel;
+        mResolver = resolver;
+        mInput.limit(0);
+        require(Format.HEADER_SIZE);
+        if (mInput.getInt() != Format.MAGIC) {
+            throw new IOException("Not a FabricView document.");
+        }
+        mVersion = mInput.getShort();
+        if (mVersion > Format.VERSION) {
+            throw new IOException("Unsupported document version " + mVersion + ".");
+        }
+    }
+
+    /**
+     * @return The version of the format the document was written with.
+     */
+    public int getVersion() {
+        return mVersion;
+    }
+
+    /**
+     * Reads the next drawable.
+     * @return The drawable, or null at the end of the document.
+     * @throws IOException If the document is corrupted, or could not be read.
+     */
+    public CDrawable read() throws IOException {
+        while (!mEnded) {
+            require(Format.RECORD_HEADER_SIZE);
+            byte tag = mInput.get();
+            int length = mInput.getInt();
+            if (length < 0) {
+                throw new IOException("Corrupted record length " + length + ".");
+            }
+            require(length);
+            int limit = mInput.limit();
+            int end = mInput.position() + length;
+            mInput.limit(end);
+            CDrawable d;
+            try {
+                d = readRecord(tag);
+            } catch (BufferUnderflowException e) {
+                throw new IOException("Truncated record " + tag + ".", e);
+            } finally {
+                mInput.limit(limit);
+                mInput.position(end);
+            }
+            if (d != null) {
+                mDrawables.add(d);
+                return d;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Reads all the remaining drawables.
+     * @return The drawables, in order.
+     * @throws IOException If the document is corrupted, or could not be read.
+     */
+    public List<CDrawable> readAll() throws IOException {
+        ArrayList<CDrawable> result = new ArrayList<>();
+        CDrawable d;
+        while ((d = read()) != null) {
+            result.add(d);
+        }
+        return result;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (mIn != null) {
+            mIn.close();
+        }
+        else {
+            mChannel.close();
+        }
+    }
+
+    /**
+     * Decodes the record between the position and the limit of mInput.
+     * @return The drawable it defines, or null if it doesn't define one.
+     */
+    private CDrawable readRecord(byte tag) throws IOException {
+        switch (tag) {
+            case Format.TAG_END:
+                mEnded = true;
+                return null;
+            case Format.TAG_PAINT:
+                mPaints.add(readPaint());
+                return null;
+            case Format.TAG_PATH:
+                return readPath();
+            case Format.TAG_TEXT:
+                return readText();
+            case Format.TAG_BITMAP:
+                return readBitmap();
+            case Format.TAG_TRANSLATION:
+                return readTranslation();
+            case Format.TAG_ROTATION:
+                return readRotation();
+            case Format.TAG_SCALE:
+                return readScale();
+            case Format.TAG_MATRIX:
+                return readMatrix();
+            default:
+                return readOther(tag);
+        }
+    }
+
+    /**
+     * Decodes a record that doesn't define a drawable. The body is read with readInt().
+     * @param tag The tag of the record.
+     * @return null. Records written by a newer version are skipped.
+     */
+    CDrawable readOther(byte tag) throws IOException {
+        return null;
+    }
+
+    int readInt() {
+        return mInput.getInt();
+    }
+
+    /**
+     * Numbers drawables as if they had been read, for a journal that continues a snapshot.
+     * @param drawables The drawables.
+     */
+    void assumeRead(List<CDrawable> drawables) {
+        mDrawables.addAll(drawables);
+    }
+
+    /**
+     * @param attach false to leave the transforms that are read detached from their drawable.
+     */
+    void setAttachTransforms(boolean attach) {
+        mAttachTransforms = attach;
+    }
+
+    private Paint readPaint() throws IOException {
+        Paint p = new Paint();
+        p.setColor(mInput.getInt());
+        p.setFlags(mInput.getInt());
+        p.setStyle(readEnum(Paint.Style.values()));
+        p.setStrokeJoin(readEnum(Paint.Join.values()));
+        p.setStrokeCap(readEnum(Paint.Cap.values()));
+        p.setTextAlign(readEnum(Paint.Align.values()));
+        int typefaceStyle = mInput.getInt();
+        if (typefaceStyle >= 0) {
+            p.setTypeface(Typeface.defaultFromStyle(typefaceStyle));
+        }
+        p.setStrokeWidth(mInput.getFloat());
+        p.setStrokeMiter(mInput.getFloat());
+        p.setTextSize(mInput.getFloat());
+        return StyleTable.intern(p);
+    }
+
+    private CPath readPath() throws IOException {
+        Paint paint = getPaint(mInput.getInt());
+        int pointCount = mInput.getInt();
+        int verbCount = mInput.getInt();
+        if (pointCount < 0 || verbCount < 0 || (long) pointCount * 8 + verbCount > mInput.remaining()) {
+            throw new IOException("Corrupted path of " + pointCount + " points.");
+        }
+        float[] points = new float[pointCount * 2];
+        mInput.asFloatBuffer().get(points);
+        mInput.position(mInput.position() + pointCount * 8);
+        byte[] verbs = new byte[verbCount];
+        mInput.get(verbs);
+        CPath path = new CPath();
+        path.setPaint(paint);
+        try {
+            path.setGeometry(points, pointCount, verbs, verbCount);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Corrupted path.", e);
+        }
+        return path;
+    }
+
+    private CText readText() throws IOException {
+        Paint paint = getPaint(mInput.getInt());
+        int x = mInput.getInt();
+        int y = mInput.getInt();
+        String text = readString();
+        return new CText(text, x, y, paint == null ? new Paint() : paint);
+    }
+
+    private CBitmap readBitmap() throws IOException {
+        Paint paint = getPaint(mInput.getInt());
+        int x = mInput.getInt();
+        int y = mInput.getInt();
+        int width = mInput.getInt();
+        int height = mInput.getInt();
+        byte kind = mInput.get();
+        ImageAsset image;
+        if (kind == Format.BITMAP_REFERENCE) {
+            String reference = readString();
+            if (mResolver == null) {
+                throw new IOException("The document refers to images, but there is no BitmapResolver.");
+            }
+            Bitmap loaded = mResolver.fromReference(reference);
+            if (loaded == null) {
+                throw new IOException("Could not load an image.");
+            }
+            image = new ImageAsset(loaded);
+        }
+        else {
+            //Kept compressed, and decoded at the scale it is drawn at.
+            int length = readLength();
+            int start = mInput.arrayOffset() + mInput.position();
+            byte[] encoded = Arrays.copyOfRange(mInput.array(), start, start + length);
+            mInput.position(mInput.position() + length);
+            try {
+                image = new ImageAsset(encoded);
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Could not load an image.");
+            }
+        }
+        CBitmap bitmap = new CBitmap(image, x, y, paint);
+        if (bitmap.getWidth() != width) {
+            bitmap.setWidth(width);
+        }
+        if (bitmap.getHeight() != height) {
+            bitmap.setHeight(height);
+        }
+        return bitmap;
+    }
+
+    private CTranslation readTranslation() throws IOException {
+        CDrawable target = getDrawable(mInput.getInt());
+        Vector<Integer> direction = new Vector<>(2);
+        direction.add(mInput.getInt());
+        direction.add(mInput.getInt());
+        CTranslation t = new CTranslation(target, direction);
+        if (target != null && mAttachTransforms) {
+            target.addTransform(t);
+        }
+        return t;
+    }
+
+    private CRotation readRotation() throws IOException {
+        CDrawable target = getDrawable(mInput.getInt());
+        int degrees = mInput.getInt();
+        int x = mInput.getInt();
+        int y = mInput.getInt();
+        CRotation t = new CRotation(target, degrees, x, y);
+        if (target != null && mAttachTransforms) {
+            target.addTransform(t);
+        }
+        return t;
+    }
+
+    private CScale readScale() throws IOException {
+        CDrawable target = getDrawable(mInput.getInt());
+        float factor = mInput.getFloat();
+        int x = mInput.getInt();
+        int y = mInput.getInt();
+        CScale t = new CScale(target, factor, x, y);
+        if (target != null && mAttachTransforms) {
+            target.addTransform(t);
+        }
+        return t;
+    }
+
+    private CMatrixTransform readMatrix() throws IOException {
+        CDrawable target = getDrawable(mInput.getInt());
+        float[] values = new float[9];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = mInput.getFloat();
+        }
+        CMatrixTransform t = new CMatrixTransform(target, values);
+        if (target != null && mAttachTransforms) {
+            target.addTransform(t);
+        }
+        return t;
+    }
+
+    private Paint getPaint(int index) throws IOException {
+        if (index == -1) {
+            return null;
+        }
+        if (index < 0 || index >= mPaints.size()) {
+            throw new IOException("Unknown paint " + index + ".");
+        }
+        return mPaints.get(index);
+    }
+
+    CDrawable getDrawable(int index) throws IOException {
+        if (index == -1) {
+            return null;
+        }
+        if (index < 0 || index >= mDrawables.size()) {
+            throw new IOException("Unknown drawable " + index + ".");
+        }
+        return mDrawables.get(index);
+    }
+
+    private <T> T readEnum(T[] values) throws IOException {
+        int ordinal = mInput.getInt();
+        if (ordinal < 0 || ordinal >= values.length) {
+            throw new IOException("Corrupted paint.");
+        }
+        return values[ordinal];
+    }
+
+    private int readLength() throws IOException {
+        int length = mInput.getInt();
+        if (length < 0 || length > mInput.remaining()) {
+            throw new IOException("Corrupted length " + length + ".");
+        }
+        return length;
+    }
+
+    private String readString() throws IOException {
+        int length = readLength();
+        String s = new String(mInput.array(), mInput.arrayOffset() + mInput.position(), length, Format.CHARSET);
+        mInput.position(mInput.position() + length);
+        return s;
+    }
+
+    /**
+     * Makes sure that some bytes are available in mInput, reading more if needed.
+     * @param bytes The number of bytes needed.
+     * @throws EOFException If the document ends before.
+     */
+    private void require(int bytes) throws IOException {
+        if (mInput.remaining() >= bytes) {
+            return;
+        }
+        ByteBuffer buffer = mInput;
+        if (buffer.capacity() < bytes) {
+            buffer = ByteBuffer.allocate(Math.max(bytes, mInput.capacity() * 2));
+            buffer.put(mInput);
+            mInput = buffer;
+        }
+        else {
+            buffer.compact();
+        }
+        while (buffer.position() < bytes) {
+            int read;
+            if (mIn != null) {
+                read = mIn.read(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+                if (read > 0) {
+                    buffer.position(buffer.position() + read);
+                }
+            }
+            else {
+                read = mChannel.read(buffer);
+            }
+            if (read < 0) {
+                buffer.flip();
+                throw new EOFException("The document is truncated.");
+            }
+        }
+        buffer.flip();
+    }
+}
@@ -0,0 +1,484 @@
+package com.agsw.FabricView.Persistence;
+
+import android.graphics.Bitmap;
+import android.graphics.Paint;
+import android.graphics.Typeface;
+
+import com.agsw.FabricView.DrawableObjects.CBitmap;
+import com.agsw.FabricView.DrawableObjects.CDrawable;
+import com.agsw.FabricView.DrawableObjects.CMatrixTransform;
+import com.agsw.FabricView.DrawableObjects.CPath;
+import com.agsw.FabricView.DrawableObjects.CRotation;
+import com.agsw.FabricView.DrawableObjects.CScale;
+import com.agsw.FabricView.DrawableObjects.CText;
+import com.agsw.FabricView.DrawableObjects.CTransform;
+import com.agsw.FabricView.DrawableObjects.CTranslation;
+import com.agsw.FabricView.DrawableObjects.ImageAsset;
+import com.agsw.FabricView.DrawableObjects.StyleTable;
+import com.agsw.FabricView.FabricDocument;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Vector;
+
+/**
+ * Writes drawables in the binary document format, one at a time, as they are given.
+ *
+ * The records are encoded into a buffer that is written out whenever it fills up, so the cost
+ * of a document is one pass over its drawables, and the geometry of paths is copied in bulk.
+ * A transform must be written after its drawable. How to use: <pre>
+DocumentWriter writer = new DocumentWriter(outputStream);
+writer.writeAll(myFabricView.getDrawablesList());
+writer.close();</pre>
+ * See also DocumentReader and FabricView.saveDocument().
+ */
+public class DocumentWriter implements Closeable {
+    // The buffer is written out when it holds more than this.
+    private static final int FLUSH_SIZE = 64 * 1024;
+
+    private final OutputStream mOut;
+    private final FileChannel mChannel;
+    private final BitmapResolver mResolver;
+    private final IdentityHashMap<Paint, Integer> mPaints = new IdentityHashMap<>();
+    private final IdentityHashMap<CDrawable, Integer> mDrawables = new IdentityHashMap<>();
+    private ByteBuffer mBuffer = ByteBuffer.allocate(FLUSH_SIZE + 4096);
+    private int mRecordStart;
+    private ByteArrayOutputStream mImageBuffer;
+    private boolean mFinished = false;
+
+    /**
+     * Constructor. Images are embedded in the document.
+     * @param out The stream to write to.
+     * @throws IOException If the header could not be written.
+     */
+    public DocumentWriter(OutputStream out) throws IOException {
+        this(out, null, null);
+    }
+
+    /**
+     * Constructor.
+     * @param out The stream to write to.
+     * @param resolver Stores the images outside of the document. Can be null.
+     * @throws IOException If the header could not be written.
+     */
+    public DocumentWriter(OutputStream out, BitmapResolver resolver) throws IOException {
+        this(out, null, resolver);
+    }
+
+    /**
+     * Constructor. The document is written at the current position of the channel.
+     * @param channel The file to write to.
+     * @param resolver Stores the images outside of the document. Can be null.
+     * @throws IOException If the header could not be written.
+     */
+    public DocumentWriter(FileChannel channel, BitmapResolver resolver) throws IOException {
+        this(null, channel, resolver);
+    }
+
+    private DocumentWriter(OutputStream out, FileChannel channel, BitmapResolver resolver) throws IOException {
+        mOut = out;
+        mChannel = channel;
+        mResolver = resolver;
+        mBuffer.putInt(Format.MAGIC);
+        mBuffer.putShort(Format.VERSION);
+    }
+
+    /**
+     * Writes a drawable.
+     * @param d The drawable. Can be a CPath, a CText, a CBitmap, or one of their transforms.
+     * @throws IOException If the document could not be written.
+     */
+    public void write(CDrawable d) throws IOException {
+        write(d, d instanceof CPath ? ((CPath) d).getGeometry() : null);
+    }
+
+    /**
+     * @param geometry The lines, for a CPath.
+     */
+    private void write(CDrawable d, CPath.Geometry geometry) throws IOException {
+        if (mFinished) {
+            throw new IllegalStateException("The document is finished.");
+        }
+        if (d instanceof CPath) {
+            writePath((CPath) d, geometry);
+        }
+        else if (d instanceof CText) {
+            writeText((CText) d);
+        }
+        else if (d instanceof CBitmap) {
+            writeBitmap((CBitmap) d);
+        }
+        else if (d instanceof CTransform) {
+            writeTransform((CTransform) d);
+        }
+        else {
+            throw new IllegalArgumentException("Unsupported drawable: " + d.getClass().getName());
+        }
+        mDrawables.put(d, mDrawables.size());
+        if (mBuffer.position() >= FLUSH_SIZE) {
+            flushBuffer();
+        }
+    }
+
+    /**
+     * Writes drawables, in order. The lines of the paths of a snapshot of a FabricDocument are
+     * written as they were when it was taken.
+     * @param drawables The drawables.
+     * @throws IOException If the document could not be written.
+     */
+    public void writeAll(List<CDrawable> drawables) throws IOException {
+        if (!(drawables instanceof FabricDocument.Snapshot)) {
+            for (CDrawable d : drawables) {
+                write(d);
+            }
+            return;
+        }
+        FabricDocument.Snapshot snapshot = (FabricDocument.Snapshot) drawables;
+        for (int i = 0; i < snapshot.size(); i++) {
+            write(snapshot.get(i), snapshot.getGeometry(i));
+        }
+    }
+
+    /**
+     * Ends the document and writes out everything, without closing the stream. Nothing can be
+     * written afterwards.
+     * @throws IOException If the document could not be written.
+     */
+    public void finish() throws IOException {
+        if (mFinished) {
+            return;
+        }
+        beginRecord(Format.TAG_END);
+        endRecord();
+        flushBuffer();
+        if (mOut != null) {
+            mOut.flush();
+        }
+        mFinished = true;
+    }
+
+    /**
+     * Ends the document and closes the stream.
+     * @throws IOException If the document could not be written.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            finish();
+        } finally {
+            if (mOut != null) {
+                mOut.close();
+            }
+            else {
+                mChannel.close();
+            }
+        }
+    }
+
+    /**
+     * A writer of records without the header of a document, for a journal that encodes some
+     * records on another thread.
+     * @param out The stream to write to.
+     * @param resolver Stores the images outside of the document. Can be null.
+     */
+    static DocumentWriter forRecords(OutputStream out, BitmapResolver resolver) {
+        try {
+            DocumentWriter writer = new DocumentWriter(out, null, resolver);
+            writer.mBuffer.clear();
+            return writer;
+        } catch (IOException e) {
+            //Nothing is written yet.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Numbers a CBitmap and writes its paint, but leaves its record to be written by
+     * writeBitmap(), which decodes and compresses the image. A journal does this on its
+     * background thread.
+     * @param bitmap The image.
+     * @return What writeBitmap() needs. It does not refer to the CBitmap.
+     * @throws IOException If the paint could not be written.
+     */
+    BitmapRecord defineBitmap(CBitmap bitmap) throws IOException {
+        BitmapRecord record = prepareBitmap(bitmap);
+        mDrawables.put(bitmap, mDrawables.size());
+        return record;
+    }
+
+    /**
+     * Numbers a drawable as if it had been written, for a journal that continues a snapshot.
+     * @param d The drawable.
+     */
+    void assumeWritten(CDrawable d) {
+        mDrawables.put(d, mDrawables.size());
+    }
+
+    /**
+     * @param d A drawable.
+     * @return Its number in the document, or -1 if it was not written.
+     */
+    int indexOf(CDrawable d) {
+        Integer index = mDrawables.get(d);
+        return index == null ? -1 : index;
+    }
+
+    /**
+     * Writes an operation record, for a journal.
+     * @param tag The operation.
+     * @param args Its arguments.
+     */
+    void writeOperation(byte tag, int... args) {
+        beginRecord(tag);
+        ensureCapacity(args.length * 4);
+        for (int arg : args) {
+            mBuffer.putInt(arg);
+        }
+        endRecord();
+    }
+
+    /**
+     * Writes out what was encoded so far, without ending the document.
+     * @throws IOException If the bytes could not be written.
+     */
+    void flush() throws IOException {
+        flushBuffer();
+    }
+
+    private void writePath(CPath path, CPath.Geometry geometry) throws IOException {
+        int paint = writePaint(path.getPaint());
+        int pointCount = geometry.getPointCount();
+        int verbCount = geometry.getVerbCount();
+        beginRecord(Format.TAG_PATH);
+        ensureCapacity(12 + pointCount * 8 + verbCount);
+        mBuffer.putInt(paint);
+        mBuffer.putInt(pointCount);
+        mBuffer.putInt(verbCount);
+        mBuffer.asFloatBuffer().put(geometry.getPoints(), 0, pointCount * 2);
+        mBuffer.position(mBuffer.position() + pointCount * 8);
+        mBuffer.put(geometry.getVerbs(), 0, verbCount);
+        endRecord();
+    }
+
+    private void writeText(CText text) throws IOException {
+        int paint = writePaint(text.getPaint());
+        beginRecord(Format.TAG_TEXT);
+        ensureCapacity(12);
+        mBuffer.putInt(paint);
+        mBuffer.putInt(text.getXcoords());
+        mBuffer.putInt(text.getYcoords());
+        putString(text.getText());
+        endRecord();
+    }
+
+    private void writeBitmap(CBitmap bitmap) throws IOException {
+        writeBitmap(prepareBitmap(bitmap));
+    }
+
+    /**
+     * Takes what a CBitmap record needs from the object, and writes its paint. This is cheap:
+     * the image is neither decoded nor compressed.
+     */
+    private BitmapRecord prepareBitmap(CBitmap bitmap) throws IOException {
+        BitmapRecord record = new BitmapRecord();
+        record.paint = writePaint(bitmap.getPaint());
+        record.x = bitmap.getXcoords();
+        record.y = bitmap.getYcoords();
+        record.width = bitmap.getWidth();
+        record.height = bitmap.getHeight();
+        record.asset = bitmap.getAsset();
+        return record;
+    }
+
+    /**
+     * Writes the record of a CBitmap. The image is decoded and compressed here if needed, and
+     * given to the resolver.
+     */
+    void writeBitmap(BitmapRecord record) throws IOException {
+        //An image that is kept compressed is written as it is, without being decoded.
+        byte[] encoded = record.asset.getEncoded();
+        Bitmap image = encoded != null && mResolver == null ? null : record.asset.getBitmap();
+        if (image == null && encoded == null) {
+            throw new IOException("Could not decode an image.");
+        }
+        String reference = mResolver == null ? null : mResolver.toReference(image);
+        beginRecord(Format.TAG_BITMAP);
+        ensureCapacity(21);
+        mBuffer.putInt(record.paint);
+        mBuffer.putInt(record.x);
+        mBuffer.putInt(record.y);
+        mBuffer.putInt(record.width);
+        mBuffer.putInt(record.height);
+        if (reference != null) {
+            mBuffer.put(Format.BITMAP_REFERENCE);
+            putString(reference);
+        }
+        else {
+            mBuffer.put(Format.BITMAP_EMBEDDED);
+            if (encoded != null) {
+                ensureCapacity(4 + encoded.length);
+                mBuffer.putInt(encoded.length);
+                mBuffer.put(encoded);
+                endRecord();
+                return;
+            }
+            if (mImageBuffer == null) {
+                mImageBuffer = new ByteArrayOutputStream(64 * 1024);
+            }
+            mImageBuffer.reset();
+            if (!image.compress(Bitmap.CompressFormat.PNG, 100, mImageBuffer)) {
+                throw new IOException("Could not encode an image.");
+            }
+            ensureCapacity(4 + mImageBuffer.size());
+            mBuffer.putInt(mImageBuffer.size());
+            mBuffer.put(mImageBuffer.toByteArray());
+        }
+        endRecord();
+    }
+
+    private void writeTransform(CTransform t) throws IOException {
+        int target = -1;
+        if (t.getDrawable() != null) {
+            Integer index = mDrawables.get(t.getDrawable());
+            if (index == null) {
+                throw new IllegalArgumentException("The drawable of a transform must be written before it.");
+            }
+            target = index;
+        }
+        if (t instanceof CTranslation) {
+            Vector<Integer> direction = ((CTranslation) t).getDirection();
+            beginRecord(Format.TAG_TRANSLATION);
+            ensureCapacity(12);
+            mBuffer.putInt(target);
+            mBuffer.putInt(direction == null || direction.size() < 1 ? 0 : direction.get(0));
+            mBuffer.putInt(direction == null || direction.size() < 2 ? 0 : direction.get(1));
+        }
+        else if (t instanceof CRotation) {
+            beginRecord(Format.TAG_ROTATION);
+            ensureCapacity(16);
+            mBuffer.putInt(target);
+            mBuffer.putInt(((CRotation) t).getRotation());
+            mBuffer.putInt(t.getXcoords());
+            mBuffer.putInt(t.getYcoords());
+        }
+        else if (t instanceof CScale) {
+            beginRecord(Format.TAG_SCALE);
+            ensureCapacity(16);
+            mBuffer.putInt(target);
+            mBuffer.putFloat(((CScale) t).getFactor());
+            mBuffer.putInt(t.getXcoords());
+            mBuffer.putInt(t.getYcoords());
+        }
+        else if (t instanceof CMatrixTransform) {
+            float[] values = new float[9];
+            ((CMatrixTransform) t).getValues(values);
+            beginRecord(Format.TAG_MATRIX);
+            ensureCapacity(40);
+            mBuffer.putInt(target);
+            for (float value : values) {
+                mBuffer.putFloat(value);
+            }
+        }
+        else {
+            throw new IllegalArgumentException("Unsupported transform: " + t.getClass().getName());
+        }
+        endRecord();
+    }
+
+    /**
+     * Writes a paint, unless a paint with the same attributes was already written.
+     * @param p The paint. Can be null.
+     * @return Its index in the document, or -1 for null.
+     */
+    private int writePaint(Paint p) throws IOException {
+        if (p == null) {
+            return -1;
+        }
+        p = StyleTable.intern(p);
+        Integer index = mPaints.get(p);
+        if (index != null) {
+            return index;
+        }
+        Typeface typeface = p.getTypeface();
+        beginRecord(Format.TAG_PAINT);
+        ensureCapacity(40);
+        mBuffer.putInt(p.getColor());
+        mBuffer.putInt(p.getFlags());
+        mBuffer.putInt(p.getStyle().ordinal());
+        mBuffer.putInt(p.getStrokeJoin().ordinal());
+        mBuffer.putInt(p.getStrokeCap().ordinal());
+        mBuffer.putInt(p.getTextAlign().ordinal());
+        mBuffer.putInt(typeface == null ? -1 : typeface.getStyle());
+        mBuffer.putFloat(p.getStrokeWidth());
+        mBuffer.putFloat(p.getStrokeMiter());
+        mBuffer.putFloat(p.getTextSize());
+        endRecord();
+        index = mPaints.size();
+        mPaints.put(p, index);
+        return index;
+    }
+
+    private void putString(String s) throws IOException {
+        byte[] bytes = s == null ? new byte[0] : s.getBytes(Format.CHARSET);
+        ensureCapacity(4 + bytes.length);
+        mBuffer.putInt(bytes.length);
+        mBuffer.put(bytes);
+    }
+
+    private void beginRecord(byte tag) {
+        ensureCapacity(Format.RECORD_HEADER_SIZE);
+        mRecordStart = mBuffer.position();
+        mBuffer.put(tag);
+        mBuffer.putInt(0);
+    }
+
+    private void endRecord() {
+        int length = mBuffer.position() - mRecordStart - Format.RECORD_HEADER_SIZE;
+        mBuffer.putInt(mRecordStart + 1, length);
+    }
+
+    /**
+     * Grows the buffer so that it can take some more bytes. Records are never split, so a large
+     * record grows the buffer instead of flushing it.
+     */
+    private void ensureCapacity(int bytes) {
+        if (mBuffer.remaining() >= bytes) {
+            return;
+        }
+        ByteBuffer larger = ByteBuffer.allocate(Math.max(mBuffer.capacity() * 2, mBuffer.position() + bytes));
+        mBuffer.flip();
+        larger.put(mBuffer);
+        mBuffer = larger;
+    }
+
+    private void flushBuffer() throws IOException {
+        mBuffer.flip();
+        if (mOut != null) {
+            mOut.write(mBuffer.array(), mBuffer.arrayOffset(), mBuffer.limit());
+        }
+        else {
+            while (mBuffer.hasRemaining()) {
+                mChannel.write(mBuffer);
+            }
+        }
+        mBuffer.clear();
+    }
+
+    /**
+     * The attributes of a CBitmap, taken when it was defined.
+     */
+    static final class BitmapRecord {
+        int paint;
+        int x;
+        int y;
+        int width;
+        int height;
+        ImageAsset asset;
+    }
+}
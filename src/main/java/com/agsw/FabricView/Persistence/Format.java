@@ -0,0 +1,63 @@
+package com.agsw.FabricView.Persistence;
+
+/**
+ * Constants of the binary document format.
+ *
+ * A document starts with MAGIC and VERSION, followed by records. Each record is a tag byte, the
+ * length of its body as an int, and the body, so that readers can skip the records they don't
+ * know. Only records that don't define a drawable can be added without changing VERSION, since
+ * drawables are numbered. The last record is TAG_END, with an empty body. All numbers are
+ * big-endian, and strings are an int length followed by UTF-8 bytes.
+ *
+ * Paints are written once, in a TAG_PAINT record, before the first drawable that uses them, and
+ * are then referred to by their index among the paints of the document. Drawables and transforms
+ * are numbered in the order they are written, and transforms refer to their drawable by this
+ * number. -1 stands for null in both cases.
+ */
+final class Format {
+    static final int MAGIC = 0x46414256; // "FABV"
+    // Version 2 added TAG_MATRIX.
+    static final short VERSION = 2;
+
+    static final byte TAG_END = 0;
+    /** color, flags, style, join, cap, text align, typeface style (int), stroke width, stroke miter, text size (float). */
+    static final byte TAG_PAINT = 1;
+    /** paint, point count, verb count (int), points (float x, y pairs), verbs (byte). */
+    static final byte TAG_PATH = 2;
+    /** paint, x, y (int), text (string). */
+    static final byte TAG_TEXT = 3;
+    /** paint, x, y, width, height (int), kind (byte), then the image file (PNG, or JPEG if given so) or the reference (string). */
+    static final byte TAG_BITMAP = 4;
+    /** drawable, x, y (int). */
+    static final byte TAG_TRANSLATION = 5;
+    /** drawable, degrees, x, y (int). */
+    static final byte TAG_ROTATION = 6;
+    /** drawable (int), factor (float), x, y (int). */
+    static final byte TAG_SCALE = 7;
+    /** drawable (int), the 9 values of the matrix (float). */
+    static final byte TAG_MATRIX = 13;
+
+    // Operations, only found in journals. See Journal.
+    /** drawable, drawable it goes under or -1 for the top (int). */
+    static final byte TAG_INSERT = 8;
+    /** drawable (int). */
+    static final byte TAG_REMOVE = 9;
+    /** transform, position in the stack of transforms of its drawable (int). */
+    static final byte TAG_ATTACH = 10;
+    /** transform (int). */
+    static final byte TAG_DETACH = 11;
+    /** Empty. */
+    static final byte TAG_CLEAR = 12;
+
+    static final byte BITMAP_EMBEDDED = 0;
+    static final byte BITMAP_REFERENCE = 1;
+
+    // Length of the header, and of the tag and length of a record.
+    static final int HEADER_SIZE = 6;
+    static final int RECORD_HEADER_SIZE = 5;
+
+    static final String CHARSET = "UTF-8";
+
+    private Format() {
+    }
+}
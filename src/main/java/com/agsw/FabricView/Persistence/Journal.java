@@ -0,0 +1,522 @@
+package com.agsw.FabricView.Persistence;
+
+import com.agsw.FabricView.DrawableObjects.CBitmap;
+import com.agsw.FabricView.DrawableObjects.CDrawable;
+import com.agsw.FabricView.DrawableObjects.CTransform;
+import com.agsw.FabricView.FabricDocument;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An autosave journal: every change made to the drawables of a FabricView is appended to a file
+ * as a small record, so that the work can be recovered after a crash without ever saving the whole
+ * document.
+ *
+ * The journal lives in a directory of its own. It is made of a snapshot, which is a document
+ * written by DocumentWriter, and of the log of the operations done since. The records are encoded
+ * on the calling thread, which only takes a copy of the changed objects, and written by a
+ * background thread. Images are the exception: they are compressed and given to the resolver on
+ * the background thread, in the order they were logged. The file is synced at most once per sync interval. When the log grows past
+ * the compaction threshold, a new snapshot is written in the background and the log starts over.
+ *
+ * FabricView drives the journal, see FabricView.startJournal(). The methods of this class must be
+ * called from a single thread, except for recover().
+ */
+public class Journal implements Closeable {
+    /**
+     * Default delay between a change and the sync of the file, in milliseconds.
+     */
+    public static final long DEFAULT_SYNC_INTERVAL = 1000;
+    /**
+     * Default size of the log past which a new snapshot is written, in bytes.
+     */
+    public static final long DEFAULT_COMPACTION_THRESHOLD = 1024 * 1024;
+
+    private static final String SNAPSHOT_PREFIX = "snapshot-";
+    private static final String LOG_PREFIX = "journal-";
+    private static final String SNAPSHOT_SUFFIX = ".fabv";
+    private static final String LOG_SUFFIX = ".log";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final File mDirectory;
+    private final BitmapResolver mResolver;
+    private long mSyncInterval = DEFAULT_SYNC_INTERVAL;
+    private long mCompactionThreshold = DEFAULT_COMPACTION_THRESHOLD;
+
+    // Used by the calling thread.
+    private DocumentWriter mEncoder;
+    private final ByteArrayOutputStream mEncoded = new ByteArrayOutputStream(4096);
+    private int mGeneration;
+    private long mLogSize;
+    private long mImageSizeAtStart;
+
+    // Used by the background thread.
+    private final ScheduledThreadPoolExecutor mExecutor = new ScheduledThreadPoolExecutor(1);
+    private FileOutputStream mLogStream;
+    private boolean mSyncScheduled = false;
+    private DocumentWriter mImageEncoder;
+    private final ByteArrayOutputStream mImageEncoded = new ByteArrayOutputStream(64 * 1024);
+    private volatile long mImageSize;
+    private volatile IOException mError;
+
+    /**
+     * Constructor. Nothing is written until start() is called.
+     * @param directory The directory of the journal. Created if needed. Must not be used for
+     *                  anything else.
+     * @param resolver Stores the images outside of the journal, and loads them back. It is called
+     *                 from a background thread, except by recover(). If null, the images are
+     *                 embedded.
+     */
+    public Journal(File directory, BitmapResolver resolver) {
+        mDirectory = directory;
+        mResolver = resolver;
+        mGeneration = findLastGeneration();
+    }
+
+    /**
+     * Setter for the delay between a change and the sync of the file. Changes made within this
+     * delay are synced together.
+     * @param millis The delay, in milliseconds. Default is DEFAULT_SYNC_INTERVAL.
+     */
+    public void setSyncInterval(long millis) {
+        mSyncInterval = millis;
+    }
+
+    /**
+     * Setter for the size of the log past which a new snapshot is written.
+     * @param bytes The size. Default is DEFAULT_COMPACTION_THRESHOLD.
+     */
+    public void setCompactionThreshold(long bytes) {
+        mCompactionThreshold = bytes;
+    }
+
+    /**
+     * @return The last error of the background thread, or null.
+     */
+    public IOException getError() {
+        return mError;
+    }
+
+    /**
+     * Reads the drawables left by a previous session: its last snapshot, and the operations logged
+     * after it. A record cut short by a crash is ignored.
+     * @return The drawables, in order. Empty if there is no journal.
+     * @throws IOException If the snapshot could not be read.
+     */
+    public List<CDrawable> recover() throws IOException {
+        int generation = findLastGeneration();
+        if (generation < 0) {
+            return new ArrayList<>();
+        }
+        List<CDrawable> drawables;
+        FileInputStream in = new FileInputStream(getSnapshotFile(generation));
+        try {
+            drawables = new DocumentReader(in.getChannel(), mResolver).readAll();
+        } finally {
+            in.close();
+        }
+        File log = getLogFile(generation);
+        if (!log.exists()) {
+            return drawables;
+        }
+        in = new FileInputStream(log);
+        try {
+            return new JournalReader(in.getChannel(), mResolver, drawables).replay();
+        } catch (IOException e) {
+            //The log was created but its header was not written.
+            return drawables;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Starts a new snapshot with the current drawables. The previous snapshot and log are
+     * deleted once it is written.
+     * @param drawables The drawables, in order. They are copied unless they are a snapshot of a
+     *                  FabricDocument, but must not be modified until the snapshot is written,
+     *                  except for attaching and detaching transforms.
+     */
+    public void start(List<CDrawable> drawables) {
+        //A snapshot of a document can't change anymore.
+        final List<CDrawable> snapshot = drawables instanceof FabricDocument.Snapshot
+                ? drawables : new ArrayList<>(drawables);
+        final int generation = ++mGeneration;
+        try {
+            mEncoder = new DocumentWriter(mEncoded, mResolver);
+        } catch (IOException e) {
+            //Can't happen in memory.
+            throw new IllegalStateException(e);
+        }
+        for (CDrawable d : snapshot) {
+            mEncoder.assumeWritten(d);
+        }
+        mLogSize = 0;
+        mImageSizeAtStart = mImageSize;
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    writeSnapshot(generation, snapshot);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    mError = e;
+                }
+            }
+        });
+        //The header of the log.
+        submit();
+    }
+
+    /**
+     * @return true if the log is large enough to be compacted into a new snapshot, with start().
+     */
+    public boolean needsCompaction() {
+        return mEncoder != null && mLogSize + mImageSize - mImageSizeAtStart > mCompactionThreshold;
+    }
+
+    /**
+     * @param d A drawable.
+     * @return true if the drawable is known to the journal, so that operations can refer to it.
+     */
+    public boolean isLogged(CDrawable d) {
+        return mEncoder != null && mEncoder.indexOf(d) >= 0;
+    }
+
+    /**
+     * Logs that a drawable was put in the list.
+     * @param d The drawable.
+     * @param above The drawable right above it in the list, or null if it is at the top. Must be
+     *              known to the journal.
+     */
+    public void logInsert(CDrawable d, CDrawable above) {
+        if (mEncoder == null) {
+            return;
+        }
+        try {
+            define(d);
+            mEncoder.writeOperation(Format.TAG_INSERT, mEncoder.indexOf(d),
+                    above == null ? -1 : mEncoder.indexOf(above));
+        } catch (IOException e) {
+            e.printStackTrace();
+            mError = e;
+        }
+        submit();
+    }
+
+    /**
+     * Logs that a drawable was removed from the list.
+     * @param d The drawable.
+     */
+    public void logRemove(CDrawable d) {
+        if (!isLogged(d)) {
+            return;
+        }
+        mEncoder.writeOperation(Format.TAG_REMOVE, mEncoder.indexOf(d));
+        submit();
+    }
+
+    /**
+     * Logs that a transform was added to its drawable.
+     * @param t The transform, already put in the list.
+     * @param index Its position in the stack of transforms of its drawable.
+     */
+    public void logAttach(CTransform t, int index) {
+        if (!isLogged(t)) {
+            return;
+        }
+        mEncoder.writeOperation(Format.TAG_ATTACH, mEncoder.indexOf(t), index);
+        submit();
+    }
+
+    /**
+     * Logs that a transform was removed from its drawable.
+     * @param t The transform.
+     */
+    public void logDetach(CTransform t) {
+        if (!isLogged(t)) {
+            return;
+        }
+        mEncoder.writeOperation(Format.TAG_DETACH, mEncoder.indexOf(t));
+        submit();
+    }
+
+    /**
+     * Logs that all the drawables were removed.
+     */
+    public void logClear() {
+        if (mEncoder == null) {
+            return;
+        }
+        mEncoder.writeOperation(Format.TAG_CLEAR);
+        submit();
+    }
+
+    /**
+     * Syncs the file as soon as possible, for example when the app goes to the background.
+     */
+    public void sync() {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                syncLog();
+            }
+        });
+    }
+
+    /**
+     * Writes and syncs everything, then stops the background thread. Blocks until done. The
+     * journal can't be used afterwards.
+     */
+    @Override
+    public void close() {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                syncLog();
+                closeLog();
+            }
+        });
+        mExecutor.shutdown();
+        try {
+            mExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            //Do nothing
+        }
+        mEncoder = null;
+    }
+
+    /**
+     * Writes the definition of a drawable, unless it is known already. The drawable of a
+     * transform is defined first. The record of a CBitmap is encoded by the background thread.
+     */
+    private void define(CDrawable d) throws IOException {
+        if (mEncoder.indexOf(d) >= 0) {
+            return;
+        }
+        if (d instanceof CTransform && ((CTransform) d).getDrawable() != null) {
+            define(((CTransform) d).getDrawable());
+        }
+        if (d instanceof CBitmap) {
+            final DocumentWriter.BitmapRecord record = mEncoder.defineBitmap((CBitmap) d);
+            //The records before it, such as its paint, go first.
+            submit();
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    appendBitmap(record);
+                }
+            });
+            return;
+        }
+        mEncoder.write(d);
+    }
+
+    /**
+     * Hands what was encoded to the background thread.
+     */
+    private void submit() {
+        try {
+            mEncoder.flush();
+        } catch (IOException e) {
+            //Can't happen in memory.
+            throw new IllegalStateException(e);
+        }
+        if (mEncoded.size() == 0) {
+            return;
+        }
+        final ByteBuffer chunk = ByteBuffer.wrap(mEncoded.toByteArray());
+        mLogSize += chunk.remaining();
+        mEncoded.reset();
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                appendToLog(chunk);
+            }
+        });
+    }
+
+    /*********************************************************************************************/
+    /*********************************     Background thread    **********************************/
+    /*********************************************************************************************/
+
+    /**
+     * Writes a snapshot, and starts its log. The temporary file is renamed when complete, so a
+     * snapshot file is never partial.
+     */
+    private void writeSnapshot(int generation, List<CDrawable> drawables) throws IOException {
+        syncLog();
+        closeLog();
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            throw new IOException("Could not create " + mDirectory);
+        }
+        File temp = new File(mDirectory, SNAPSHOT_PREFIX + generation + TEMP_SUFFIX);
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            DocumentWriter writer = new DocumentWriter(out.getChannel(), mResolver);
+            writer.writeAll(drawables);
+            writer.finish();
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(getSnapshotFile(generation))) {
+            throw new IOException("Could not rename " + temp);
+        }
+        mLogStream = new FileOutputStream(getLogFile(generation));
+        deleteGenerationsBefore(generation);
+    }
+
+    private void appendToLog(ByteBuffer chunk) {
+        if (mLogStream == null) {
+            //The snapshot failed. The error was reported.
+            return;
+        }
+        try {
+            FileChannel channel = mLogStream.getChannel();
+            while (chunk.hasRemaining()) {
+                channel.write(chunk);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            mError = e;
+            return;
+        }
+        if (!mSyncScheduled) {
+            mSyncScheduled = true;
+            mExecutor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    syncLog();
+                }
+            }, mSyncInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Encodes the record of a CBitmap, which can compress its image, and appends it to the log.
+     */
+    private void appendBitmap(DocumentWriter.BitmapRecord record) {
+        if (mLogStream == null) {
+            //The snapshot failed. The error was reported.
+            return;
+        }
+        if (mImageEncoder == null) {
+            mImageEncoder = DocumentWriter.forRecords(mImageEncoded, mResolver);
+        }
+        try {
+            mImageEncoder.writeBitmap(record);
+            mImageEncoder.flush();
+        } catch (IOException e) {
+            e.printStackTrace();
+            mError = e;
+            //The records logged after it refer to it, so the log ends here.
+            mImageEncoder = null;
+            mImageEncoded.reset();
+            syncLog();
+            closeLog();
+            return;
+        }
+        ByteBuffer chunk = ByteBuffer.wrap(mImageEncoded.toByteArray());
+        mImageEncoded.reset();
+        mImageSize += chunk.remaining();
+        appendToLog(chunk);
+    }
+
+    private void syncLog() {
+        mSyncScheduled = false;
+        if (mLogStream == null) {
+            return;
+        }
+        try {
+            mLogStream.getChannel().force(false);
+        } catch (IOException e) {
+            e.printStackTrace();
+            mError = e;
+        }
+    }
+
+    private void closeLog() {
+        if (mLogStream == null) {
+            return;
+        }
+        try {
+            mLogStream.close();
+        } catch (IOException e) {
+            //Do nothing
+        }
+        mLogStream = null;
+    }
+
+    private void deleteGenerationsBefore(int generation) {
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File f : files) {
+            int g = parseGeneration(f.getName());
+            if (g >= 0 && g < generation) {
+                f.delete();
+            }
+        }
+    }
+
+    /*********************************************************************************************/
+    /***************************************     Files    ****************************************/
+    /*********************************************************************************************/
+
+    private File getSnapshotFile(int generation) {
+        return new File(mDirectory, SNAPSHOT_PREFIX + generation + SNAPSHOT_SUFFIX);
+    }
+
+    private File getLogFile(int generation) {
+        return new File(mDirectory, LOG_PREFIX + generation + LOG_SUFFIX);
+    }
+
+    /**
+     * @return The generation of the last complete snapshot, or -1 if there is none.
+     */
+    private int findLastGeneration() {
+        int last = -1;
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return last;
+        }
+        for (File f : files) {
+            String name = f.getName();
+            if (name.startsWith(SNAPSHOT_PREFIX) && name.endsWith(SNAPSHOT_SUFFIX)) {
+                last = Math.max(last, parseGeneration(name));
+            }
+        }
+        return last;
+    }
+
+    /**
+     * @param name The name of a file of the journal.
+     * @return Its generation, or -1 if it is not a file of the journal.
+     */
+    private static int parseGeneration(String name) {
+        String prefix = name.startsWith(SNAPSHOT_PREFIX) ? SNAPSHOT_PREFIX
+                : name.startsWith(LOG_PREFIX) ? LOG_PREFIX : null;
+        int dot = name.indexOf('.');
+        if (prefix == null || dot < 0) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(name.substring(prefix.length(), dot));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
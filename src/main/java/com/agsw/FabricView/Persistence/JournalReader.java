@@ -0,0 +1,107 @@
+package com.agsw.FabricView.Persistence;
+
+import com.agsw.FabricView.DrawableObjects.CDrawable;
+import com.agsw.FabricView.DrawableObjects.CTransform;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Replays a journal on top of the drawables of its snapshot.
+ */
+final class JournalReader extends DocumentReader {
+    private final ArrayList<CDrawable> mList;
+
+    /**
+     * @param channel The journal.
+     * @param resolver Loads the images stored outside of the journal. Can be null.
+     * @param snapshot The drawables of the snapshot the journal continues. Not modified.
+     */
+    JournalReader(FileChannel channel, BitmapResolver resolver, List<CDrawable> snapshot) throws IOException {
+        super(channel, resolver);
+        mList = new ArrayList<>(snapshot);
+        assumeRead(snapshot);
+        //The journal attaches transforms explicitly.
+        setAttachTransforms(false);
+    }
+
+    /**
+     * Applies all the operations of the journal. A record cut short by a crash ends the replay.
+     * @return The drawables, in order.
+     */
+    List<CDrawable> replay() {
+        try {
+            while (read() != null) {
+                //Definitions are only put in the list by TAG_INSERT.
+            }
+        } catch (IOException e) {
+            //The end of the journal was not written. Keep what was read.
+        }
+        return mList;
+    }
+
+    @Override
+    CDrawable readOther(byte tag) throws IOException {
+        switch (tag) {
+            case Format.TAG_INSERT: {
+                CDrawable d = getDrawable(readInt());
+                CDrawable above = getDrawable(readInt());
+                removeFromList(d);
+                int index = above == null ? -1 : indexInList(above);
+                mList.add(index < 0 ? mList.size() : index, d);
+                break;
+            }
+            case Format.TAG_REMOVE:
+                removeFromList(getDrawable(readInt()));
+                break;
+            case Format.TAG_ATTACH: {
+                CTransform t = getTransform(readInt());
+                int index = readInt();
+                List<CTransform> transforms = t.getDrawable().getTransforms();
+                transforms.add(index < 0 ? transforms.size() : Math.min(index, transforms.size()), t);
+                t.getDrawable().invalidateTransforms();
+                break;
+            }
+            case Format.TAG_DETACH: {
+                CTransform t = getTransform(readInt());
+                if (t.getDrawable().getTransforms().remove(t)) {
+                    t.getDrawable().invalidateTransforms();
+                }
+                break;
+            }
+            case Format.TAG_CLEAR:
+                mList.clear();
+                break;
+            default:
+                break;
+        }
+        return null;
+    }
+
+    private CTransform getTransform(int index) throws IOException {
+        CDrawable d = getDrawable(index);
+        if (!(d instanceof CTransform) || ((CTransform) d).getDrawable() == null) {
+            throw new IOException("Not an attached transform: " + index + ".");
+        }
+        return (CTransform) d;
+    }
+
+    // By identity, since CDrawable.equals() compares values.
+    private int indexInList(CDrawable d) {
+        for (int i = mList.size() - 1; i >= 0; i--) {
+            if (mList.get(i) == d) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void removeFromList(CDrawable d) {
+        int index = indexInList(d);
+        if (index >= 0) {
+            mList.remove(index);
+        }
+    }
+}
@@ -0,0 +1,452 @@
+package com.agsw.FabricView.Persistence;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.Typeface;
+
+import com.agsw.FabricView.DrawableObjects.CBitmap;
+import com.agsw.FabricView.DrawableObjects.CDrawable;
+import com.agsw.FabricView.DrawableObjects.CPath;
+import com.agsw.FabricView.DrawableObjects.CText;
+import com.agsw.FabricView.DrawableObjects.CTransform;
+import com.agsw.FabricView.DrawableObjects.ImageAsset;
+import com.agsw.FabricView.FabricDocument;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+
+/**
+ * Writes drawables as an SVG image, one at a time, as they are given.
+ *
+ * Nothing is kept between two drawables, so the memory used does not depend on the size of the
+ * document: paths are written point by point, and images are encoded in base64 straight to the
+ * writer, from their compressed form when they are kept so, or in PNG. The transforms of a drawable are composed, and applied as they are when it is
+ * drawn: the points of paths are transformed, so that the stroke width is not scaled, while texts
+ * and images get a transform attribute. Transforms themselves produce no output. A snapshot of a
+ * FabricDocument can be written from any thread, with the transforms it holds. How to use: <pre>
+SvgWriter writer = new SvgWriter(new BufferedWriter(fileWriter), bounds, null);
+writer.writeAll(myFabricView.getDocument().getSnapshot());
+writer.close();</pre>
+ * See also FabricView.exportSvg().
+ */
+public class SvgWriter implements Closeable {
+    // Number of points transformed at once.
+    private static final int POINT_BATCH = 256;
+
+    private final Writer mOut;
+    private final BitmapResolver mResolver;
+    private final Rect mBounds;
+    private final char[] mDigits = new char[20];
+    private final float[] mPoints = new float[POINT_BATCH * 2];
+    private final float[] mMatrixValues = new float[9];
+    private final Matrix mMatrix = new Matrix();
+    private boolean mFinished = false;
+
+    /**
+     * Constructor. Writes the start of the image. The writer should be buffered.
+     * @param out The writer to write to.
+     * @param bounds The area of the canvas to show, in world coordinates.
+     * @param resolver Stores the images outside of the SVG. The references it returns are used as
+     *                 links. If null, or when it returns null, the images are embedded.
+     * @throws IOException If the start of the image could not be written.
+     */
+    public SvgWriter(Writer out, Rect bounds, BitmapResolver resolver) throws IOException {
+        mOut = out;
+        mResolver = resolver;
+        mBounds = new Rect(bounds);
+        mOut.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+        mOut.write("<svg xmlns=\"http://www.w3.org/2000/svg\" xmlns:xlink=\"http://www.w3.org/1999/xlink\" version=\"1.1\"");
+        writeAttribute("width", mBounds.width());
+        writeAttribute("height", mBounds.height());
+        mOut.write(" viewBox=\"");
+        writeNumber(mBounds.left);
+        mOut.write(' ');
+        writeNumber(mBounds.top);
+        mOut.write(' ');
+        writeNumber(mBounds.width());
+        mOut.write(' ');
+        writeNumber(mBounds.height());
+        mOut.write("\">\n");
+    }
+
+    /**
+     * Fills the whole image with a color. Must be called before the first drawable.
+     * @param color The color.
+     * @throws IOException If it could not be written.
+     */
+    public void writeBackground(int color) throws IOException {
+        if (Color.alpha(color) == 0) {
+            return;
+        }
+        mOut.write("<rect");
+        writeAttribute("x", mBounds.left);
+        writeAttribute("y", mBounds.top);
+        writeAttribute("width", mBounds.width());
+        writeAttribute("height", mBounds.height());
+        writeColor("fill", color);
+        mOut.write("/>\n");
+    }
+
+    /**
+     * Writes a drawable, with all its transforms. Transforms are skipped. Must be called from the
+     * thread that modifies the drawable.
+     * @param d The drawable.
+     * @throws IOException If it could not be written.
+     */
+    public void write(CDrawable d) throws IOException {
+        write(d, d instanceof CPath ? ((CPath) d).getGeometry() : null, d.getTransformMatrix());
+    }
+
+    /**
+     * Writes drawables, in order. A snapshot of a FabricDocument is written as it was taken, and
+     * can be written from any thread. Other lists must be written from the thread that modifies
+     * the drawables.
+     * @param drawables The drawables.
+     * @throws IOException If one of them could not be written.
+     */
+    public void writeAll(List<CDrawable> drawables) throws IOException {
+        if (!(drawables instanceof FabricDocument.Snapshot)) {
+            for (CDrawable d : drawables) {
+                write(d);
+            }
+            return;
+        }
+        FabricDocument.Snapshot snapshot = (FabricDocument.Snapshot) drawables;
+        for (int i = 0; i < snapshot.size(); i++) {
+            write(snapshot.get(i), snapshot.getGeometry(i), snapshot.getTransformMatrix(i, mMatrix));
+        }
+    }
+
+    /**
+     * @param geometry The lines, for a CPath.
+     * @param matrix The composed transforms of the drawable.
+     */
+    private void write(CDrawable d, CPath.Geometry geometry, Matrix matrix) throws IOException {
+        if (mFinished) {
+            throw new IllegalStateException("The image is finished.");
+        }
+        if (d instanceof CPath) {
+            writePath((CPath) d, geometry, matrix);
+        }
+        else if (d instanceof CText) {
+            writeText((CText) d, matrix);
+        }
+        else if (d instanceof CBitmap) {
+            writeBitmap((CBitmap) d, matrix);
+        }
+        else if (!(d instanceof CTransform)) {
+            throw new IllegalArgumentException("Unknown drawable: " + d.getClass().getName());
+        }
+    }
+
+    /**
+     * Writes the end of the image, and flushes the writer. Nothing can be written afterwards.
+     * @throws IOException If it could not be written.
+     */
+    public void finish() throws IOException {
+        if (mFinished) {
+            return;
+        }
+        mOut.write("</svg>\n");
+        mOut.flush();
+        mFinished = true;
+    }
+
+    /**
+     * Finishes the image, and closes the writer.
+     * @throws IOException If it could not be written.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            finish();
+        } finally {
+            mOut.close();
+        }
+    }
+
+    private void writePath(CPath path, CPath.Geometry geometry, Matrix matrix) throws IOException {
+        int pointCount = geometry.getPointCount();
+        int verbCount = geometry.getVerbCount();
+        float[] points = geometry.getPoints();
+        byte[] verbs = geometry.getVerbs();
+        if (verbCount == 0) {
+            return;
+        }
+        boolean transformed = !matrix.isIdentity();
+        mOut.write("<path");
+        writePaint(path.getPaint());
+        mOut.write(" d=\"");
+        int verb = 0;
+        int used = 0; // Points of the current verb already written.
+        for (int start = 0; start < pointCount; start += POINT_BATCH) {
+            int count = Math.min(POINT_BATCH, pointCount - start);
+            if (transformed) {
+                matrix.mapPoints(mPoints, 0, points, start * 2, count);
+            }
+            else {
+                System.arraycopy(points, start * 2, mPoints, 0, count * 2);
+            }
+            for (int i = 0; i < count; i++) {
+                if (used == 0) {
+                    mOut.write(verbs[verb] == CPath.VERB_MOVE ? 'M' : verbs[verb] == CPath.VERB_LINE ? 'L' : 'Q');
+                }
+                else {
+                    mOut.write(' ');
+                }
+                writeNumber(mPoints[i * 2]);
+                mOut.write(' ');
+                writeNumber(mPoints[i * 2 + 1]);
+                if (++used == (verbs[verb] == CPath.VERB_QUAD ? 2 : 1)) {
+                    used = 0;
+                    if (++verb == verbCount) {
+                        break;
+                    }
+                }
+            }
+        }
+        mOut.write("\"/>\n");
+    }
+
+    private void writeText(CText text, Matrix matrix) throws IOException {
+        Paint paint = text.getPaint();
+        mOut.write("<text");
+        writeTransform(matrix);
+        writeAttribute("x", text.getXcoords() + CText.MARGIN);
+        writeAttribute("y", text.getYcoords() + text.getBaselineOffset() + CText.MARGIN);
+        writePaint(paint);
+        if (paint != null) {
+            writeAttribute("font-size", paint.getTextSize());
+            Typeface typeface = paint.getTypeface();
+            int style = typeface == null ? Typeface.NORMAL : typeface.getStyle();
+            if ((style & Typeface.BOLD) != 0) {
+                mOut.write(" font-weight=\"bold\"");
+            }
+            if ((style & Typeface.ITALIC) != 0) {
+                mOut.write(" font-style=\"italic\"");
+            }
+            if (paint.getTextAlign() == Paint.Align.CENTER) {
+                mOut.write(" text-anchor=\"middle\"");
+            }
+            else if (paint.getTextAlign() == Paint.Align.RIGHT) {
+                mOut.write(" text-anchor=\"end\"");
+            }
+        }
+        mOut.write(" xml:space=\"preserve\">");
+        writeEscaped(text.getText());
+        mOut.write("</text>\n");
+    }
+
+    private void writeBitmap(CBitmap bitmap, Matrix matrix) throws IOException {
+        ImageAsset asset = bitmap.getAsset();
+        //An image that is kept compressed is embedded as it is, without being decoded.
+        byte[] encoded = asset.getEncoded();
+        String type = encoded == null ? null : getImageType(encoded);
+        Bitmap image = type != null && mResolver == null ? null : bitmap.getBitmap();
+        if (image == null && type == null) {
+            return;
+        }
+        mOut.write("<image");
+        writeTransform(matrix);
+        writeAttribute("x", bitmap.getXcoords());
+        writeAttribute("y", bitmap.getYcoords());
+        writeAttribute("width", asset.getWidth());
+        writeAttribute("height", asset.getHeight());
+        mOut.write(" preserveAspectRatio=\"none\"");
+        Paint paint = bitmap.getPaint();
+        if (paint != null && paint.getAlpha() != 255) {
+            writeAttribute("opacity", paint.getAlpha() / 255f);
+        }
+        String reference = mResolver == null ? null : mResolver.toReference(image);
+        mOut.write(" xlink:href=\"");
+        if (reference != null) {
+            writeEscaped(reference);
+        }
+        else if (type != null) {
+            mOut.write("data:");
+            mOut.write(type);
+            mOut.write(";base64,");
+            Base64Encoder encoder = new Base64Encoder(mOut);
+            encoder.write(encoded, 0, encoded.length);
+            encoder.finish();
+        }
+        else {
+            mOut.write("data:image/png;base64,");
+            Base64Encoder encoder = new Base64Encoder(mOut);
+            if (!image.compress(Bitmap.CompressFormat.PNG, 100, encoder)) {
+                throw new IOException("Could not encode an image.");
+            }
+            encoder.finish();
+        }
+        mOut.write("\"/>\n");
+    }
+
+    /**
+     * @param encoded A compressed image.
+     * @return Its MIME type, or null if it is not a format that all SVG viewers support.
+     */
+    private static String getImageType(byte[] encoded) {
+        if (encoded.length > 4 && (encoded[0] & 0xFF) == 0x89 && encoded[1] == 'P'
+                && encoded[2] == 'N' && encoded[3] == 'G') {
+            return "image/png";
+        }
+        if (encoded.length > 3 && (encoded[0] & 0xFF) == 0xFF && (encoded[1] & 0xFF) == 0xD8
+                && (encoded[2] & 0xFF) == 0xFF) {
+            return "image/jpeg";
+        }
+        return null;
+    }
+
+    /**
+     * Writes the fill and stroke attributes matching a paint.
+     */
+    private void writePaint(Paint paint) throws IOException {
+        if (paint == null) {
+            return;
+        }
+        Paint.Style style = paint.getStyle();
+        boolean fill = style != Paint.Style.STROKE;
+        boolean stroke = style != Paint.Style.FILL;
+        if (fill) {
+            writeColor("fill", paint.getColor());
+        }
+        else {
+            mOut.write(" fill=\"none\"");
+        }
+        if (!stroke) {
+            return;
+        }
+        writeColor("stroke", paint.getColor());
+        writeAttribute("stroke-width", Math.max(paint.getStrokeWidth(), 1f)); //0 is a hairline.
+        Paint.Cap cap = paint.getStrokeCap();
+        if (cap == Paint.Cap.ROUND) {
+            mOut.write(" stroke-linecap=\"round\"");
+        }
+        else if (cap == Paint.Cap.SQUARE) {
+            mOut.write(" stroke-linecap=\"square\"");
+        }
+        Paint.Join join = paint.getStrokeJoin();
+        if (join == Paint.Join.ROUND) {
+            mOut.write(" stroke-linejoin=\"round\"");
+        }
+        else if (join == Paint.Join.BEVEL) {
+            mOut.write(" stroke-linejoin=\"bevel\"");
+        }
+        else {
+            writeAttribute("stroke-miterlimit", paint.getStrokeMiter());
+        }
+    }
+
+    /**
+     * Writes a color attribute, and its opacity if it is not opaque.
+     */
+    private void writeColor(String name, int color) throws IOException {
+        mOut.write(' ');
+        mOut.write(name);
+        mOut.write("=\"#");
+        int rgb = color & 0xFFFFFF;
+        for (int shift = 20; shift >= 0; shift -= 4) {
+            mOut.write(Character.forDigit((rgb >> shift) & 0xF, 16));
+        }
+        mOut.write('"');
+        int alpha = Color.alpha(color);
+        if (alpha != 255) {
+            writeAttribute(name + "-opacity", alpha / 255f);
+        }
+    }
+
+    private void writeTransform(Matrix matrix) throws IOException {
+        if (matrix.isIdentity()) {
+            return;
+        }
+        matrix.getValues(mMatrixValues);
+        mOut.write(" transform=\"matrix(");
+        writeNumber(mMatrixValues[Matrix.MSCALE_X]);
+        mOut.write(' ');
+        writeNumber(mMatrixValues[Matrix.MSKEW_Y]);
+        mOut.write(' ');
+        writeNumber(mMatrixValues[Matrix.MSKEW_X]);
+        mOut.write(' ');
+        writeNumber(mMatrixValues[Matrix.MSCALE_Y]);
+        mOut.write(' ');
+        writeNumber(mMatrixValues[Matrix.MTRANS_X]);
+        mOut.write(' ');
+        writeNumber(mMatrixValues[Matrix.MTRANS_Y]);
+        mOut.write(")\"");
+    }
+
+    private void writeAttribute(String name, float value) throws IOException {
+        mOut.write(' ');
+        mOut.write(name);
+        mOut.write("=\"");
+        writeNumber(value);
+        mOut.write('"');
+    }
+
+    /**
+     * Writes a number with at most two decimals, without going through a String.
+     */
+    private void writeNumber(float value) throws IOException {
+        if (Float.isNaN(value) || Float.isInfinite(value)) {
+            value = 0;
+        }
+        long hundredths = Math.round(value * 100.0);
+        if (hundredths < 0) {
+            mOut.write('-');
+            hundredths = -hundredths;
+        }
+        long whole = hundredths / 100;
+        int fraction = (int) (hundredths % 100);
+        int i = mDigits.length;
+        do {
+            mDigits[--i] = (char) ('0' + whole % 10);
+            whole /= 10;
+        } while (whole != 0);
+        mOut.write(mDigits, i, mDigits.length - i);
+        if (fraction != 0) {
+            mOut.write('.');
+            mOut.write('0' + fraction / 10);
+            if (fraction % 10 != 0) {
+                mOut.write('0' + fraction % 10);
+            }
+        }
+    }
+
+    /**
+     * Writes text with the characters that have a meaning in XML escaped.
+     */
+    private void writeEscaped(String s) throws IOException {
+        if (s == null) {
+            return;
+        }
+        int start = 0;
+        for (int i = 0; i < s.length(); i++) {
+            String replacement;
+            switch (s.charAt(i)) {
+                case '<':
+                    replacement = "&lt;";
+                    break;
+                case '>':
+                    replacement = "&gt;";
+                    break;
+                case '&':
+                    replacement = "&amp;";
+                    break;
+                case '"':
+                    replacement = "&quot;";
+                    break;
+                default:
+                    continue;
+            }
+            mOut.write(s, start, i - start);
+            mOut.write(replacement);
+            start = i + 1;
+        }
+        mOut.write(s, start, s.length() - start);
+    }
+}
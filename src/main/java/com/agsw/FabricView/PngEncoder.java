@@ -0,0 +1,167 @@
+package com.agsw.FabricView;
+
+import android.graphics.Bitmap;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Encodes an image in PNG row by row, so that images too large for a single Bitmap can be written
+ * from smaller ones. Rows must be given from top to bottom. Only the previous row is kept.
+ */
+final class PngEncoder {
+    private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+    // Largest IDAT chunk written.
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final byte COLOR_TYPE_RGB = 2;
+    private static final byte COLOR_TYPE_RGBA = 6;
+    private static final byte FILTER_UP = 2;
+
+    private final OutputStream mOut;
+    private final int mWidth;
+    private final int mHeight;
+    private final boolean mAlpha;
+    private final int mBytesPerPixel;
+    private final Deflater mDeflater;
+    private final DeflaterOutputStream mCompressed;
+    private final CRC32 mCrc = new CRC32();
+    private final byte[] mChunkHeader = new byte[8];
+    private final int[] mPixels;
+    private byte[] mRow;
+    private byte[] mPreviousRow;
+    private byte[] mFilteredRow;
+    private int mRowCount = 0;
+
+    /**
+     * Constructor. Writes the header.
+     * @param out The stream to write to. Not closed.
+     * @param width The width of the image.
+     * @param height The height of the image.
+     * @param alpha false to drop the alpha channel, for opaque images.
+     * @throws IOException If the header could not be written.
+     */
+    PngEncoder(OutputStream out, int width, int height, boolean alpha) throws IOException {
+        mOut = out;
+        mWidth = width;
+        mHeight = height;
+        mAlpha = alpha;
+        mBytesPerPixel = alpha ? 4 : 3;
+        mPixels = new int[width];
+        mRow = new byte[width * mBytesPerPixel];
+        mPreviousRow = new byte[mRow.length];
+        mFilteredRow = new byte[mRow.length + 1];
+        mFilteredRow[0] = FILTER_UP;
+        mDeflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        mCompressed = new DeflaterOutputStream(new OutputStream() {
+            private final byte[] mOne = new byte[1];
+
+            @Override
+            public void write(int b) throws IOException {
+                mOne[0] = (byte) b;
+                write(mOne, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                while (len > 0) {
+                    int n = Math.min(len, CHUNK_SIZE);
+                    writeChunk("IDAT", b, off, n);
+                    off += n;
+                    len -= n;
+                }
+            }
+        }, mDeflater, CHUNK_SIZE);
+
+        mOut.write(SIGNATURE);
+        byte[] header = new byte[13];
+        putInt(header, 0, width);
+        putInt(header, 4, height);
+        header[8] = 8; // Bits per channel.
+        header[9] = alpha ? COLOR_TYPE_RGBA : COLOR_TYPE_RGB;
+        writeChunk("IHDR", header, 0, header.length);
+    }
+
+    /**
+     * Encodes rows of a bitmap.
+     * @param bitmap The bitmap, as wide as the image.
+     * @param rows The number of rows to encode, from the top of the bitmap.
+     * @throws IOException If they could not be written.
+     */
+    void writeRows(Bitmap bitmap, int rows) throws IOException {
+        for (int y = 0; y < rows; y++) {
+            bitmap.getPixels(mPixels, 0, mWidth, 0, y, mWidth, 1);
+            writeRow(mPixels);
+        }
+    }
+
+    /**
+     * Encodes a row.
+     * @param pixels The colors of the row, as returned by Bitmap.getPixels().
+     * @throws IOException If it could not be written.
+     */
+    void writeRow(int[] pixels) throws IOException {
+        if (mRowCount == mHeight) {
+            throw new IllegalStateException("All the rows were written.");
+        }
+        byte[] row = mRow;
+        int i = 0;
+        for (int x = 0; x < mWidth; x++) {
+            int color = pixels[x];
+            row[i++] = (byte) (color >> 16);
+            row[i++] = (byte) (color >> 8);
+            row[i++] = (byte) color;
+            if (mAlpha) {
+                row[i++] = (byte) (color >>> 24);
+            }
+        }
+        //Drawings have large plain areas, which the Up filter turns into zeros.
+        byte[] previous = mPreviousRow;
+        byte[] filtered = mFilteredRow;
+        for (int j = 0; j < row.length; j++) {
+            filtered[j + 1] = (byte) (row[j] - previous[j]);
+        }
+        mCompressed.write(filtered, 0, filtered.length);
+        mPreviousRow = row;
+        mRow = previous;
+        mRowCount++;
+    }
+
+    /**
+     * Writes the end of the image. All the rows must have been written.
+     * @throws IOException If it could not be written.
+     */
+    void finish() throws IOException {
+        if (mRowCount != mHeight) {
+            throw new IllegalStateException("Only " + mRowCount + " rows of " + mHeight + " were written.");
+        }
+        mCompressed.finish();
+        mDeflater.end();
+        writeChunk("IEND", new byte[0], 0, 0);
+        mOut.flush();
+    }
+
+    private void writeChunk(String type, byte[] data, int offset, int length) throws IOException {
+        byte[] header = mChunkHeader;
+        putInt(header, 0, length);
+        for (int i = 0; i < 4; i++) {
+            header[4 + i] = (byte) type.charAt(i);
+        }
+        mCrc.reset();
+        mCrc.update(header, 4, 4);
+        mCrc.update(data, offset, length);
+        mOut.write(header, 0, 8);
+        mOut.write(data, offset, length);
+        putInt(header, 0, (int) mCrc.getValue());
+        mOut.write(header, 0, 4);
+    }
+
+    private static void putInt(byte[] b, int offset, int value) {
+        b[offset] = (byte) (value >>> 24);
+        b[offset + 1] = (byte) (value >>> 16);
+        b[offset + 2] = (byte) (value >>> 8);
+        b[offset + 3] = (byte) value;
+    }
+}
@@ -0,0 +1,348 @@
+package com.agsw.FabricView;
+
+import android.graphics.Rect;
+
+import com.agsw.FabricView.DrawableObjects.CDrawable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+/**
+ * A uniform grid over the bounds of the visible objects of a FabricView. It answers "which object
+ * is at this point" and "which objects intersect this rectangle" without looking at every object.
+ *
+ * Every object also has a z-order, which is the order in which it was inserted. Point queries return
+ * the top-most object and rectangle queries return the objects from the bottom to the top, which is
+ * the order in which they must be drawn.
+ *
+ * The index does not watch the objects. Call update() whenever the bounds of an object change.
+ */
+final class SpatialIndex {
+    /**
+     * Default size of a grid cell, in pixels.
+     */
+    static final int DEFAULT_CELL_SIZE = 256;
+
+    // Objects covering more cells than this are kept in a separate list that every query visits.
+    private static final int MAX_CELLS_PER_ENTRY = 64;
+
+    private static final Comparator<Entry> Z_ORDER = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry a, Entry b) {
+            return a.order < b.order ? -1 : (a.order == b.order ? 0 : 1);
+        }
+    };
+
+    private final int mCellSize;
+    private final HashMap<Long, ArrayList<Entry>> mCells = new HashMap<>();
+    private final IdentityHashMap<CDrawable, Entry> mEntries = new IdentityHashMap<>();
+    private final ArrayList<Entry> mOversized = new ArrayList<>();
+    private final ArrayList<Entry> mScratch = new ArrayList<>();
+    private long mNextOrder = 0;
+    private int mQueryStamp = 0;
+
+    // Union of the bounds of all the entries. Recomputed lazily after a removal.
+    private final Rect mTotalBounds = new Rect();
+    private boolean mTotalBoundsValid = true;
+
+    private static final class Entry {
+        CDrawable drawable;
+        final Rect bounds = new Rect();
+        long order;
+        boolean oversized;
+        int stamp;
+    }
+
+    SpatialIndex() {
+        this(DEFAULT_CELL_SIZE);
+    }
+
+    /**
+     * @param cellSize The size of a grid cell, in pixels.
+     */
+    SpatialIndex(int cellSize) {
+        mCellSize = cellSize;
+    }
+
+    /**
+     * Adds an object at the top of the z-order.
+     * @param d The object.
+     * @param bounds The area covered by the pixels of the object.
+     */
+    void insert(CDrawable d, Rect bounds) {
+        insert(d, bounds, mNextOrder);
+    }
+
+    /**
+     * Adds an object at a specific z-order.
+     * @param d The object.
+     * @param bounds The area covered by the pixels of the object.
+     * @param order The z-order, as returned by getOrder() earlier.
+     */
+    void insert(CDrawable d, Rect bounds, long order) {
+        remove(d);
+        Entry e = new Entry();
+        e.drawable = d;
+        e.bounds.set(bounds);
+        e.order = order;
+        if (order >= mNextOrder) {
+            mNextOrder = order + 1;
+        }
+        mEntries.put(d, e);
+        addToCells(e);
+        if (mTotalBoundsValid) {
+            if (mEntries.size() == 1) {
+                mTotalBounds.set(bounds);
+            }
+            else {
+                mTotalBounds.union(bounds);
+            }
+        }
+    }
+
+    /**
+     * Removes an object.
+     * @param d The object.
+     * @return true if the object was in the index.
+     */
+    boolean remove(CDrawable d) {
+        Entry e = mEntries.remove(d);
+        if (e == null) {
+            return false;
+        }
+        removeFromCells(e);
+        mTotalBoundsValid = false;
+        return true;
+    }
+
+    /**
+     * Moves an object after its bounds changed. Its z-order is kept.
+     * @param d The object.
+     * @param bounds The new area covered by the pixels of the object.
+     * @return false if the object is not in the index.
+     */
+    boolean update(CDrawable d, Rect bounds) {
+        Entry e = mEntries.get(d);
+        if (e == null) {
+            return false;
+        }
+        if (e.bounds.equals(bounds)) {
+            return true;
+        }
+        removeFromCells(e);
+        e.bounds.set(bounds);
+        addToCells(e);
+        mTotalBoundsValid = false;
+        return true;
+    }
+
+    /**
+     * @param d The object.
+     * @return true if the object is in the index.
+     */
+    boolean contains(CDrawable d) {
+        return mEntries.containsKey(d);
+    }
+
+    /**
+     * @param d The object.
+     * @return The z-order of the object, or -1 if it is not in the index.
+     */
+    long getOrder(CDrawable d) {
+        Entry e = mEntries.get(d);
+        return e == null ? -1 : e.order;
+    }
+
+    /**
+     * @return The number of objects in the index.
+     */
+    int size() {
+        return mEntries.size();
+    }
+
+    /**
+     * Removes all objects.
+     */
+    void clear() {
+        mCells.clear();
+        mEntries.clear();
+        mOversized.clear();
+        mNextOrder = 0;
+        mTotalBounds.setEmpty();
+        mTotalBoundsValid = true;
+    }
+
+    /**
+     * Finds the top-most object whose bounds contain a point.
+     * @param x The horizontal position.
+     * @param y The vertical position.
+     * @return The object, or null if there is none.
+     */
+    CDrawable hitTest(int x, int y) {
+        Entry best = null;
+        ArrayList<Entry> cell = mCells.get(key(cellOf(x), cellOf(y)));
+        if (cell != null) {
+            for (int i = 0; i < cell.size(); i++) {
+                best = pickTopMost(best, cell.get(i), x, y);
+            }
+        }
+        for (int i = 0; i < mOversized.size(); i++) {
+            best = pickTopMost(best, mOversized.get(i), x, y);
+        }
+        return best == null ? null : best.drawable;
+    }
+
+    private static Entry pickTopMost(Entry best, Entry candidate, int x, int y) {
+        if (best != null && best.order > candidate.order) {
+            return best;
+        }
+        if (!candidate.drawable.computeBounds().contains(x, y)) {
+            return best;
+        }
+        return candidate;
+    }
+
+    /**
+     * Finds all the objects intersecting a rectangle.
+     * @param area The rectangle.
+     * @param out Receives the objects, from the bottom to the top of the z-order.
+     */
+    void query(Rect area, List<CDrawable> out) {
+        ArrayList<Entry> found = mScratch;
+        found.clear();
+        int stamp = ++mQueryStamp;
+
+        int left = cellOf(area.left);
+        int top = cellOf(area.top);
+        int right = cellOf(area.right);
+        int bottom = cellOf(area.bottom);
+        long cellCount = (long) (right - left + 1) * (bottom - top + 1);
+        if (cellCount > mEntries.size()) {
+            //Cheaper to look at every object.
+            for (Entry e : mEntries.values()) {
+                if (Rect.intersects(e.bounds, area)) {
+                    found.add(e);
+                }
+            }
+        }
+        else {
+            for (int cy = top; cy <= bottom; cy++) {
+                for (int cx = left; cx <= right; cx++) {
+                    ArrayList<Entry> cell = mCells.get(key(cx, cy));
+                    if (cell == null) {
+                        continue;
+                    }
+                    for (int i = 0; i < cell.size(); i++) {
+                        collect(cell.get(i), area, stamp, found);
+                    }
+                }
+            }
+            for (int i = 0; i < mOversized.size(); i++) {
+                collect(mOversized.get(i), area, stamp, found);
+            }
+        }
+
+        Collections.sort(found, Z_ORDER);
+        for (int i = 0; i < found.size(); i++) {
+            out.add(found.get(i).drawable);
+        }
+        found.clear();
+    }
+
+    private static void collect(Entry e, Rect area, int stamp, List<Entry> found) {
+        if (e.stamp == stamp) {
+            return; //Already seen in another cell.
+        }
+        e.stamp = stamp;
+        if (Rect.intersects(e.bounds, area)) {
+            found.add(e);
+        }
+    }
+
+    /**
+     * Computes the union of the bounds of all the objects.
+     * @param out Receives the union.
+     * @return false if the index is empty.
+     */
+    boolean getTotalBounds(Rect out) {
+        if (!mTotalBoundsValid) {
+            mTotalBounds.setEmpty();
+            boolean first = true;
+            for (Entry e : mEntries.values()) {
+                if (first) {
+                    mTotalBounds.set(e.bounds);
+                    first = false;
+                }
+                else {
+                    mTotalBounds.union(e.bounds);
+                }
+            }
+            mTotalBoundsValid = true;
+        }
+        if (mEntries.isEmpty()) {
+            return false;
+        }
+        out.set(mTotalBounds);
+        return true;
+    }
+
+    private void addToCells(Entry e) {
+        int left = cellOf(e.bounds.left);
+        int top = cellOf(e.bounds.top);
+        int right = cellOf(e.bounds.right);
+        int bottom = cellOf(e.bounds.bottom);
+        e.oversized = (long) (right - left + 1) * (bottom - top + 1) > MAX_CELLS_PER_ENTRY;
+        if (e.oversized) {
+            mOversized.add(e);
+            return;
+        }
+        for (int cy = top; cy <= bottom; cy++) {
+            for (int cx = left; cx <= right; cx++) {
+                long k = key(cx, cy);
+                ArrayList<Entry> cell = mCells.get(k);
+                if (cell == null) {
+                    cell = new ArrayList<>(4);
+                    mCells.put(k, cell);
+                }
+                cell.add(e);
+            }
+        }
+    }
+
+    private void removeFromCells(Entry e) {
+        if (e.oversized) {
+            mOversized.remove(e);
+            return;
+        }
+        int left = cellOf(e.bounds.left);
+        int top = cellOf(e.bounds.top);
+        int right = cellOf(e.bounds.right);
+        int bottom = cellOf(e.bounds.bottom);
+        for (int cy = top; cy <= bottom; cy++) {
+            for (int cx = left; cx <= right; cx++) {
+                long k = key(cx, cy);
+                ArrayList<Entry> cell = mCells.get(k);
+                if (cell == null) {
+                    continue;
+                }
+                cell.remove(e);
+                if (cell.isEmpty()) {
+                    mCells.remove(k);
+                }
+            }
+        }
+    }
+
+    private int cellOf(int coordinate) {
+        // Rounds towards negative infinity, unlike the division operator.
+        return coordinate >= 0 ? coordinate / mCellSize : -((-coordinate - 1) / mCellSize) - 1;
+    }
+
+    private static long key(int cx, int cy) {
+        return ((long) cx << 32) | (cy & 0xFFFFFFFFL);
+    }
+}
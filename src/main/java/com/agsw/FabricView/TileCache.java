@@ -0,0 +1,267 @@
+package com.agsw.FabricView;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.RectF;
+
+import com.agsw.FabricView.DrawableObjects.CDrawable;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Raster cache for the tiled rendering mode of FabricView.
+ *
+ * The world is rasterized at a given zoom level, and the raster is split into square tiles of a fixed
+ * number of pixels. Tiles are rasterized on demand, when they become visible, and are kept in a least
+ * recently used cache with a memory budget. Changes to the world only mark the tiles that they touch
+ * as stale, so panning and partial edits never redraw the whole document.
+ */
+final class TileCache {
+    /**
+     * Default size of a tile, in pixels.
+     */
+    static final int DEFAULT_TILE_SIZE = 256;
+
+    /**
+     * Draws the content of a tile.
+     */
+    interface TileRenderer {
+        /**
+         * @param canvas The canvas of the tile, already transformed so that world coordinates can
+         *               be used.
+         * @param worldArea The part of the world covered by the tile.
+         */
+        void renderTile(Canvas canvas, RectF worldArea);
+    }
+
+    private static final class Tile {
+        final Bitmap bitmap;
+        final Canvas canvas;
+        final RectF worldArea = new RectF();
+        final float zoom;
+        boolean valid;
+        int lastFrame;
+
+        Tile(Bitmap bitmap, float zoom) {
+            this.bitmap = bitmap;
+            this.canvas = new Canvas(bitmap);
+            this.zoom = zoom;
+        }
+    }
+
+    private static final class Key {
+        final int x, y, zoomBits;
+
+        Key(int x, int y, float zoom) {
+            this.x = x;
+            this.y = y;
+            this.zoomBits = Float.floatToIntBits(zoom);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return other.x == x && other.y == y && other.zoomBits == zoomBits;
+        }
+
+        @Override
+        public int hashCode() {
+            return (x * 31 + y) * 31 + zoomBits;
+        }
+    }
+
+    private final int mTileSize;
+    private final int mTileBytes;
+    private long mBudgetBytes;
+    private float mZoom = 1;
+    private int mFrame = 0;
+    // In access order, so that the first entry is the least recently used tile.
+    private final LinkedHashMap<Key, Tile> mTiles = new LinkedHashMap<>(64, 0.75f, true);
+
+    /**
+     * @param tileSize The size of a tile, in pixels.
+     * @param budgetBytes The maximum memory used by the tiles.
+     */
+    TileCache(int tileSize, long budgetBytes) {
+        mTileSize = tileSize;
+        mTileBytes = tileSize * tileSize * 4;
+        mBudgetBytes = budgetBytes;
+    }
+
+    /**
+     * Setter for the memory budget. Tiles are evicted as needed.
+     * @param budgetBytes The maximum memory used by the tiles.
+     */
+    void setBudget(long budgetBytes) {
+        mBudgetBytes = budgetBytes;
+        trim();
+    }
+
+    /**
+     * @return The memory currently used by the tiles.
+     */
+    long getBytes() {
+        return (long) mTiles.size() * mTileBytes;
+    }
+
+    /**
+     * @return The zoom level at which tiles are rasterized.
+     */
+    float getZoom() {
+        return mZoom;
+    }
+
+    /**
+     * Setter for the zoom level at which tiles are rasterized. Tiles rasterized at other zoom
+     * levels stay in the cache until they are evicted, so zooming back is cheap.
+     * @param zoom The zoom level.
+     */
+    void setZoom(float zoom) {
+        mZoom = zoom;
+    }
+
+    /**
+     * Draws the visible tiles, rasterizing the ones that are missing or stale.
+     * @param canvas The canvas to draw on. Must be transformed so that world coordinates
+     *               multiplied by the current zoom level of the cache can be used.
+     * @param visibleWorld The part of the world to draw.
+     * @param renderer Draws the content of the tiles.
+     * @param paint The paint to draw the tiles with. Can be null.
+     */
+    void draw(Canvas canvas, RectF visibleWorld, TileRenderer renderer, Paint paint) {
+        mFrame++;
+        int left = (int) Math.floor(visibleWorld.left * mZoom / mTileSize);
+        int top = (int) Math.floor(visibleWorld.top * mZoom / mTileSize);
+        int right = (int) Math.floor(visibleWorld.right * mZoom / mTileSize);
+        int bottom = (int) Math.floor(visibleWorld.bottom * mZoom / mTileSize);
+        for (int ty = top; ty <= bottom; ty++) {
+            for (int tx = left; tx <= right; tx++) {
+                Tile tile = getTile(tx, ty, renderer);
+                if (tile != null) {
+                    canvas.drawBitmap(tile.bitmap, tx * mTileSize, ty * mTileSize, paint);
+                }
+            }
+        }
+        trim();
+    }
+
+    /**
+     * Marks the tiles covering a part of the world as stale.
+     * @param worldArea The part of the world that changed.
+     */
+    void invalidate(RectF worldArea) {
+        for (Tile tile : mTiles.values()) {
+            if (tile.valid && RectF.intersects(tile.worldArea, worldArea)) {
+                tile.valid = false;
+            }
+        }
+    }
+
+    /**
+     * Marks all tiles as stale.
+     */
+    void invalidateAll() {
+        for (Tile tile : mTiles.values()) {
+            tile.valid = false;
+        }
+    }
+
+    /**
+     * Draws a new object on top of the tiles it covers, instead of rasterizing them again. Only
+     * valid for an object at the top of the z-order.
+     * @param d The object.
+     * @param worldArea The area covered by its pixels.
+     */
+    void drawOnTiles(CDrawable d, RectF worldArea) {
+        for (Tile tile : mTiles.values()) {
+            if (!tile.valid || !RectF.intersects(tile.worldArea, worldArea)) {
+                continue;
+            }
+            try {
+                int count = tile.canvas.save();
+                prepareCanvas(tile);
+                d.draw(tile.canvas);
+                tile.canvas.restoreToCount(count);
+            } catch (Exception ex) {
+                ex.printStackTrace();
+                tile.valid = false;
+            }
+        }
+    }
+
+    /**
+     * Frees all the tiles.
+     */
+    void clear() {
+        for (Tile tile : mTiles.values()) {
+            BitmapPool.getInstance().release(tile.bitmap);
+        }
+        mTiles.clear();
+    }
+
+    private Tile getTile(int tx, int ty, TileRenderer renderer) {
+        Key key = new Key(tx, ty, mZoom);
+        Tile tile = mTiles.get(key);
+        if (tile == null) {
+            Bitmap bitmap = obtainBitmap();
+            if (bitmap == null) {
+                return null;
+            }
+            tile = new Tile(bitmap, mZoom);
+            tile.worldArea.set(tx * mTileSize / mZoom, ty * mTileSize / mZoom,
+                    (tx + 1) * mTileSize / mZoom, (ty + 1) * mTileSize / mZoom);
+            mTiles.put(key, tile);
+        }
+        if (!tile.valid) {
+            tile.bitmap.eraseColor(Color.TRANSPARENT);
+            int count = tile.canvas.save();
+            prepareCanvas(tile);
+            renderer.renderTile(tile.canvas, tile.worldArea);
+            tile.canvas.restoreToCount(count);
+            tile.valid = true;
+        }
+        tile.lastFrame = mFrame;
+        return tile;
+    }
+
+    private void prepareCanvas(Tile tile) {
+        tile.canvas.scale(tile.zoom, tile.zoom);
+        tile.canvas.translate(-tile.worldArea.left, -tile.worldArea.top);
+    }
+
+    private Bitmap obtainBitmap() {
+        try {
+            return BitmapPool.getInstance().obtain(mTileSize, mTileSize, Bitmap.Config.ARGB_8888);
+        }
+        catch (OutOfMemoryError e) {
+            //Give memory back and skip this tile for this frame.
+            mBudgetBytes = Math.max(mTileBytes, getBytes() / 2);
+            trim();
+            return null;
+        }
+    }
+
+    /**
+     * Evicts the least recently used tiles until the cache fits in its budget. Tiles drawn in the
+     * current frame are never evicted, so the visible area always stays cached.
+     */
+    private void trim() {
+        Iterator<Map.Entry<Key, Tile>> it = mTiles.entrySet().iterator();
+        while (getBytes() > mBudgetBytes && it.hasNext()) {
+            Tile tile = it.next().getValue();
+            if (tile.lastFrame == mFrame) {
+                break;
+            }
+            it.remove();
+            //Kept by the pool for the next tiles, within its own limit.
+            BitmapPool.getInstance().release(tile.bitmap);
+        }
+    }
+}
@@ -0,0 +1,485 @@
+package com.agsw.FabricView;
+
+
+import com.agsw.FabricView.DrawableObjects.CBitmap;
+import com.agsw.FabricView.DrawableObjects.CDrawable;
+import com.agsw.FabricView.DrawableObjects.CPath;
+import com.agsw.FabricView.DrawableObjects.CText;
+import com.agsw.FabricView.DrawableObjects.CTransform;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The undo and redo stacks of a FabricView.
+ *
+ * Every operation is kept as a small record that knows how to apply and revert itself, and the
+ * sequence numbers of its objects in the list of drawables, so that undoing or redoing never
+ * searches the list.
+ * The history has a maximum depth and a memory budget. When either one is exceeded, the oldest
+ * records are dropped, along with the objects that only they were keeping alive.
+ */
+final class UndoHistory {
+    /**
+     * Default maximum number of operations that can be undone.
+     */
+    static final int DEFAULT_MAX_DEPTH = 100;
+    /**
+     * Default maximum memory retained by the history, in bytes.
+     */
+    static final long DEFAULT_MAX_BYTES = 16 * 1024 * 1024;
+
+    // Rough cost of a record and of the objects that have no better estimate.
+    private static final long RECORD_SIZE = 64;
+    // Bytes per point of a CPath: the point buffer and the Path built from it.
+    private static final long PATH_POINT_SIZE = 16;
+
+    /**
+     * The list of drawables that the records modify.
+     */
+    interface Target {
+        /**
+         * Puts an object in the list, and makes it visible.
+         * @param d The object.
+         * @param seq Its sequence number, which gives its place in the list.
+         */
+        void insert(CDrawable d, long seq);
+
+        /**
+         * Removes an object from the list.
+         * @param d The object.
+         */
+        void remove(CDrawable d);
+
+        /**
+         * Adds a transform to its drawable.
+         * @param t The transform.
+         * @param index Its position in the stack of transforms of the drawable.
+         */
+        void attach(CTransform t, int index);
+
+        /**
+         * Removes a transform from its drawable.
+         * @param t The transform.
+         * @return Its position in the stack of transforms of the drawable.
+         */
+        int detach(CTransform t);
+    }
+
+    /**
+     * An operation that can be undone.
+     */
+    abstract static class Record {
+        private long mAppliedSize = -1, mRevertedSize = -1;
+
+        abstract void apply(Target target);
+
+        abstract void revert(Target target);
+
+        /**
+         * @param applied true for the size while the operation is done, false while it is undone.
+         * @return The memory kept alive by this record only.
+         */
+        abstract long computeSize(boolean applied);
+
+        /**
+         * @param out Receives the objects that this record puts in the list or removes from it.
+         */
+        abstract void collectDrawables(Collection<CDrawable> out);
+
+        /**
+         * Changes the sequence numbers kept by this record after they were shifted in the list.
+         * @see DrawableStore.ShiftListener#onShifted(long, long)
+         */
+        abstract void shiftSeqs(long from, long delta);
+
+        final long getSize(boolean applied) {
+            if (applied) {
+                if (mAppliedSize < 0) {
+                    mAppliedSize = computeSize(true);
+                }
+                return mAppliedSize;
+            }
+            if (mRevertedSize < 0) {
+                mRevertedSize = computeSize(false);
+            }
+            return mRevertedSize;
+        }
+    }
+
+    /**
+     * A drawable added at the top of the list.
+     */
+    static final class AddRecord extends Record {
+        private final CDrawable mDrawable;
+        private long mSeq;
+
+        AddRecord(CDrawable d, long seq) {
+            mDrawable = d;
+            mSeq = seq;
+        }
+
+        @Override
+        void apply(Target target) {
+            target.insert(mDrawable, mSeq);
+        }
+
+        @Override
+        void revert(Target target) {
+            target.remove(mDrawable);
+        }
+
+        @Override
+        long computeSize(boolean applied) {
+            return applied ? RECORD_SIZE : RECORD_SIZE + estimateSize(mDrawable);
+        }
+
+        @Override
+        void collectDrawables(Collection<CDrawable> out) {
+            out.add(mDrawable);
+        }
+
+        @Override
+        void shiftSeqs(long from, long delta) {
+            mSeq = DrawableStore.shift(mSeq, from, delta);
+        }
+    }
+
+    /**
+     * A drawable deleted along with its transforms. The transforms stay attached to it.
+     */
+    static final class DeleteRecord extends Record {
+        private final CDrawable[] mDrawables;
+        private final long[] mSeqs;
+
+        /**
+         * @param drawables The objects.
+         * @param seqs Their sequence numbers, before the deletion.
+         */
+        DeleteRecord(CDrawable[] drawables, long[] seqs) {
+            mDrawables = drawables;
+            mSeqs = seqs;
+        }
+
+        @Override
+        void apply(Target target) {
+            for (int i = mDrawables.length - 1; i >= 0; i--) {
+                target.remove(mDrawables[i]);
+            }
+        }
+
+        @Override
+        void revert(Target target) {
+            for (int i = 0; i < mDrawables.length; i++) {
+                target.insert(mDrawables[i], mSeqs[i]);
+            }
+        }
+
+        @Override
+        long computeSize(boolean applied) {
+            long size = RECORD_SIZE;
+            if (applied) {
+                for (CDrawable d : mDrawables) {
+                    size += estimateSize(d);
+                }
+            }
+            return size;
+        }
+
+        @Override
+        void collectDrawables(Collection<CDrawable> out) {
+            Collections.addAll(out, mDrawables);
+        }
+
+        @Override
+        void shiftSeqs(long from, long delta) {
+            for (int i = 0; i < mSeqs.length; i++) {
+                mSeqs[i] = DrawableStore.shift(mSeqs[i], from, delta);
+            }
+        }
+    }
+
+    /**
+     * A transform added at the top of the list, or deleted on its own.
+     */
+    static final class TransformRecord extends Record {
+        private final CTransform mTransform;
+        private long mSeq;
+        private final boolean mDeletion;
+        private int mStackIndex;
+
+        /**
+         * @param t The transform.
+         * @param seq Its sequence number in the list.
+         * @param stackIndex Its position in the stack of transforms of its drawable.
+         * @param deletion true if the operation removes the transform.
+         */
+        TransformRecord(CTransform t, long seq, int stackIndex, boolean deletion) {
+            mTransform = t;
+            mSeq = seq;
+            mStackIndex = stackIndex;
+            mDeletion = deletion;
+        }
+
+        @Override
+        void apply(Target target) {
+            if (mDeletion) {
+                remove(target);
+            }
+            else {
+                add(target);
+            }
+        }
+
+        @Override
+        void revert(Target target) {
+            if (mDeletion) {
+                add(target);
+            }
+            else {
+                remove(target);
+            }
+        }
+
+        private void add(Target target) {
+            target.insert(mTransform, mSeq);
+            target.attach(mTransform, mStackIndex);
+        }
+
+        private void remove(Target target) {
+            mStackIndex = target.detach(mTransform);
+            target.remove(mTransform);
+        }
+
+        @Override
+        long computeSize(boolean applied) {
+            return applied == mDeletion ? RECORD_SIZE * 2 : RECORD_SIZE;
+        }
+
+        @Override
+        void collectDrawables(Collection<CDrawable> out) {
+            out.add(mTransform);
+        }
+
+        @Override
+        void shiftSeqs(long from, long delta) {
+            mSeq = DrawableStore.shift(mSeq, from, delta);
+        }
+    }
+
+    /**
+     * Several operations that are undone together.
+     */
+    static final class BatchRecord extends Record {
+        private final Record[] mRecords;
+
+        BatchRecord(List<Record> records) {
+            mRecords = records.toArray(new Record[records.size()]);
+        }
+
+        @Override
+        void apply(Target target) {
+            for (Record r : mRecords) {
+                r.apply(target);
+            }
+        }
+
+        @Override
+        void revert(Target target) {
+            for (int i = mRecords.length - 1; i >= 0; i--) {
+                mRecords[i].revert(target);
+            }
+        }
+
+        @Override
+        long computeSize(boolean applied) {
+            long size = RECORD_SIZE;
+            for (Record r : mRecords) {
+                size += r.getSize(applied);
+            }
+            return size;
+        }
+
+        @Override
+        void collectDrawables(Collection<CDrawable> out) {
+            for (Record r : mRecords) {
+                r.collectDrawables(out);
+            }
+        }
+
+        @Override
+        void shiftSeqs(long from, long delta) {
+            for (Record r : mRecords) {
+                r.shiftSeqs(from, delta);
+            }
+        }
+    }
+
+    // The most recent records are at the end.
+    private final ArrayDeque<Record> mUndoStack = new ArrayDeque<>();
+    // The next record to redo is at the end.
+    private final ArrayDeque<Record> mRedoStack = new ArrayDeque<>();
+    private int mMaxDepth = DEFAULT_MAX_DEPTH;
+    private long mMaxBytes = DEFAULT_MAX_BYTES;
+    private long mBytes = 0;
+
+    /**
+     * Setter for the limits of the history. Records are dropped as needed.
+     * @param maxDepth The maximum number of operations that can be undone.
+     * @param maxBytes The maximum memory retained by the history.
+     */
+    void setLimits(int maxDepth, long maxBytes) {
+        mMaxDepth = maxDepth;
+        mMaxBytes = maxBytes;
+        trim();
+    }
+
+    int getMaxDepth() {
+        return mMaxDepth;
+    }
+
+    long getMaxBytes() {
+        return mMaxBytes;
+    }
+
+    /**
+     * @return The estimated memory retained by the history.
+     */
+    long getBytes() {
+        return mBytes;
+    }
+
+    /**
+     * Adds an operation that was just done. The operations that were undone can't be redone anymore.
+     * @param record The operation.
+     */
+    void push(Record record) {
+        clearRedo();
+        mUndoStack.addLast(record);
+        mBytes += record.getSize(true);
+        trim();
+    }
+
+    /**
+     * Reverts the last operation.
+     * @param target The list to modify.
+     * @return false if there was nothing to undo.
+     */
+    boolean undo(Target target) {
+        Record record = mUndoStack.pollLast();
+        if (record == null) {
+            return false;
+        }
+        mBytes -= record.getSize(true);
+        record.revert(target);
+        mRedoStack.addLast(record);
+        mBytes += record.getSize(false);
+        trim();
+        return true;
+    }
+
+    /**
+     * Applies the last undone operation again.
+     * @param target The list to modify.
+     * @return false if there was nothing to redo.
+     */
+    boolean redo(Target target) {
+        Record record = mRedoStack.pollLast();
+        if (record == null) {
+            return false;
+        }
+        mBytes -= record.getSize(false);
+        record.apply(target);
+        mUndoStack.addLast(record);
+        mBytes += record.getSize(true);
+        trim();
+        return true;
+    }
+
+    boolean canUndo() {
+        return !mUndoStack.isEmpty();
+    }
+
+    boolean canRedo() {
+        return !mRedoStack.isEmpty();
+    }
+
+    /**
+     * Forgets everything.
+     */
+    void clear() {
+        mUndoStack.clear();
+        mRedoStack.clear();
+        mBytes = 0;
+    }
+
+    /**
+     * @param out Receives all the objects that undo() or redo() can put in the list or remove
+     *            from it.
+     */
+    void collectDrawables(Collection<CDrawable> out) {
+        for (Record r : mUndoStack) {
+            r.collectDrawables(out);
+        }
+        for (Record r : mRedoStack) {
+            r.collectDrawables(out);
+        }
+    }
+
+    /**
+     * Changes the sequence numbers kept by all the records after they were shifted in the list.
+     * @see DrawableStore.ShiftListener#onShifted(long, long)
+     */
+    void shiftSeqs(long from, long delta) {
+        for (Record r : mUndoStack) {
+            r.shiftSeqs(from, delta);
+        }
+        for (Record r : mRedoStack) {
+            r.shiftSeqs(from, delta);
+        }
+    }
+
+    private void clearRedo() {
+        for (Record r : mRedoStack) {
+            mBytes -= r.getSize(false);
+        }
+        mRedoStack.clear();
+    }
+
+    /**
+     * Drops the oldest records until the history fits in its limits. The operations that were
+     * undone go last, starting with the one farthest from being redone.
+     */
+    private void trim() {
+        while (mUndoStack.size() > mMaxDepth) {
+            mBytes -= mUndoStack.pollFirst().getSize(true);
+        }
+        while (mBytes > mMaxBytes && !mUndoStack.isEmpty()) {
+            mBytes -= mUndoStack.pollFirst().getSize(true);
+        }
+        while (mBytes > mMaxBytes && !mRedoStack.isEmpty()) {
+            mBytes -= mRedoStack.pollFirst().getSize(false);
+        }
+    }
+
+    /**
+     * @param d An object.
+     * @return A rough estimate of the memory used by the object.
+     */
+    static long estimateSize(CDrawable d) {
+        if (d instanceof CBitmap) {
+            //The decoded levels of the image are budgeted by ImageAsset.
+            return RECORD_SIZE + ((CBitmap) d).getAsset().getRetainedBytes();
+        }
+        if (d instanceof CText) {
+            String text = ((CText) d).getText();
+            return text == null ? RECORD_SIZE : RECORD_SIZE + 2L * text.length();
+        }
+        if (d instanceof CPath) {
+            return RECORD_SIZE + PATH_POINT_SIZE * ((CPath) d).getPointCount();
+        }
+        return RECORD_SIZE;
+    }
+}